@@ -0,0 +1,438 @@
+package org.pro.adaway.db;
+
+import static org.pro.adaway.db.entity.ListType.ALLOWED;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+import org.pro.adaway.BuildConfig;
+import org.pro.adaway.db.entity.HostListItem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class bulk loads the {@link HostListItem}s of a source, writing only the items that changed.
+ * <p>
+ * The items currently stored for the source are fingerprinted when the loader is created. Each loaded item is
+ * then matched against them: a match marks the stored item as kept, otherwise the item is added. The added items
+ * are buffered in memory and, for large changes, spilled to a staging table batch by batch. Only once the whole
+ * source is loaded, {@link #commit()} removes the stored items that were not matched and inserts the added ones
+ * in a single short transaction. Until then, readers keep seeing the previous source items, and a failed load
+ * leaves them untouched. Daily updates of a list usually change a few lines, so they only write a few rows.
+ * <p>
+ * When the changes are large compared to the table, the secondary indexes are dropped for the commit and rebuilt
+ * once, which is cheaper than maintaining them row by row. As they are dropped within the commit transaction,
+ * other connections keep seeing them.
+ */
+public final class HostListItemBulkLoader implements Closeable {
+    /**
+     * The minimum number of changed items to drop the secondary indexes.
+     */
+    private static final int INDEX_REBUILD_THRESHOLD = 50_000;
+    /**
+     * The maximum number of added items to buffer in memory before spilling them to the staging table.
+     */
+    private static final int MAX_BUFFERED_ITEMS = 10_000;
+    /**
+     * The maximum number of changed hosts to track.
+     */
+    private static final int MAX_TRACKED_HOSTS = 10_000;
+    /**
+     * The maximum number of items to query at once, below the SQLite variable limit.
+     */
+    private static final int QUERY_BATCH_SIZE = 500;
+    /**
+     * The number of stored items to read at once.
+     */
+    private static final int READ_PAGE_SIZE = 10_000;
+    /**
+     * The SQL statement to create the staging table, shaped as the {@link HostListItem} table without constraints.
+     */
+    private static final String CREATE_STAGING_TABLE_SQL = "CREATE TABLE IF NOT EXISTS `hosts_lists_staging` " +
+            "(`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `host` TEXT NOT NULL, `type` INTEGER NOT NULL, " +
+            "`enabled` INTEGER NOT NULL, `redirection` TEXT, `source_id` INTEGER NOT NULL)";
+    /**
+     * The SQL statements to drop the secondary indexes.
+     */
+    private static final String[] DROP_INDEX_SQL = {
+            "DROP INDEX IF EXISTS `index_hosts_lists_host`",
+            "DROP INDEX IF EXISTS `index_hosts_lists_source_id`"
+    };
+    /**
+     * The SQL statements to create the secondary indexes, as declared by the {@link HostListItem} entity.
+     */
+    private static final String[] CREATE_INDEX_SQL = {
+            "CREATE INDEX IF NOT EXISTS `index_hosts_lists_host` ON `hosts_lists` (`host`)",
+            "CREATE INDEX IF NOT EXISTS `index_hosts_lists_source_id` ON `hosts_lists` (`source_id`)"
+    };
+    /**
+     * The application database.
+     */
+    private final AppDatabase appDatabase;
+    /**
+     * The writable database.
+     */
+    private final SupportSQLiteDatabase database;
+    /**
+     * The identifier of the source to load items of.
+     */
+    private final int sourceId;
+    /**
+     * The fingerprints of the stored items, by hash slot ({@code 0} for empty slots).
+     */
+    private final long[] storedFingerprints;
+    /**
+     * The indexes of the stored items, by hash slot.
+     */
+    private final int[] storedIndexes;
+    /**
+     * The identifiers of the stored items, by index.
+     */
+    private final long[] storedIds;
+    /**
+     * The stored items matched by a loaded item, by index.
+     */
+    private final BitSet keptItems;
+    /**
+     * The added items not spilled to the staging table yet.
+     */
+    private final List<HostListItem> addedItems;
+    /**
+     * The changed hosts, {@code null} if there are too many to track them.
+     */
+    @Nullable
+    private Set<String> changedHosts;
+    /**
+     * Whether an allowed host changed.
+     */
+    private boolean allowedHostChanged;
+    /**
+     * The number of added items.
+     */
+    private int addedCount;
+    /**
+     * The number of removed items.
+     */
+    private int removedCount;
+    /**
+     * Whether some added items were spilled to the staging table.
+     */
+    private boolean staged;
+    /**
+     * Whether the changes were committed.
+     */
+    private boolean committed;
+
+    /**
+     * Constructor.<br>
+     * It fingerprints the stored items of the source and discards any item left staged by a previous load.
+     *
+     * @param database The application database.
+     * @param sourceId The identifier of the source to load items of.
+     */
+    public HostListItemBulkLoader(@NonNull final AppDatabase database, final int sourceId) {
+        this.appDatabase = database;
+        this.database = database.getOpenHelper().getWritableDatabase();
+        this.sourceId = sourceId;
+        this.database.execSQL(CREATE_STAGING_TABLE_SQL);
+        clearStagedItems();
+        // Index the stored items by fingerprint, in an open addressing table
+        final int count;
+        try (final Cursor cursor = this.database.query("SELECT COUNT(*) FROM `hosts_lists` WHERE `source_id` = ?",
+                new Object[]{sourceId})) {
+            count = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        }
+        // Use a power of two of at least twice the items, for a load factor up to 0.5
+        this.storedFingerprints = new long[Math.max(2, Integer.highestOneBit(Math.max(1, 2 * count - 1)) << 1)];
+        this.storedIndexes = new int[this.storedFingerprints.length];
+        final long[] ids = new long[count];
+        // Read the stored items by pages of identifiers, as a single large cursor is refilled from the start
+        int index = 0;
+        long lastId = -1;
+        int pageCount;
+        do {
+            pageCount = 0;
+            try (final Cursor cursor = this.database.query("SELECT `id`, `host`, `type`, `enabled`, `redirection` " +
+                    "FROM `hosts_lists` WHERE `source_id` = ? AND `id` > ? ORDER BY `id` LIMIT " + READ_PAGE_SIZE,
+                    new Object[]{sourceId, lastId})) {
+                while (cursor.moveToNext() && index < count) {
+                    final long fingerprint = fingerprint(cursor.getString(1), cursor.getInt(2),
+                            cursor.getInt(3) != 0, cursor.isNull(4) ? null : cursor.getString(4));
+                    final int slot = findSlot(fingerprint);
+                    // Duplicated stored items are not matched, so they are removed
+                    if (this.storedFingerprints[slot] == 0) {
+                        this.storedFingerprints[slot] = fingerprint;
+                        this.storedIndexes[slot] = index;
+                    }
+                    lastId = cursor.getLong(0);
+                    ids[index] = lastId;
+                    index++;
+                    pageCount++;
+                }
+            }
+        } while (pageCount == READ_PAGE_SIZE);
+        this.storedIds = index == count ? ids : Arrays.copyOf(ids, index);
+        this.keptItems = new BitSet(this.storedIds.length);
+        this.addedItems = new ArrayList<>();
+        this.changedHosts = new LinkedHashSet<>();
+        this.allowedHostChanged = false;
+        this.addedCount = 0;
+        this.removedCount = 0;
+        this.staged = false;
+        this.committed = false;
+    }
+
+    /**
+     * Load items.<br>
+     * Items already stored are kept, others are added.
+     *
+     * @param items The items to load.
+     */
+    public void insert(@NonNull final List<HostListItem> items) {
+        for (final HostListItem item : items) {
+            final long fingerprint = fingerprint(item.getHost(), item.getType().getValue(), item.isEnabled(), item.getRedirection());
+            final int slot = findSlot(fingerprint);
+            if (this.storedFingerprints[slot] != 0) {
+                this.keptItems.set(this.storedIndexes[slot]);
+            } else {
+                this.addedItems.add(item);
+                this.addedCount++;
+                trackChange(item.getHost(), item.getType().getValue());
+            }
+        }
+        // Spill added items to the staging table to bound memory usage
+        if (this.addedItems.size() >= MAX_BUFFERED_ITEMS) {
+            // The staging table is not observed so the transaction does not need to go through Room
+            this.database.beginTransaction();
+            try {
+                insertItems("hosts_lists_staging", this.addedItems);
+                this.database.setTransactionSuccessful();
+            } finally {
+                this.database.endTransaction();
+            }
+            this.addedItems.clear();
+            this.staged = true;
+        }
+    }
+
+    /**
+     * Apply the changes to the source items, in a single transaction.
+     *
+     * @return The number of changed items.
+     */
+    public int commit() {
+        final long startTime = System.currentTimeMillis();
+        this.appDatabase.runInTransaction(() -> {
+            // Track the hosts of the removed items
+            this.removedCount = this.storedIds.length - this.keptItems.cardinality();
+            if (this.removedCount > 0 && this.changedHosts != null) {
+                if (this.removedCount > MAX_TRACKED_HOSTS) {
+                    untrackChanges();
+                } else {
+                    final List<Object> removedIds = new ArrayList<>(QUERY_BATCH_SIZE);
+                    for (int index = this.keptItems.nextClearBit(0); index < this.storedIds.length;
+                         index = this.keptItems.nextClearBit(index + 1)) {
+                        removedIds.add(this.storedIds[index]);
+                        if (removedIds.size() == QUERY_BATCH_SIZE) {
+                            trackRemovedItems(removedIds);
+                            removedIds.clear();
+                        }
+                    }
+                    trackRemovedItems(removedIds);
+                }
+            }
+            // Rebuild indexes rather than maintaining them if the changes are large
+            final long itemCount;
+            try (final Cursor cursor = this.database.query("SELECT COUNT(*) FROM `hosts_lists`")) {
+                itemCount = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            }
+            final boolean rebuildIndexes = this.addedCount + this.removedCount >= Math.max(INDEX_REBUILD_THRESHOLD, itemCount);
+            if (rebuildIndexes) {
+                for (final String sql : DROP_INDEX_SQL) this.database.execSQL(sql);
+            }
+            // Remove the stored items not loaded again
+            if (this.removedCount == this.storedIds.length) {
+                this.database.execSQL("DELETE FROM `hosts_lists` WHERE `source_id` = ?", new Object[]{this.sourceId});
+            } else if (this.removedCount > 0) {
+                try (final SupportSQLiteStatement statement = this.database.compileStatement("DELETE FROM `hosts_lists` WHERE `id` = ?")) {
+                    for (int index = this.keptItems.nextClearBit(0); index < this.storedIds.length;
+                         index = this.keptItems.nextClearBit(index + 1)) {
+                        statement.bindLong(1, this.storedIds[index]);
+                        statement.executeUpdateDelete();
+                    }
+                } catch (final IOException e) {
+                    throw new IllegalStateException("Failed to close delete statement.", e);
+                }
+            }
+            // Insert the added items
+            if (this.staged) {
+                this.database.execSQL("INSERT INTO `hosts_lists` (`host`, `type`, `enabled`, `redirection`, `source_id`) " +
+                        "SELECT `host`, `type`, `enabled`, `redirection`, `source_id` FROM `hosts_lists_staging` " +
+                        "WHERE `source_id` = ? ORDER BY `id`", new Object[]{this.sourceId});
+                clearStagedItems();
+            }
+            insertItems("hosts_lists", this.addedItems);
+            if (rebuildIndexes) {
+                for (final String sql : CREATE_INDEX_SQL) this.database.execSQL(sql);
+            }
+        });
+        this.addedItems.clear();
+        this.committed = true;
+        if (BuildConfig.DEBUG) {
+            Log.d("AWAISKING_APP", "Committed " + this.addedCount + " added and " + this.removedCount +
+                    " removed host list items in " + (System.currentTimeMillis() - startTime) + "ms");
+        }
+        return this.addedCount + this.removedCount;
+    }
+
+    /**
+     * Get the number of added items.
+     *
+     * @return The number of added items.
+     */
+    public int getAddedCount() {
+        return this.addedCount;
+    }
+
+    /**
+     * Get the number of removed items, once committed.
+     *
+     * @return The number of removed items.
+     */
+    public int getRemovedCount() {
+        return this.removedCount;
+    }
+
+    /**
+     * Get the hosts of the changed items, once committed.
+     *
+     * @return The changed hosts, {@code null} if there were too many changes or an allowed host changed.
+     */
+    @Nullable
+    public Set<String> getChangedHosts() {
+        return this.allowedHostChanged ? null : this.changedHosts;
+    }
+
+    /**
+     * Close the loader, discarding the staged items if they were not committed.
+     */
+    @Override
+    public void close() {
+        if (!this.committed && this.staged) clearStagedItems();
+    }
+
+    private void insertItems(@NonNull final String table, @NonNull final List<HostListItem> items) {
+        if (items.isEmpty()) return;
+        try (final SupportSQLiteStatement statement = this.database.compileStatement("INSERT INTO `" + table + "` " +
+                "(`host`, `type`, `enabled`, `redirection`, `source_id`) VALUES (?, ?, ?, ?, ?)")) {
+            for (final HostListItem item : items) {
+                statement.bindString(1, item.getHost());
+                statement.bindLong(2, item.getType().getValue());
+                statement.bindLong(3, item.isEnabled() ? 1 : 0);
+                final String redirection = item.getRedirection();
+                if (redirection == null) statement.bindNull(4);
+                else statement.bindString(4, redirection);
+                statement.bindLong(5, item.getSourceId());
+                statement.executeInsert();
+            }
+        } catch (final IOException e) {
+            throw new IllegalStateException("Failed to close insert statement.", e);
+        }
+    }
+
+    private void clearStagedItems() {
+        this.database.execSQL("DELETE FROM `hosts_lists_staging` WHERE `source_id` = ?", new Object[]{this.sourceId});
+    }
+
+    /**
+     * Track a changed host.
+     *
+     * @param host The changed host.
+     * @param type The list type value of the changed item.
+     */
+    private void trackChange(@NonNull final String host, final int type) {
+        if (type == ALLOWED.getValue()) this.allowedHostChanged = true;
+        if (this.changedHosts == null) return;
+        this.changedHosts.add(host);
+        if (this.changedHosts.size() > MAX_TRACKED_HOSTS) untrackChanges();
+    }
+
+    /**
+     * Track the hosts of removed items.
+     *
+     * @param ids The identifiers of the removed items.
+     */
+    private void trackRemovedItems(@NonNull final List<Object> ids) {
+        if (ids.isEmpty()) return;
+        final StringBuilder sql = new StringBuilder("SELECT `host`, `type` FROM `hosts_lists` WHERE `id` IN (?");
+        for (int i = 1; i < ids.size(); i++) sql.append(", ?");
+        sql.append(')');
+        try (final Cursor cursor = this.database.query(sql.toString(), ids.toArray())) {
+            while (cursor.moveToNext()) trackChange(cursor.getString(0), cursor.getInt(1));
+        }
+    }
+
+    private void untrackChanges() {
+        this.changedHosts = null;
+    }
+
+    /**
+     * Find the hash slot of a fingerprint.
+     *
+     * @param fingerprint The fingerprint to find.
+     *
+     * @return The slot holding the fingerprint, or the empty slot to store it in.
+     */
+    private int findSlot(final long fingerprint) {
+        final int mask = this.storedFingerprints.length - 1;
+        int slot = (int) (fingerprint ^ fingerprint >>> 32) & mask;
+        while (this.storedFingerprints[slot] != 0 && this.storedFingerprints[slot] != fingerprint) {
+            slot = slot + 1 & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Compute the fingerprint of an item, a 64-bit FNV-1a hash of its columns.<br>
+     * Matches are not confirmed against the stored columns, which would mean keeping every stored item in
+     * memory. Two distinct items only collide with a probability of about {@code n * m / 2^64} for {@code n}
+     * stored and {@code m} loaded items, below {@code 10^-7} for two lists of a million items. A collision would
+     * keep the stored item instead of the loaded one until either changes again.
+     *
+     * @param host        The item host.
+     * @param type        The item list type value.
+     * @param enabled     Whether the item is enabled.
+     * @param redirection The item redirection, {@code null} if none.
+     *
+     * @return The item fingerprint, never {@code 0}.
+     */
+    private static long fingerprint(@NonNull final String host, final int type, final boolean enabled,
+                                    @Nullable final String redirection) {
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, host);
+        hash = (hash ^ (type << 1 | (enabled ? 1 : 0))) * 0x100000001b3L;
+        if (redirection != null) hash = hash(hash ^ 0xff, redirection);
+        // Mix high bits down as slots are taken from low bits
+        hash ^= hash >>> 29;
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long hash(long hash, @NonNull final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return (hash ^ 0xfe) * 0x100000001b3L;
+    }
+}
@@ -4,13 +4,17 @@ import androidx.annotation.Nullable;
 import androidx.room.Dao;
 import androidx.room.Insert;
 import androidx.room.Query;
+import androidx.room.Transaction;
 
 import org.pro.adaway.db.entity.HostEntry;
 import org.pro.adaway.db.entity.HostListItem;
 import org.pro.adaway.db.entity.ListType;
+import org.pro.adaway.util.AllowListMatcher;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.regex.Pattern;
 
 import static androidx.room.OnConflictStrategy.REPLACE;
 import static org.pro.adaway.db.entity.ListType.REDIRECTED;
@@ -22,8 +26,14 @@ import static org.pro.adaway.db.entity.ListType.REDIRECTED;
  */
 @Dao
 public interface HostEntryDao {
-    Pattern ANY_CHAR_PATTERN = Pattern.compile("\\*");
-    Pattern A_CHAR_PATTERN = Pattern.compile("\\?");
+    /**
+     * The number of host entries to read from database at once.
+     */
+    int PAGE_SIZE = 10_000;
+    /**
+     * The maximum number of hosts to delete at once, below the SQLite variable limit.
+     */
+    int DELETE_BATCH_SIZE = 500;
 
     @Query("DELETE FROM `host_entries`")
     void clear();
@@ -34,8 +44,11 @@ public interface HostEntryDao {
     @Query("SELECT host FROM hosts_lists WHERE type = 1 AND enabled = 1")
     List<String> getEnabledAllowedHosts();
 
-    @Query("DELETE FROM `host_entries` WHERE `host` LIKE :hostPattern")
-    void allowHost(String hostPattern);
+    @Query("SELECT `host` FROM `host_entries` WHERE `host` > :afterHost ORDER BY `host` ASC LIMIT :count")
+    List<String> getHostsAfter(String afterHost, int count);
+
+    @Query("DELETE FROM `host_entries` WHERE `host` IN (:hosts)")
+    void removeHosts(List<String> hosts);
 
     @Query("SELECT * FROM hosts_lists WHERE type = 2 AND enabled = 1 ORDER BY host ASC, source_id DESC")
     List<HostListItem> getEnabledRedirectedHosts();
@@ -49,10 +62,22 @@ public interface HostEntryDao {
     default void sync() {
         clear();
         importBlocked();
-        for (String allowedHost : getEnabledAllowedHosts()) {
-            allowedHost = ANY_CHAR_PATTERN.matcher(allowedHost).replaceAll("%");
-            allowedHost = A_CHAR_PATTERN.matcher(allowedHost).replaceAll("_");
-            allowHost(allowedHost);
+        // Match each entry once against all allowed hosts rather than scanning the entries per allowed host
+        AllowListMatcher allowList = new AllowListMatcher(getEnabledAllowedHosts());
+        if (!allowList.isEmpty()) {
+            List<String> allowedHosts = new ArrayList<>();
+            String lastHost = "";
+            List<String> hosts;
+            do {
+                hosts = getHostsAfter(lastHost, PAGE_SIZE);
+                for (String host : hosts) {
+                    if (allowList.matches(host)) allowedHosts.add(host);
+                }
+                if (!hosts.isEmpty()) lastHost = hosts.get(hosts.size() - 1);
+            } while (hosts.size() == PAGE_SIZE);
+            for (int i = 0; i < allowedHosts.size(); i += DELETE_BATCH_SIZE) {
+                removeHosts(allowedHosts.subList(i, Math.min(i + DELETE_BATCH_SIZE, allowedHosts.size())));
+            }
         }
         for (HostListItem redirectedHost : getEnabledRedirectedHosts()) {
             HostEntry entry = new HostEntry();
@@ -63,9 +88,57 @@ public interface HostEntryDao {
         }
     }
 
+    @Query("DELETE FROM `host_entries` WHERE `host` = :host")
+    void removeHost(String host);
+
+    @Query("INSERT INTO `host_entries` SELECT DISTINCT `host`, `type`, `redirection` FROM `hosts_lists` WHERE `host` = :host AND `type` = 0 AND `enabled` = 1 LIMIT 1")
+    void importBlockedHost(String host);
+
+    @Nullable
+    @Query("SELECT * FROM hosts_lists WHERE host = :host AND type = 2 AND enabled = 1 ORDER BY source_id ASC LIMIT 1")
+    HostListItem getEnabledRedirectedHost(String host);
+
+    /**
+     * Synchronize the host entry of a single host based on the current hosts lists table records,
+     * as {@link #sync()} would.
+     *
+     * @param host The host to synchronize.
+     */
+    default void syncHost(String host) {
+        syncHosts(Collections.singleton(host));
+    }
+
+    /**
+     * Synchronize the host entries of some hosts based on the current hosts lists table records,
+     * as {@link #sync()} would.<br>
+     * It runs in a single transaction so readers never see half synchronized hosts.
+     *
+     * @param hosts The hosts to synchronize.
+     */
+    @Transaction
+    default void syncHosts(Collection<String> hosts) {
+        AllowListMatcher allowList = new AllowListMatcher(getEnabledAllowedHosts());
+        for (String host : hosts) {
+            removeHost(host);
+            importBlockedHost(host);
+            if (allowList.matches(host)) removeHost(host);
+            HostListItem redirectedHost = getEnabledRedirectedHost(host);
+            if (redirectedHost != null) {
+                HostEntry entry = new HostEntry();
+                entry.setHost(redirectedHost.getHost());
+                entry.setType(REDIRECTED);
+                entry.setRedirection(redirectedHost.getRedirection());
+                redirectHost(entry);
+            }
+        }
+    }
+
     @Query("SELECT * FROM `host_entries` ORDER BY `host`")
     List<HostEntry> getAll();
 
+    @Query("SELECT * FROM `host_entries` WHERE `host` > :afterHost ORDER BY `host` LIMIT :count")
+    List<HostEntry> getPage(String afterHost, int count);
+
     @Query("SELECT `type` FROM `host_entries` WHERE `host` == :host LIMIT 1")
     ListType getTypeOfHost(String host);
 
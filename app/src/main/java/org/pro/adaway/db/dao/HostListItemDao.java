@@ -58,5 +58,5 @@ public interface HostListItemDao {
     LiveData<Integer> getRedirectHostCount();
 
     @Query("DELETE FROM hosts_lists WHERE source_id = :sourceId")
-    void clearSourceHosts(int sourceId);
+    int clearSourceHosts(int sourceId);
 }
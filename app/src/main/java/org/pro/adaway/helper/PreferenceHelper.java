@@ -229,6 +229,28 @@ public final class PreferenceHelper {
         editor.apply();
     }
 
+    public static boolean getHostEntriesOutdated(@NonNull final Context context) {
+        final SharedPreferences prefs = context.getSharedPreferences(
+                Constants.PREFS_NAME,
+                Context.MODE_PRIVATE
+        );
+        return prefs.getBoolean(
+                context.getString(R.string.pref_host_entries_outdated_key),
+                context.getResources().getBoolean(R.bool.pref_host_entries_outdated_def)
+        );
+    }
+
+    public static void setHostEntriesOutdated(@NonNull final Context context, final boolean outdated) {
+        final SharedPreferences prefs = context.getApplicationContext().getSharedPreferences(
+                Constants.PREFS_NAME,
+                Context.MODE_PRIVATE
+        );
+        final SharedPreferences.Editor editor = prefs.edit();
+        editor.putBoolean(context.getString(R.string.pref_host_entries_outdated_key), outdated);
+        // Commit synchronously as the flag must be stored before the hosts lists change
+        editor.commit();
+    }
+
     public static boolean getVpnServiceOnBoot(@NonNull final Context context) {
         final SharedPreferences prefs = context.getSharedPreferences(
                 Constants.PREFS_NAME,
@@ -273,6 +295,28 @@ public final class PreferenceHelper {
         );
     }
 
+    public static String getVpnDnsUpstream(@NonNull final Context context) {
+        final SharedPreferences prefs = context.getSharedPreferences(
+                Constants.PREFS_NAME,
+                Context.MODE_PRIVATE
+        );
+        return prefs.getString(
+                context.getString(R.string.pref_vpn_dns_upstream_key),
+                context.getString(R.string.pref_vpn_dns_upstream_default)
+        );
+    }
+
+    public static String getVpnDnsProvider(@NonNull final Context context) {
+        final SharedPreferences prefs = context.getSharedPreferences(
+                Constants.PREFS_NAME,
+                Context.MODE_PRIVATE
+        );
+        return prefs.getString(
+                context.getString(R.string.pref_vpn_dns_provider_key),
+                context.getString(R.string.pref_vpn_dns_provider_default)
+        );
+    }
+
     public static Set<String> getVpnExcludedApps(@NonNull final Context context) {
         final SharedPreferences prefs = context.getSharedPreferences(
                 Constants.PREFS_NAME,
@@ -0,0 +1,134 @@
+package org.pro.adaway.model.source;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is a bounded queue of batches between producer and consumer threads.
+ * <p>
+ * Producers block while the queue is full, so a slow consumer holds the producers back instead of letting
+ * batches pile up in memory. Each producer signals its completion, and consumers get {@code null} once all
+ * producers completed and the queue is drained. The queue can be cancelled to release all threads on failure.
+ *
+ * @param <T> The type of batches.
+ */
+final class BatchQueue<T> {
+    /**
+     * The queued batches.
+     */
+    private final ArrayDeque<T> batches;
+    /**
+     * The maximum number of queued batches.
+     */
+    private final int capacity;
+    /**
+     * The lock guarding the queue state.
+     */
+    private final ReentrantLock lock;
+    /**
+     * The condition signaled when a batch is queued or the queue is completed.
+     */
+    private final Condition notEmpty;
+    /**
+     * The condition signaled when a batch is taken or the queue is cancelled.
+     */
+    private final Condition notFull;
+    /**
+     * The number of producers not completed yet.
+     */
+    private int producerCount;
+    /**
+     * Whether the queue was cancelled.
+     */
+    private boolean cancelled;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity      The maximum number of queued batches.
+     * @param producerCount The number of producers.
+     */
+    BatchQueue(final int capacity, final int producerCount) {
+        this.batches = new ArrayDeque<>(capacity);
+        this.capacity = capacity;
+        this.lock = new ReentrantLock();
+        this.notEmpty = this.lock.newCondition();
+        this.notFull = this.lock.newCondition();
+        this.producerCount = producerCount;
+        this.cancelled = false;
+    }
+
+    /**
+     * Queue a batch, waiting for room if the queue is full.
+     *
+     * @param batch The batch to queue.
+     *
+     * @throws InterruptedException  If interrupted while waiting for room.
+     * @throws CancellationException If the queue was cancelled.
+     */
+    void put(@NonNull final T batch) throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            while (this.batches.size() >= this.capacity && !this.cancelled) this.notFull.await();
+            if (this.cancelled) throw new CancellationException("Batch queue cancelled.");
+            this.batches.add(batch);
+            this.notEmpty.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Take a batch, waiting for one if the queue is empty.
+     *
+     * @return The taken batch, {@code null} if all producers completed and the queue is drained.
+     *
+     * @throws InterruptedException  If interrupted while waiting for a batch.
+     * @throws CancellationException If the queue was cancelled.
+     */
+    @Nullable
+    T take() throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            while (this.batches.isEmpty() && this.producerCount > 0 && !this.cancelled) this.notEmpty.await();
+            if (this.cancelled) throw new CancellationException("Batch queue cancelled.");
+            final T batch = this.batches.poll();
+            if (batch != null) this.notFull.signal();
+            return batch;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Signal a producer completed. Consumers are released once all producers completed.
+     */
+    void complete() {
+        this.lock.lock();
+        try {
+            if (--this.producerCount <= 0) this.notEmpty.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Cancel the queue, releasing all waiting producers and consumers.
+     */
+    void cancel() {
+        this.lock.lock();
+        try {
+            this.cancelled = true;
+            this.batches.clear();
+            this.notEmpty.signalAll();
+            this.notFull.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.pro.adaway.model.source;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class is a reusable tokenizer of hosts file lines, working on the line bytes.
+ * <p>
+ * It splits a line the way the {@code ^\s*([^#\s]+)\s+([^#\s]+).*$} pattern does, into an address and a host
+ * name, without decoding the line nor running a regular expression. Addresses are compared to the known
+ * blocking addresses byte by byte and ASCII host names are validated in place, so only the host name of the
+ * accepted lines are turned into strings. Host names with non-ASCII characters are left to the complete
+ * validation.
+ */
+final class HostsLineTokenizer {
+    /**
+     * The maximum length of a host name, without its trailing dot.
+     */
+    private static final int MAX_HOSTNAME_LENGTH = 253;
+    /**
+     * The maximum number of labels of a host name.
+     */
+    private static final int MAX_LABEL_COUNT = 127;
+    /**
+     * The maximum length of a host name label.
+     */
+    private static final int MAX_LABEL_LENGTH = 63;
+    /**
+     * The line bytes.
+     */
+    private byte[] data;
+    /**
+     * The offset of the address.
+     */
+    private int addressStart;
+    /**
+     * The offset after the address.
+     */
+    private int addressEnd;
+    /**
+     * The offset of the host name.
+     */
+    private int hostStart;
+    /**
+     * The offset after the host name.
+     */
+    private int hostEnd;
+    /**
+     * Whether the host name is only made of ASCII characters.
+     */
+    private boolean asciiHost;
+
+    /**
+     * Tokenize a line.
+     *
+     * @param data  The data holding the line, without line terminator.
+     * @param start The offset of the line.
+     * @param end   The offset after the line.
+     *
+     * @return {@code true} if the line has an address and a host name, {@code false} otherwise.
+     */
+    boolean tokenize(@NonNull final byte[] data, final int start, final int end) {
+        this.data = data;
+        int offset = start;
+        while (offset < end && isWhitespace(data[offset])) offset++;
+        // Read address
+        this.addressStart = offset;
+        while (offset < end && isTokenByte(data[offset])) offset++;
+        this.addressEnd = offset;
+        if (this.addressEnd == this.addressStart) return false;
+        // Skip separator
+        final int separatorStart = offset;
+        while (offset < end && isWhitespace(data[offset])) offset++;
+        if (offset == separatorStart) return false;
+        // Read host name, the rest of the line is ignored
+        this.hostStart = offset;
+        boolean ascii = true;
+        while (offset < end && isTokenByte(data[offset])) {
+            ascii &= data[offset] >= 0;
+            offset++;
+        }
+        this.hostEnd = offset;
+        this.asciiHost = ascii;
+        return this.hostEnd > this.hostStart;
+    }
+
+    /**
+     * Check whether the address is a given one.
+     *
+     * @param address The ASCII address to compare to.
+     *
+     * @return {@code true} if the address is the given one, {@code false} otherwise.
+     */
+    boolean isAddress(@NonNull final String address) {
+        return equals(this.addressStart, this.addressEnd, address);
+    }
+
+    /**
+     * Check whether the host name is a given one.
+     *
+     * @param host The ASCII host name to compare to.
+     *
+     * @return {@code true} if the host name is the given one, {@code false} otherwise.
+     */
+    boolean isHost(@NonNull final String host) {
+        return equals(this.hostStart, this.hostEnd, host);
+    }
+
+    /**
+     * Check whether the host name is made of ASCII characters only.
+     *
+     * @return {@code true} if the host name is made of ASCII characters only, {@code false} otherwise.
+     */
+    boolean isAsciiHost() {
+        return this.asciiHost;
+    }
+
+    /**
+     * Check whether the host name has a wildcard.
+     *
+     * @return {@code true} if the host name has a {@code *} or {@code ?} wildcard, {@code false} otherwise.
+     */
+    boolean hasWildcardHost() {
+        for (int i = this.hostStart; i < this.hostEnd; i++) {
+            if (this.data[i] == '*' || this.data[i] == '?') return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether the ASCII host name is valid, with the {@code InternetDomainName} rules: at most
+     * {@value #MAX_HOSTNAME_LENGTH} characters without the trailing dot, and labels of letters, digits,
+     * dashes and underscores, not starting or ending with a dash or an underscore.
+     * The last label must not start with a digit.
+     *
+     * @return {@code true} if the host name is valid, {@code false} otherwise.
+     */
+    boolean isValidAsciiHost() {
+        int end = this.hostEnd;
+        if (end > this.hostStart && this.data[end - 1] == '.') end--;
+        if (end - this.hostStart > MAX_HOSTNAME_LENGTH) return false;
+        int labelStart = this.hostStart;
+        int labelCount = 1;
+        for (int i = this.hostStart; i < end; i++) {
+            if (this.data[i] == '.') {
+                if (!isValidLabel(labelStart, i, false) || ++labelCount > MAX_LABEL_COUNT) return false;
+                labelStart = i + 1;
+            }
+        }
+        return isValidLabel(labelStart, end, true);
+    }
+
+    /**
+     * Get the address.
+     *
+     * @return The address.
+     */
+    @NonNull
+    String getAddress() {
+        return new String(this.data, this.addressStart, this.addressEnd - this.addressStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the host name.
+     *
+     * @return The host name.
+     */
+    @NonNull
+    String getHost() {
+        return new String(this.data, this.hostStart, this.hostEnd - this.hostStart,
+                this.asciiHost ? StandardCharsets.US_ASCII : StandardCharsets.UTF_8);
+    }
+
+    private boolean isValidLabel(final int start, final int end, final boolean last) {
+        final int length = end - start;
+        if (length < 1 || length > MAX_LABEL_LENGTH) return false;
+        for (int i = start; i < end; i++) {
+            final byte b = this.data[i];
+            if (!(b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || isDigit(b) || isDash(b))) return false;
+        }
+        if (isDash(this.data[start]) || isDash(this.data[end - 1])) return false;
+        return !last || !isDigit(this.data[start]);
+    }
+
+    private boolean equals(final int start, final int end, @NonNull final String value) {
+        if (end - start != value.length()) return false;
+        for (int i = start; i < end; i++) {
+            if (this.data[i] != value.charAt(i - start)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isTokenByte(final byte b) {
+        return b != '#' && !isWhitespace(b);
+    }
+
+    /**
+     * Check whether a byte is a whitespace, as {@code \s} of regular expressions.
+     *
+     * @param b The byte to check.
+     *
+     * @return {@code true} if the byte is a whitespace, {@code false} otherwise.
+     */
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    private static boolean isDigit(final byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isDash(final byte b) {
+        return b == '-' || b == '_';
+    }
+}
@@ -0,0 +1,104 @@
+package org.pro.adaway.model.source;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * This class accumulates the host list item changes of a sources update.
+ * <p>
+ * It tracks the changed hosts while they are few, so the host entries can be synchronized for these hosts only.
+ * Once there are too many, or an allowed host changed, the changes are left untracked and all host entries have
+ * to be synchronized.
+ */
+final class SourceChanges {
+    /**
+     * The maximum number of changed hosts to synchronize one by one.
+     */
+    private static final int MAX_TRACKED_HOSTS = 10_000;
+    /**
+     * The changed hosts, {@code null} if untracked.
+     */
+    @Nullable
+    private Set<String> hosts;
+    /**
+     * The number of added items.
+     */
+    private int addedCount;
+    /**
+     * The number of removed items.
+     */
+    private int removedCount;
+    /**
+     * Whether some items changed.
+     */
+    private boolean changed;
+
+    /**
+     * Constructor.
+     */
+    SourceChanges() {
+        this.hosts = new LinkedHashSet<>();
+        this.addedCount = 0;
+        this.removedCount = 0;
+        this.changed = false;
+    }
+
+    /**
+     * Record the changes of a source.
+     *
+     * @param addedCount   The number of added items.
+     * @param removedCount The number of removed items.
+     * @param hosts        The changed hosts, {@code null} if untracked.
+     */
+    void record(final int addedCount, final int removedCount, @Nullable final Collection<String> hosts) {
+        if (addedCount == 0 && removedCount == 0) return;
+        this.addedCount += addedCount;
+        this.removedCount += removedCount;
+        this.changed = true;
+        if (this.hosts == null) return;
+        if (hosts == null) {
+            this.hosts = null;
+        } else {
+            this.hosts.addAll(hosts);
+            if (this.hosts.size() > MAX_TRACKED_HOSTS) this.hosts = null;
+        }
+    }
+
+    /**
+     * Record untracked changes, like the removal of a whole source.
+     */
+    void recordUntracked() {
+        this.changed = true;
+        this.hosts = null;
+    }
+
+    /**
+     * Check whether some items changed.
+     *
+     * @return {@code true} if some items changed, {@code false} otherwise.
+     */
+    boolean hasChanges() {
+        return this.changed;
+    }
+
+    /**
+     * Get the changed hosts.
+     *
+     * @return The changed hosts, {@code null} if the changes are untracked.
+     */
+    @Nullable
+    Set<String> getHosts() {
+        return this.hosts;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return this.addedCount + " added and " + this.removedCount + " removed items, "
+                + (this.hosts == null ? "untracked" : this.hosts.size() + " changed hosts");
+    }
+}
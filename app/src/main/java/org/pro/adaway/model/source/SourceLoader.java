@@ -14,38 +14,53 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.pro.adaway.BuildConfig;
-import org.pro.adaway.db.dao.HostListItemDao;
+import org.pro.adaway.db.AppDatabase;
+import org.pro.adaway.db.HostListItemBulkLoader;
 import org.pro.adaway.db.entity.HostListItem;
 import org.pro.adaway.db.entity.HostsSource;
 import org.pro.adaway.db.entity.ListType;
 import org.pro.adaway.util.RegexUtils;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.BlockingQueue;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import okio.BufferedSource;
-import okio.Okio;
 
 /**
  * This class is an {@link HostsSource} loader.<br>
  * It parses a source and loads it to database.
+ * <p>
+ * The source is read by chunks of whole lines, parsed by one parser per available core into batches of
+ * items, and diffed against the stored items so only the changes are written, at once. The stages are linked by
+ * bounded queues so a slow stage holds the previous ones back rather than buffering the whole source in memory.
  *
  * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
  */
 class SourceLoader {
     private static final String TAG = "SourceLoader";
-    private static final String END_OF_QUEUE_MARKER = "#EndOfQueueMarker";
-    private static final int INSERT_BATCH_SIZE = 100;
-    private static final String HOSTS_PARSER = "^\\s*([^#\\s]+)\\s+([^#\\s]+).*$";
-    static final Pattern HOSTS_PARSER_PATTERN = Pattern.compile(HOSTS_PARSER);
+    /**
+     * The size of the chunks of lines read from the source, in bytes.
+     */
+    private static final int CHUNK_SIZE = 256 * 1024;
+    /**
+     * The maximum number of parsers.
+     */
+    private static final int MAX_PARSER_COUNT = 8;
+    /**
+     * The number of queued batches per parser, between each stage.
+     */
+    private static final int QUEUED_BATCHES_PER_PARSER = 2;
 
     private final HostsSource source;
 
@@ -53,138 +68,253 @@ class SourceLoader {
         this.source = hostsSource;
     }
 
-    void parse(final InputStream inputStream, @NonNull final HostListItemDao hostListItemDao) {
-        // Clear current hosts
-        hostListItemDao.clearSourceHosts(this.source.getId());
-        // Create batch
-        final int parserCount = 3;
-        final LinkedBlockingQueue<String> hostsLineQueue = new LinkedBlockingQueue<>();
-        final LinkedBlockingQueue<HostListItem> hostsListItemQueue = new LinkedBlockingQueue<>();
-        final SourceReader sourceReader = new SourceReader(inputStream, hostsLineQueue, parserCount);
-        final ItemInserter inserter = new ItemInserter(hostsListItemQueue, hostListItemDao, parserCount);
+    /**
+     * Parse a source and load its items to database.
+     *
+     * @param inputStream The source stream.
+     * @param database    The database to load items to.
+     * @param changes     The changes to record the item changes to.
+     *
+     * @throws IOException If the source could not be read or its items could not be inserted.
+     */
+    void parse(final InputStream inputStream, @NonNull final AppDatabase database, @NonNull final SourceChanges changes) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        // Diff items so the current source items are kept until the whole source is loaded
+        final HostListItemBulkLoader loader = new HostListItemBulkLoader(database, this.source.getId());
+        // Size parsers to the cores left by the reader and the inserter
+        final int parserCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, MAX_PARSER_COUNT));
+        final BatchQueue<Chunk> chunkQueue = new BatchQueue<>(QUEUED_BATCHES_PER_PARSER * parserCount, 1);
+        final BatchQueue<List<HostListItem>> itemQueue = new BatchQueue<>(QUEUED_BATCHES_PER_PARSER * parserCount, parserCount);
         final ExecutorService executorService = Executors.newFixedThreadPool(parserCount + 2, r -> new Thread(r, TAG));
-        executorService.execute(sourceReader);
+        final CompletionService<Integer> completionService = new ExecutorCompletionService<>(executorService);
+        completionService.submit(new SourceReader(inputStream, chunkQueue));
         for (int i = 0; i < parserCount; i++)
-            executorService.execute(new HostListItemParser(this.source, hostsLineQueue, hostsListItemQueue));
-        final Future<Integer> inserterFuture = executorService.submit(inserter);
+            completionService.submit(new HostListItemParser(this.source, chunkQueue, itemQueue));
+        final Future<Integer> inserterFuture = completionService.submit(new ItemInserter(itemQueue, loader));
+        boolean stopped = false;
         try {
-            final Integer inserted = inserterFuture.get();
-            if (BuildConfig.DEBUG)
-                Log.i("AWAISKING_APP", inserted + " host list items inserted.");
+            // Wait for stages in completion order to stop them all at the first failure
+            Throwable failure = null;
+            for (int i = 0; i < parserCount + 2; i++) {
+                try {
+                    completionService.take().get();
+                } catch (final ExecutionException e) {
+                    chunkQueue.cancel();
+                    itemQueue.cancel();
+                    if (failure == null && !(e.getCause() instanceof CancellationException)) failure = e.getCause();
+                }
+            }
+            stopped = true;
+            if (failure != null) throw new IOException("Failed to load hosts source.", failure);
+            // Apply the changes only once all stages succeeded
+            loader.commit();
+            changes.record(loader.getAddedCount(), loader.getRemovedCount(), loader.getChangedHosts());
+            if (BuildConfig.DEBUG) {
+                final int loadedCount = inserterFuture.get();
+                final long duration = Math.max(1, System.currentTimeMillis() - startTime);
+                Log.i("AWAISKING_APP", loadedCount + " host list items loaded with " + parserCount + " parsers ("
+                        + loadedCount * 1000L / duration + " items/s), " + loader.getAddedCount() + " added and "
+                        + loader.getRemovedCount() + " removed.");
+            }
         } catch (final ExecutionException e) {
-            if (BuildConfig.DEBUG)
-                Log.w("AWAISKING_APP", "Failed to parse hosts sources.", e);
+            throw new IOException("Failed to load hosts source.", e.getCause());
         } catch (final InterruptedException e) {
             if (BuildConfig.DEBUG)
                 Log.w("AWAISKING_APP", "Interrupted while parsing sources.", e);
+            chunkQueue.cancel();
+            itemQueue.cancel();
             Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing hosts source.");
+        } finally {
+            executorService.shutdown();
+            // Staged items of interrupted loads are left to the next load as the inserter may still use them
+            if (stopped) loader.close();
         }
-        executorService.shutdown();
     }
 
-    private static class SourceReader implements Runnable {
+    /**
+     * This class is a chunk of whole source lines.
+     */
+    private static final class Chunk {
+        /**
+         * The chunk data.
+         */
+        private final byte[] data;
+        /**
+         * The length of the lines in the data.
+         */
+        private final int length;
+
+        /**
+         * Constructor.
+         *
+         * @param data   The chunk data.
+         * @param length The length of the lines in the data.
+         */
+        private Chunk(final byte[] data, final int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private static class SourceReader implements Callable<Integer> {
         private final InputStream inputStream;
-        private final BlockingQueue<String> queue;
-        private final int parserCount;
+        private final BatchQueue<Chunk> queue;
 
-        private SourceReader(final InputStream inputStream, final BlockingQueue<String> queue, final int parserCount) {
+        private SourceReader(final InputStream inputStream, final BatchQueue<Chunk> queue) {
             this.inputStream = inputStream;
             this.queue = queue;
-            this.parserCount = parserCount;
         }
 
+        /**
+         * Read the source into chunks.
+         *
+         * @return The number of read chunks.
+         *
+         * @throws IOException          If the source could not be read.
+         * @throws InterruptedException If interrupted while waiting for queue room.
+         */
+        @NonNull
         @Override
-        public void run() {
-            try (final BufferedSource bufferedSource = Okio.buffer(Okio.source(inputStream))) {
+        public Integer call() throws IOException, InterruptedException {
+            try {
+                byte[] data = new byte[CHUNK_SIZE];
+                int length = 0;
+                int chunkCount = 0;
                 while (true) {
-                    final String line = bufferedSource.readUtf8Line();
-                    if (line == null) break;
-                    this.queue.add(line);
+                    final int read = this.inputStream.read(data, length, data.length - length);
+                    if (read == -1) break;
+                    length += read;
+                    if (length < data.length) continue;
+                    // Queue the whole lines and move the partial last line to the next chunk
+                    int lineEnd = length;
+                    while (lineEnd > 0 && data[lineEnd - 1] != '\n') lineEnd--;
+                    if (lineEnd == 0) {
+                        // Grow the chunk for lines longer than a chunk
+                        data = Arrays.copyOf(data, data.length * 2);
+                        continue;
+                    }
+                    final byte[] nextData = new byte[CHUNK_SIZE + length - lineEnd];
+                    System.arraycopy(data, lineEnd, nextData, 0, length - lineEnd);
+                    this.queue.put(new Chunk(data, lineEnd));
+                    chunkCount++;
+                    data = nextData;
+                    length -= lineEnd;
                 }
-            } catch (final Throwable t) {
-                if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to read hosts source.", t);
+                if (length > 0) {
+                    this.queue.put(new Chunk(data, length));
+                    chunkCount++;
+                }
+                return chunkCount;
             } finally {
-                // Send end of queue marker to parsers
-                for (int i = 0; i < this.parserCount; i++)
-                    this.queue.add(END_OF_QUEUE_MARKER);
+                this.queue.complete();
             }
         }
     }
 
-    private static class HostListItemParser implements Runnable {
+    private static class HostListItemParser implements Callable<Integer> {
         private final HostsSource source;
-        private final BlockingQueue<String> lineQueue;
-        private final BlockingQueue<HostListItem> itemQueue;
+        private final BatchQueue<Chunk> chunkQueue;
+        private final BatchQueue<List<HostListItem>> itemQueue;
+        /**
+         * The tokenizer of the parsed lines.
+         */
+        private final HostsLineTokenizer tokenizer;
 
-        private HostListItemParser(final HostsSource source, final BlockingQueue<String> lineQueue, final BlockingQueue<HostListItem> itemQueue) {
+        private HostListItemParser(final HostsSource source, final BatchQueue<Chunk> chunkQueue, final BatchQueue<List<HostListItem>> itemQueue) {
             this.source = source;
-            this.lineQueue = lineQueue;
+            this.chunkQueue = chunkQueue;
             this.itemQueue = itemQueue;
+            this.tokenizer = new HostsLineTokenizer();
         }
 
+        /**
+         * Parse chunks into batches of items.
+         *
+         * @return The number of parsed items.
+         *
+         * @throws InterruptedException If interrupted while waiting for chunks or queue room.
+         */
+        @NonNull
         @Override
-        public void run() {
-            final boolean allowedList = this.source.isAllowEnabled();
-            boolean endOfSource = false;
-            while (!endOfSource) {
-                try {
-                    final String line = this.lineQueue.take();
-                    // Check end of queue marker
-                    // noinspection StringEquality
-                    if (line == END_OF_QUEUE_MARKER) {
-                        endOfSource = true;
-                        // Send end of queue marker to inserter
-                        final HostListItem endItem = new HostListItem();
-                        endItem.setHost(line);
-                        this.itemQueue.add(endItem);
-                    } // Check comments
-                    else if (line.isEmpty() || line.charAt(0) == '#') {
-                        if (BuildConfig.DEBUG)
-                            Log.d("AWAISKING_APP", "Skip comment: " + line);
-                    } else {
-                        final HostListItem item = allowedList ? parseAllowListItem(line) : parseHostListItem(line);
-                        if (item != null && isRedirectionValid(item) && isHostValid(item))
-                            this.itemQueue.add(item);
+        public Integer call() throws InterruptedException {
+            try {
+                final boolean allowedList = this.source.isAllowEnabled();
+                int parsedCount = 0;
+                Chunk chunk;
+                while ((chunk = this.chunkQueue.take()) != null) {
+                    final byte[] data = chunk.data;
+                    final List<HostListItem> items = new ArrayList<>();
+                    int lineStart = 0;
+                    while (lineStart < chunk.length) {
+                        int lineEnd = lineStart;
+                        while (lineEnd < chunk.length && data[lineEnd] != '\n') lineEnd++;
+                        final int nextLineStart = lineEnd + 1;
+                        // Strip the carriage return of CRLF line endings
+                        if (lineEnd < chunk.length && lineEnd > lineStart && data[lineEnd - 1] == '\r') lineEnd--;
+                        // Check comments
+                        if (lineEnd == lineStart || data[lineStart] == '#') {
+                            if (BuildConfig.DEBUG)
+                                Log.d("AWAISKING_APP", "Skip comment: " + decode(data, lineStart, lineEnd));
+                        } else if (allowedList) {
+                            final HostListItem item = parseAllowListItem(decode(data, lineStart, lineEnd));
+                            if (isHostValid(item)) items.add(item);
+                        } else {
+                            final HostListItem item = parseHostListItem(data, lineStart, lineEnd);
+                            if (item != null) items.add(item);
+                        }
+                        lineStart = nextLineStart;
                     }
-                } catch (final InterruptedException e) {
-                    if (BuildConfig.DEBUG)
-                        Log.w("AWAISKING_APP", "Interrupted while parsing hosts list item.", e);
-                    endOfSource = true;
-                    Thread.currentThread().interrupt();
+                    if (!items.isEmpty()) this.itemQueue.put(items);
+                    parsedCount += items.size();
                 }
+                return parsedCount;
+            } finally {
+                this.itemQueue.complete();
             }
         }
 
+        /**
+         * Parse a hosts line.<br>
+         * The line is tokenized as bytes and only the host name of valid items is decoded.
+         *
+         * @param data  The data holding the line.
+         * @param start The offset of the line.
+         * @param end   The offset after the line.
+         *
+         * @return The parsed item, {@code null} if the line is not a valid hosts line.
+         */
         @Nullable
-        private HostListItem parseHostListItem(final String line) {
-            final Matcher matcher = HOSTS_PARSER_PATTERN.matcher(line);
-            if (matcher.matches()) {
-                // Check IP address validity or while list entry (if allowed)
-                final String ip = matcher.group(1);
-                final String hostname = matcher.group(2);
-                assert hostname != null;
-                // Skip localhost name
-                if (LOCALHOST_HOSTNAME.equals(hostname)) return null;
-                // check if ip is 127.0.0.1 or 0.0.0.0
-                final ListType type;
-                if (LOCALHOST_IPV4.equals(ip) || BOGUS_IPV4.equals(ip) || LOCALHOST_IPV6.equals(ip))
-                    type = BLOCKED;
-                else if (this.source.isRedirectEnabled())
-                    type = REDIRECTED;
-                else
-                    return null;
-
-                final HostListItem item = new HostListItem();
-                item.setType(type);
-                item.setHost(hostname);
-                item.setEnabled(true);
-                if (type == REDIRECTED) item.setRedirection(ip);
-                item.setSourceId(this.source.getId());
-                return item;
-            } else {
-                if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "Does not match: " + line);
+        private HostListItem parseHostListItem(@NonNull final byte[] data, final int start, final int end) {
+            final HostsLineTokenizer tokenizer = this.tokenizer;
+            if (!tokenizer.tokenize(data, start, end)) {
+                if (BuildConfig.DEBUG)
+                    Log.d("AWAISKING_APP", "Does not match: " + decode(data, start, end));
                 return null;
             }
+            // Skip localhost name
+            if (tokenizer.isHost(LOCALHOST_HOSTNAME)) return null;
+            // check if ip is 127.0.0.1 or 0.0.0.0
+            final ListType type;
+            if (tokenizer.isAddress(LOCALHOST_IPV4) || tokenizer.isAddress(BOGUS_IPV4) || tokenizer.isAddress(LOCALHOST_IPV6))
+                type = BLOCKED;
+            else if (this.source.isRedirectEnabled())
+                type = REDIRECTED;
+            else
+                return null;
+            // Check host name validity, with the fast validator for common host names
+            if (type == BLOCKED && tokenizer.hasWildcardHost()) return null;
+            final boolean fastValidation = type == BLOCKED && tokenizer.isAsciiHost();
+            if (fastValidation && !tokenizer.isValidAsciiHost()) return null;
+
+            final HostListItem item = new HostListItem();
+            item.setType(type);
+            item.setHost(tokenizer.getHost());
+            item.setEnabled(true);
+            if (type == REDIRECTED) item.setRedirection(tokenizer.getAddress());
+            item.setSourceId(this.source.getId());
+            if (!fastValidation && !(isRedirectionValid(item) && isHostValid(item))) return null;
+            return item;
         }
 
         @NonNull
@@ -215,56 +345,32 @@ class SourceLoader {
             }
             return RegexUtils.isValidWildcardHostname(hostname);
         }
+
+        @NonNull
+        private static String decode(@NonNull final byte[] data, final int start, final int end) {
+            return new String(data, start, end - start, StandardCharsets.UTF_8);
+        }
     }
 
     private static class ItemInserter implements Callable<Integer> {
-        private final BlockingQueue<HostListItem> hostListItemQueue;
-        private final HostListItemDao hostListItemDao;
-        private final int parserCount;
+        private final BatchQueue<List<HostListItem>> itemQueue;
+        private final HostListItemBulkLoader loader;
 
-        private ItemInserter(final BlockingQueue<HostListItem> itemQueue, final HostListItemDao hostListItemDao, final int parserCount) {
-            this.hostListItemQueue = itemQueue;
-            this.hostListItemDao = hostListItemDao;
-            this.parserCount = parserCount;
+        private ItemInserter(final BatchQueue<List<HostListItem>> itemQueue, final HostListItemBulkLoader loader) {
+            this.itemQueue = itemQueue;
+            this.loader = loader;
         }
 
         @NonNull
         @Override
-        public Integer call() {
+        public Integer call() throws InterruptedException {
             int inserted = 0;
-            int workerStopped = 0;
-            final HostListItem[] batch = new HostListItem[INSERT_BATCH_SIZE];
-            int cacheSize = 0;
-            boolean queueEmptied = false;
-            while (!queueEmptied) {
-                try {
-                    final HostListItem item = this.hostListItemQueue.take();
-                    // Check end of queue marker
-                    // noinspection StringEquality
-                    if (item.getHost() == END_OF_QUEUE_MARKER) {
-                        workerStopped++;
-                        if (workerStopped >= this.parserCount) queueEmptied = true;
-                    } else {
-                        batch[cacheSize++] = item;
-                        if (cacheSize >= batch.length) {
-                            this.hostListItemDao.insert(batch);
-                            cacheSize = 0;
-                            inserted += cacheSize;
-                        }
-                    }
-                } catch (final InterruptedException e) {
-                    if (BuildConfig.DEBUG)
-                        Log.w("AWAISKING_APP", "Interrupted while inserted hosts list item.", e);
-                    queueEmptied = true;
-                    Thread.currentThread().interrupt();
-                }
+            List<HostListItem> items;
+            while ((items = this.itemQueue.take()) != null) {
+                this.loader.insert(items);
+                inserted += items.size();
             }
-            // Flush current batch
-            final HostListItem[] remaining = new HostListItem[cacheSize];
-            System.arraycopy(batch, 0, remaining, 0, remaining.length);
-            this.hostListItemDao.insert(remaining);
-            inserted += cacheSize;
-            // Return number of inserted items
+            // Return number of loaded items
             return inserted;
         }
     }
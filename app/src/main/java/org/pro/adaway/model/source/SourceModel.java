@@ -27,9 +27,12 @@ import org.pro.adaway.db.entity.HostEntry;
 import org.pro.adaway.db.entity.HostListItem;
 import org.pro.adaway.db.entity.HostsSource;
 import org.pro.adaway.db.entity.SourceType;
+import org.pro.adaway.helper.PreferenceHelper;
 import org.pro.adaway.model.error.HostError;
 import org.pro.adaway.model.error.HostErrorException;
 import org.pro.adaway.model.git.GitHostsSource;
+import org.pro.adaway.model.vpn.HostBloomFilter;
+import org.pro.adaway.model.vpn.HostEntrySnapshot;
 import org.threeten.bp.ZonedDateTime;
 import org.threeten.bp.format.DateTimeFormatter;
 import org.threeten.bp.format.DateTimeParseException;
@@ -42,6 +45,7 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 import okhttp3.Cache;
 import okhttp3.OkHttpClient;
@@ -67,6 +71,10 @@ public class SourceModel {
      * The application context.
      */
     private final Context context;
+    /**
+     * The application database.
+     */
+    private final AppDatabase database;
     /**
      * The {@link HostsSource} DAO.
      */
@@ -104,6 +112,7 @@ public class SourceModel {
     public SourceModel(final Context context) {
         final AppDatabase database = AppDatabase.getInstance(context);
         this.context = context;
+        this.database = database;
         this.hostsSourceDao = database.hostsSourceDao();
         this.hostListItemDao = database.hostsListItemDao();
         this.hostEntryDao = database.hostEntryDao();
@@ -323,6 +332,11 @@ public class SourceModel {
         int numberOfCopies = 0;
         int numberOfFailedCopies = 0;
 
+        // Initialize host list item changes, flagging host entries as outdated until synchronized
+        final SourceChanges changes = new SourceChanges();
+        if (PreferenceHelper.getHostEntriesOutdated(this.context)) changes.recordUntracked();
+        else PreferenceHelper.setHostEntriesOutdated(this.context, true);
+
         // Compute current date in UTC timezone
         final ZonedDateTime now = ZonedDateTime.now();
 
@@ -332,7 +346,7 @@ public class SourceModel {
 
             // Clear disabled source
             if (!source.isEnabled()) {
-                this.hostListItemDao.clearSourceHosts(sourceId);
+                if (this.hostListItemDao.clearSourceHosts(sourceId) > 0) changes.recordUntracked();
                 this.hostsSourceDao.clearProperties(sourceId);
                 continue;
             }
@@ -355,9 +369,9 @@ public class SourceModel {
                 // Check hosts source type
                 final SourceType type = source.getType();
                 if (type == SourceType.URL)
-                    downloadHostSource(source);
+                    downloadHostSource(source, changes);
                 else if (type == SourceType.FILE)
-                    readSourceFile(source);
+                    readSourceFile(source, changes);
                 else if (BuildConfig.DEBUG)
                     Log.w("AWAISKING_APP", "Hosts source type [" + source.getType() + "] is not supported.");
 
@@ -379,8 +393,15 @@ public class SourceModel {
         if (numberOfCopies == numberOfFailedCopies && numberOfCopies != 0)
             throw new HostErrorException(HostError.DOWNLOAD_FAILED);
 
-        // Synchronize hosts entries
-        syncHostEntries();
+        // Synchronize hosts entries, only for the changed hosts if they are known
+        if (BuildConfig.DEBUG) Log.i("AWAISKING_APP", "Sources update: " + changes);
+        if (changes.hasChanges()) {
+            final Set<String> changedHosts = changes.getHosts();
+            if (changedHosts == null) syncHostEntries();
+            else syncHostEntries(changedHosts);
+        } else {
+            PreferenceHelper.setHostEntriesOutdated(this.context, false);
+        }
 
         // Mark no update available
         this.updateAvailable.postValue(false);
@@ -392,6 +413,24 @@ public class SourceModel {
     public void syncHostEntries() {
         setState(R.string.status_sync_database);
         this.hostEntryDao.sync();
+        PreferenceHelper.setHostEntriesOutdated(this.context, false);
+        HostEntrySnapshot.write(this.context, this.hostEntryDao);
+        HostBloomFilter.write(this.context, this.hostEntryDao);
+    }
+
+    /**
+     * Synchronize hosts entries of some hosts from current source states.<br>
+     * The snapshot is patched with the entries of these hosts only and the filter is rebuilt from it,
+     * without reading all the host entries.
+     *
+     * @param hosts The hosts to synchronize.
+     */
+    private void syncHostEntries(@NonNull final Set<String> hosts) {
+        setState(R.string.status_sync_database);
+        this.hostEntryDao.syncHosts(hosts);
+        PreferenceHelper.setHostEntriesOutdated(this.context, false);
+        HostEntrySnapshot.update(this.context, this.hostEntryDao, hosts);
+        HostBloomFilter.write(this.context, this.hostEntryDao);
     }
 
     /**
@@ -433,11 +472,12 @@ public class SourceModel {
     /**
      * Download an hosts source file and append it to the database.
      *
-     * @param source The hosts source to download.
+     * @param source  The hosts source to download.
+     * @param changes The changes to record the item changes to.
      *
      * @throws IOException If the hosts source could not be downloaded.
      */
-    private void downloadHostSource(@NonNull final HostsSource source) throws IOException {
+    private void downloadHostSource(@NonNull final HostsSource source, @NonNull final SourceChanges changes) throws IOException {
         // Get hosts file URL
         final String hostsFileUrl = source.getUrl();
         if (BuildConfig.DEBUG)
@@ -459,16 +499,16 @@ public class SourceModel {
                 return;
             }
 
-            // Extract ETag if present
+            // Parse source
+            parseSourceInputStream(source, inputStream, changes);
+
+            // Extract ETag if present, once the source is loaded so a failed load is fetched again
             String entityTag = response.header(ENTITY_TAG_HEADER);
             if (entityTag != null) {
                 if (entityTag.startsWith(WEAK_ENTITY_TAG_PREFIX))
                     entityTag = entityTag.substring(WEAK_ENTITY_TAG_PREFIX.length());
                 this.hostsSourceDao.updateEntityTag(source.getId(), entityTag);
             }
-
-            // Parse source
-            parseSourceInputStream(source, inputStream);
         } catch (final IOException e) {
             throw new IOException("Exception while downloading hosts file from " + hostsFileUrl + ".", e);
         }
@@ -478,10 +518,11 @@ public class SourceModel {
      * Read a hosts source file and append it to the database.
      *
      * @param hostsSource The hosts source to copy.
+     * @param changes     The changes to record the item changes to.
      *
      * @throws IOException If the hosts source could not be copied.
      */
-    private void readSourceFile(@NonNull final HostsSource hostsSource) throws IOException {
+    private void readSourceFile(@NonNull final HostsSource hostsSource, @NonNull final SourceChanges changes) throws IOException {
         // Get hosts file URI
         final String hostsFileUrl = hostsSource.getUrl();
         if (BuildConfig.DEBUG)
@@ -492,7 +533,7 @@ public class SourceModel {
 
         // Start reading hosts source
         try (final InputStream inputStream = this.context.getContentResolver().openInputStream(Uri.parse(hostsFileUrl))) {
-            parseSourceInputStream(hostsSource, inputStream);
+            parseSourceInputStream(hostsSource, inputStream, changes);
         } catch (final IOException e) {
             throw new IOException("Error while reading hosts file from " + hostsFileUrl + ".", e);
         }
@@ -503,11 +544,15 @@ public class SourceModel {
      *
      * @param hostsSource The host source to parse.
      * @param inputStream The host source reader.
+     * @param changes     The changes to record the item changes to.
+     *
+     * @throws IOException If the host source could not be read or stored.
      */
-    private void parseSourceInputStream(@NonNull final HostsSource hostsSource, final InputStream inputStream) {
+    private void parseSourceInputStream(@NonNull final HostsSource hostsSource, final InputStream inputStream,
+                                        @NonNull final SourceChanges changes) throws IOException {
         setState(R.string.status_parse_source, hostsSource.getLabel());
         final long startTime = System.currentTimeMillis();
-        new SourceLoader(hostsSource).parse(inputStream, this.hostListItemDao);
+        new SourceLoader(hostsSource).parse(inputStream, this.database, changes);
         final long endTime = System.currentTimeMillis();
         if (BuildConfig.DEBUG)
             Log.i("AWAISKING_APP", "Parsed " + hostsSource.getUrl() + " in " + (endTime - startTime) / 1000 + "s");
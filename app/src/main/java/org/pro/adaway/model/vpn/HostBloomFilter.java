@@ -0,0 +1,287 @@
+package org.pro.adaway.model.vpn;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.pro.adaway.BuildConfig;
+import org.pro.adaway.db.dao.HostEntryDao;
+import org.pro.adaway.db.entity.HostEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * This class is a Bloom filter of the {@link HostEntry} host names.
+ * <p>
+ * It answers whether a host is definitely not listed, without any database access nor allocation, so the
+ * common case of hosts without entry skips both the host entry index and the cache.
+ * A positive answer may be a false positive and must be confirmed by an actual lookup.
+ */
+public final class HostBloomFilter {
+    /**
+     * The filter file name.
+     */
+    private static final String FILE_NAME = "host_entries.bloom";
+    /**
+     * The filter file magic number ("AABF").
+     */
+    private static final int MAGIC = 0x41414246;
+    /**
+     * The filter file format version.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The filter file header size, in bytes.
+     */
+    private static final int HEADER_SIZE = 20;
+    /**
+     * The number of host entries to read from database at once.
+     */
+    private static final int PAGE_SIZE = 10_000;
+    /**
+     * The number of bits per host entry, giving a false positive rate below 1%.
+     */
+    private static final int BITS_PER_ENTRY = 10;
+    /**
+     * The number of hash functions, optimal for {@link #BITS_PER_ENTRY}.
+     */
+    private static final int HASH_COUNT = 7;
+    /**
+     * The filter bits.
+     */
+    private final long[] bits;
+    /**
+     * The number of filter bits.
+     */
+    private final long bitCount;
+    /**
+     * The number of hash functions.
+     */
+    private final int hashCount;
+    /**
+     * The number of host names added to the filter.
+     */
+    private final int size;
+
+    private HostBloomFilter(final long[] bits, final int hashCount, final int size) {
+        this.bits = bits;
+        this.bitCount = (long) bits.length * Long.SIZE;
+        this.hashCount = hashCount;
+        this.size = size;
+    }
+
+    /**
+     * Build the filter from all the host entries of the database.
+     *
+     * @param hostEntryDao The host entry DAO to read entries from.
+     *
+     * @return The built filter.
+     */
+    @NonNull
+    static HostBloomFilter build(@NonNull final HostEntryDao hostEntryDao) {
+        // Count entries to size the filter
+        int count = 0;
+        String lastHost = "";
+        List<HostEntry> page;
+        do {
+            page = hostEntryDao.getPage(lastHost, PAGE_SIZE);
+            count += page.size();
+            if (!page.isEmpty()) lastHost = page.get(page.size() - 1).getHost();
+        } while (page.size() == PAGE_SIZE);
+        // Add host names
+        final HostBloomFilter filter = create(count);
+        lastHost = "";
+        do {
+            page = hostEntryDao.getPage(lastHost, PAGE_SIZE);
+            for (final HostEntry entry : page) filter.add(entry.getHost());
+            if (!page.isEmpty()) lastHost = page.get(page.size() - 1).getHost();
+        } while (page.size() == PAGE_SIZE);
+        return filter;
+    }
+
+    /**
+     * Build the filter from the host names of a host entry index, without database access.
+     *
+     * @param index The host entry index to read host names from.
+     *
+     * @return The built filter.
+     */
+    @NonNull
+    static HostBloomFilter build(@NonNull final HostEntryIndex index) {
+        // The index knows its size so a single pass is enough
+        final HostBloomFilter filter = create(index.size());
+        index.forEachHost(filter::add);
+        return filter;
+    }
+
+    @NonNull
+    private static HostBloomFilter create(final int count) {
+        final long wordCount = Math.max(1, ((long) count * BITS_PER_ENTRY + Long.SIZE - 1) / Long.SIZE);
+        return new HostBloomFilter(new long[(int) wordCount], HASH_COUNT, count);
+    }
+
+    /**
+     * Get the filter file.
+     *
+     * @param context The application context.
+     *
+     * @return The filter file.
+     */
+    @NonNull
+    static File getFile(@NonNull final Context context) {
+        return new File(context.getNoBackupFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Read the filter file.
+     *
+     * @param context The application context.
+     *
+     * @return The read filter, {@code null} if there is no valid filter.
+     */
+    @Nullable
+    static HostBloomFilter open(@NonNull final Context context) {
+        final File file = getFile(context);
+        if (!file.isFile()) return null;
+        try (final DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) return null;
+            final int size = inputStream.readInt();
+            final int hashCount = inputStream.readInt();
+            final int wordCount = inputStream.readInt();
+            if (size < 0 || hashCount <= 0 || wordCount <= 0 || (long) wordCount * (Long.SIZE / Byte.SIZE) + HEADER_SIZE != file.length()) {
+                return null;
+            }
+            final long[] bits = new long[wordCount];
+            for (int i = 0; i < wordCount; i++) bits[i] = inputStream.readLong();
+            return new HostBloomFilter(bits, hashCount, size);
+        } catch (final IOException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to read host filter.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Build and write the filter of the current host entries.<br>
+     * The filter is written to a temporary file then renamed.
+     * Host names are read from the host entry snapshot if there is one, so it must be written first.
+     * On failure, the previous filter is deleted so it is never used with outdated entries.
+     *
+     * @param context      The application context.
+     * @param hostEntryDao The host entry DAO to read entries from.
+     */
+    public static void write(@NonNull final Context context, @NonNull final HostEntryDao hostEntryDao) {
+        final File file = getFile(context);
+        final File temporaryFile = new File(file.getPath() + ".tmp");
+        try {
+            // Read host names from the snapshot if any, rather than scanning the database twice
+            final HostEntrySnapshot snapshot = HostEntrySnapshot.open(context);
+            final HostBloomFilter filter = snapshot == null ? build(hostEntryDao) : build(snapshot);
+            try (final FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+                 final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream))) {
+                outputStream.writeInt(MAGIC);
+                outputStream.writeInt(VERSION);
+                outputStream.writeInt(filter.size);
+                outputStream.writeInt(filter.hashCount);
+                outputStream.writeInt(filter.bits.length);
+                for (final long word : filter.bits) outputStream.writeLong(word);
+                outputStream.flush();
+                fileOutputStream.getFD().sync();
+            }
+            if (!temporaryFile.renameTo(file)) throw new IOException("Failed to rename " + temporaryFile);
+            if (BuildConfig.DEBUG)
+                Log.d("AWAISKING_APP", "Host filter written: " + filter.getSizeInBytes() + " bytes, false positive rate: "
+                        + 100D * filter.getFalsePositiveRate() + "%");
+        } catch (final IOException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to write host filter.", e);
+            //noinspection ResultOfMethodCallIgnored
+            temporaryFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * Check whether a host might be listed.
+     *
+     * @param host The lower case host name to check.
+     *
+     * @return {@code false} if the host is definitely not listed, {@code true} if it might be.
+     */
+    public boolean mightContain(@NonNull final CharSequence host) {
+        final long hash = hash(host);
+        final int hash1 = (int) hash;
+        final int hash2 = (int) (hash >>> 32);
+        for (int i = 0; i < this.hashCount; i++) {
+            final long bit = index(hash1 + i * hash2);
+            if ((this.bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of host names in the filter.
+     *
+     * @return The number of host names in the filter.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Get the filter size.
+     *
+     * @return The filter size, in bytes.
+     */
+    public long getSizeInBytes() {
+        return (long) this.bits.length * (Long.SIZE / Byte.SIZE);
+    }
+
+    /**
+     * Get the expected false positive rate of the filter.
+     *
+     * @return The expected false positive rate, between {@code 0} and {@code 1}.
+     */
+    public double getFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) this.hashCount * this.size / this.bitCount), this.hashCount);
+    }
+
+    private void add(@NonNull final CharSequence host) {
+        final long hash = hash(host);
+        final int hash1 = (int) hash;
+        final int hash2 = (int) (hash >>> 32);
+        for (int i = 0; i < this.hashCount; i++) {
+            final long bit = index(hash1 + i * hash2);
+            this.bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private long index(final int hash) {
+        // Map the hash to the bit range without modulo
+        return ((hash & 0xFFFFFFFFL) * this.bitCount) >>> 32;
+    }
+
+    private static long hash(@NonNull final CharSequence host) {
+        // FNV-1a then MurmurHash3 finalizer
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0, length = host.length(); i < length; i++) {
+            hash ^= host.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
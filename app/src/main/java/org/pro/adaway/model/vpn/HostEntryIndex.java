@@ -0,0 +1,73 @@
+package org.pro.adaway.model.vpn;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.pro.adaway.db.entity.HostEntry;
+import org.pro.adaway.db.entity.ListType;
+
+/**
+ * This interface is a read-only index of the {@link HostEntry} records, used to answer VPN lookups without
+ * database access.
+ */
+interface HostEntryIndex {
+    /**
+     * The entry index returned when a host is not found.
+     */
+    int NOT_FOUND = -1;
+
+    /**
+     * Find the entry of a host.
+     *
+     * @param host The lower case host name to look for.
+     *
+     * @return The index of the host entry, {@link #NOT_FOUND} if the host has no entry.
+     */
+    int find(@NonNull CharSequence host);
+
+    /**
+     * Get the type of a found entry.
+     *
+     * @param entry The entry index returned by {@link #find(CharSequence)}.
+     *
+     * @return The type of the entry.
+     */
+    @NonNull
+    ListType getType(int entry);
+
+    /**
+     * Get the redirection of a found entry.
+     *
+     * @param entry The entry index returned by {@link #find(CharSequence)}.
+     *
+     * @return The redirection of the entry, {@code null} if the entry is not a redirection.
+     */
+    @Nullable
+    String getRedirection(int entry);
+
+    /**
+     * Get the number of entries.
+     *
+     * @return The number of entries.
+     */
+    int size();
+
+    /**
+     * Visit the host names of all the entries.
+     *
+     * @param visitor The visitor to call for each host name.
+     */
+    void forEachHost(@NonNull HostVisitor visitor);
+
+    /**
+     * This interface is a visitor of the indexed host names.
+     */
+    interface HostVisitor {
+        /**
+         * Visit an indexed host name.
+         *
+         * @param host The host name, only valid during the call as it may be reused for the next one.
+         */
+        void visit(@NonNull CharSequence host);
+    }
+}
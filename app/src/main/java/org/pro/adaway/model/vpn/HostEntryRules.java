@@ -0,0 +1,179 @@
+package org.pro.adaway.model.vpn;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.pro.adaway.db.entity.HostEntry;
+import org.pro.adaway.db.entity.ListType;
+import org.pro.adaway.util.AllowListMatcher;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is an immutable set of the rules used to answer VPN lookups: the host entry index, its filter,
+ * the allowed host patterns and the entries of the hosts edited since the index was built.
+ * <p>
+ * Rules are never modified once published. Changes create a new instance, so the VPN worker can keep reading
+ * the previous one until the new one replaces it with a single reference swap.
+ */
+final class HostEntryRules {
+    /**
+     * The host entry index.
+     */
+    @NonNull
+    final HostEntryIndex index;
+    /**
+     * The filter of the hosts of the index.
+     */
+    @NonNull
+    final HostBloomFilter filter;
+    /**
+     * The allowed host patterns.
+     */
+    @NonNull
+    final AllowListMatcher allowList;
+    /**
+     * The entries of the edited hosts, by lower case host name, overriding the index.
+     */
+    @NonNull
+    private final Map<String, HostEntry> overrides;
+    /**
+     * The sorted hash codes of the edited hosts, to look up overrides without creating host name strings.
+     */
+    @NonNull
+    private final int[] overrideHashes;
+    /**
+     * The shared entries answered from the index, by type, for entries without redirection.
+     */
+    @NonNull
+    private final HostEntry[] typeEntries;
+    /**
+     * The shared entries answered from the index, by redirection, created on first use.
+     */
+    @NonNull
+    private final Map<String, HostEntry> redirectionEntries;
+
+    /**
+     * Constructor.
+     *
+     * @param index     The host entry index.
+     * @param filter    The filter of the hosts of the index.
+     * @param allowList The allowed host patterns.
+     */
+    HostEntryRules(@NonNull final HostEntryIndex index, @NonNull final HostBloomFilter filter,
+                   @NonNull final AllowListMatcher allowList) {
+        this(index, filter, allowList, Collections.emptyMap(), new int[0], createTypeEntries(), new ConcurrentHashMap<>());
+    }
+
+    private HostEntryRules(@NonNull final HostEntryIndex index, @NonNull final HostBloomFilter filter,
+                           @NonNull final AllowListMatcher allowList, @NonNull final Map<String, HostEntry> overrides,
+                           @NonNull final int[] overrideHashes, @NonNull final HostEntry[] typeEntries,
+                           @NonNull final Map<String, HostEntry> redirectionEntries) {
+        this.index = index;
+        this.filter = filter;
+        this.allowList = allowList;
+        this.overrides = overrides;
+        this.overrideHashes = overrideHashes;
+        this.typeEntries = typeEntries;
+        this.redirectionEntries = redirectionEntries;
+    }
+
+    /**
+     * Create rules with the entry of an edited host.
+     *
+     * @param host  The lower case edited host name.
+     * @param entry The new host entry, with a {@code null} type if the host no longer has an entry.
+     *
+     * @return The new rules.
+     */
+    @NonNull
+    HostEntryRules withOverride(@NonNull final String host, @NonNull final HostEntry entry) {
+        // Copy on write as user edits are few
+        final Map<String, HostEntry> overrides = new HashMap<>(this.overrides);
+        overrides.put(host, entry);
+        final int[] overrideHashes = new int[overrides.size()];
+        int position = 0;
+        for (final String overriddenHost : overrides.keySet()) overrideHashes[position++] = overriddenHost.hashCode();
+        Arrays.sort(overrideHashes);
+        return new HostEntryRules(this.index, this.filter, this.allowList, Collections.unmodifiableMap(overrides),
+                overrideHashes, this.typeEntries, this.redirectionEntries);
+    }
+
+    /**
+     * Check whether some hosts were edited since the index was built.
+     *
+     * @return {@code true} if some hosts were edited, {@code false} otherwise.
+     */
+    boolean hasOverrides() {
+        return !this.overrides.isEmpty();
+    }
+
+    /**
+     * Get the entry of an edited host.
+     *
+     * @param host The lower case host name.
+     *
+     * @return The host entry, with a {@code null} type if the host no longer has an entry,
+     * {@code null} if the host was not edited.
+     */
+    @Nullable
+    HostEntry getOverride(@NonNull final CharSequence host) {
+        // Only create the host name string if its hash code matches an edited host
+        if (Arrays.binarySearch(this.overrideHashes, hashHost(host)) < 0) return null;
+        return this.overrides.get(host.toString());
+    }
+
+    /**
+     * Get the shared entry of an index entry.<br>
+     * The entry has no host name and must not be modified.
+     *
+     * @param type        The type of the index entry.
+     * @param redirection The redirection of the index entry, {@code null} if none.
+     *
+     * @return The shared entry with the type and redirection.
+     */
+    @NonNull
+    HostEntry getIndexEntry(@NonNull final ListType type, @Nullable final String redirection) {
+        if (redirection == null) return this.typeEntries[type.ordinal()];
+        HostEntry entry = this.redirectionEntries.get(redirection);
+        if (entry == null || entry.getType() != type) {
+            entry = createEntry(type, redirection);
+            this.redirectionEntries.put(redirection, entry);
+        }
+        return entry;
+    }
+
+    @NonNull
+    private static HostEntry[] createTypeEntries() {
+        final ListType[] types = ListType.values();
+        final HostEntry[] entries = new HostEntry[types.length];
+        for (final ListType type : types) entries[type.ordinal()] = createEntry(type, null);
+        return entries;
+    }
+
+    @NonNull
+    private static HostEntry createEntry(@NonNull final ListType type, @Nullable final String redirection) {
+        final HostEntry entry = new HostEntry();
+        entry.setHost("");
+        entry.setType(type);
+        entry.setRedirection(redirection);
+        return entry;
+    }
+
+    /**
+     * Compute the hash code of a host name, the same as the one of its string.
+     *
+     * @param host The host name.
+     *
+     * @return The host name hash code.
+     */
+    private static int hashHost(@NonNull final CharSequence host) {
+        int hash = 0;
+        for (int i = 0, length = host.length(); i < length; i++) hash = 31 * hash + host.charAt(i);
+        return hash;
+    }
+}
@@ -0,0 +1,552 @@
+package org.pro.adaway.model.vpn;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.pro.adaway.BuildConfig;
+import org.pro.adaway.db.dao.HostEntryDao;
+import org.pro.adaway.db.entity.HostEntry;
+import org.pro.adaway.db.entity.ListType;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * This class is a memory-mapped binary snapshot of the {@link HostEntry} records.
+ * <p>
+ * The snapshot is written when host entries are synchronized and mapped read-only by the VPN, so the VPN
+ * starts without reading the host entries and the heap does not grow with the lists. The file layout is:
+ * <ul>
+ * <li>a header: magic, version, entry count, redirection count, key data length and checksum,</li>
+ * <li>the entry table: for each entry, its key offset and its type and redirection index,</li>
+ * <li>the key data: the host names with reversed labels ({@code com.example.www}), sorted by bytes,</li>
+ * <li>the redirection table: each redirection as a length-prefixed UTF-8 string.</li>
+ * </ul>
+ * Lookups binary search the entry table, comparing the mapped keys with the host labels read from its end,
+ * so they do not allocate.
+ */
+public final class HostEntrySnapshot implements HostEntryIndex {
+    /**
+     * The snapshot file name.
+     */
+    private static final String FILE_NAME = "host_entries.snapshot";
+    /**
+     * The snapshot file magic number ("AAHE").
+     */
+    private static final int MAGIC = 0x41414845;
+    /**
+     * The snapshot file format version.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The header size, in bytes.
+     */
+    private static final int HEADER_SIZE = 32;
+    /**
+     * The entry table record size, in bytes.
+     */
+    private static final int ENTRY_SIZE = 8;
+    /**
+     * The number of host entries to read from database at once.
+     */
+    private static final int PAGE_SIZE = 10_000;
+    /**
+     * The redirection index value of entries without redirection.
+     */
+    private static final int NO_REDIRECTION = 0xFFFFFF;
+    /**
+     * The list types indexed by their value.
+     */
+    private static final ListType[] TYPES_BY_VALUE = new ListType[ListType.values().length];
+
+    static {
+        for (final ListType type : ListType.values()) TYPES_BY_VALUE[type.getValue()] = type;
+    }
+
+    /**
+     * The mapped snapshot file.
+     */
+    private final ByteBuffer buffer;
+    /**
+     * The number of entries.
+     */
+    private final int size;
+    /**
+     * The offset of the key data.
+     */
+    private final int keyDataOffset;
+    /**
+     * The length of the key data.
+     */
+    private final int keyDataLength;
+    /**
+     * The redirections, indexed by their redirection index.
+     */
+    private final String[] redirections;
+
+    private HostEntrySnapshot(final ByteBuffer buffer, final int size, final int keyDataLength, final String[] redirections) {
+        this.buffer = buffer;
+        this.size = size;
+        this.keyDataOffset = HEADER_SIZE + size * ENTRY_SIZE;
+        this.keyDataLength = keyDataLength;
+        this.redirections = redirections;
+    }
+
+    /**
+     * Get the snapshot file.
+     *
+     * @param context The application context.
+     *
+     * @return The snapshot file.
+     */
+    @NonNull
+    static File getFile(@NonNull final Context context) {
+        return new File(context.getNoBackupFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Map the snapshot file.
+     *
+     * @param context The application context.
+     *
+     * @return The mapped snapshot, {@code null} if there is no valid snapshot.
+     */
+    @Nullable
+    static HostEntrySnapshot open(@NonNull final Context context) {
+        final File file = getFile(context);
+        if (!file.isFile()) return null;
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             final FileChannel channel = randomAccessFile.getChannel()) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer);
+        } catch (final IOException | RuntimeException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to map host entry snapshot.", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static HostEntrySnapshot read(@NonNull final ByteBuffer buffer) {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            return null;
+        }
+        final int size = buffer.getInt(8);
+        final int redirectionCount = buffer.getInt(12);
+        final int keyDataLength = buffer.getInt(16);
+        if (size < 0 || redirectionCount < 0 || keyDataLength < 0) return null;
+        final long redirectionOffset = HEADER_SIZE + (long) size * ENTRY_SIZE + keyDataLength;
+        if (redirectionOffset > buffer.limit()) return null;
+        // Decode redirections
+        final String[] redirections = new String[redirectionCount];
+        int offset = (int) redirectionOffset;
+        for (int i = 0; i < redirectionCount; i++) {
+            if (offset + 2 > buffer.limit()) return null;
+            final int length = buffer.getShort(offset) & 0xFFFF;
+            offset += 2;
+            if (offset + length > buffer.limit()) return null;
+            final byte[] bytes = new byte[length];
+            for (int j = 0; j < length; j++) bytes[j] = buffer.get(offset + j);
+            redirections[i] = new String(bytes, StandardCharsets.UTF_8);
+            offset += length;
+        }
+        return new HostEntrySnapshot(buffer, size, keyDataLength, redirections);
+    }
+
+    /**
+     * Write the snapshot of the current host entries.<br>
+     * The snapshot is written to a temporary file then renamed so mapped snapshots stay valid.
+     * On failure, the previous snapshot is deleted so it is never used with outdated entries.
+     *
+     * @param context      The application context.
+     * @param hostEntryDao The host entry DAO to read entries from.
+     */
+    public static void write(@NonNull final Context context, @NonNull final HostEntryDao hostEntryDao) {
+        write(context, hostEntryDao, null);
+    }
+
+    /**
+     * Update the snapshot with the current host entries of some hosts.<br>
+     * The other entries are copied from the current snapshot, so only the updated hosts are read from database.
+     * Without valid snapshot, the snapshot of all the current host entries is written instead.
+     *
+     * @param context      The application context.
+     * @param hostEntryDao The host entry DAO to read entries from.
+     * @param hosts        The hosts to update the entries.
+     */
+    public static void update(@NonNull final Context context, @NonNull final HostEntryDao hostEntryDao,
+                              @NonNull final Set<String> hosts) {
+        write(context, hostEntryDao, hosts);
+    }
+
+    private static void write(@NonNull final Context context, @NonNull final HostEntryDao hostEntryDao,
+                              @Nullable final Set<String> hosts) {
+        final File file = getFile(context);
+        final File temporaryFile = new File(file.getPath() + ".tmp");
+        try {
+            final HostEntrySnapshot previousSnapshot = hosts == null ? null : open(context);
+            if (previousSnapshot == null) writeTo(temporaryFile, hostEntryDao);
+            else previousSnapshot.updateTo(temporaryFile, hostEntryDao, hosts);
+            if (!temporaryFile.renameTo(file)) throw new IOException("Failed to rename " + temporaryFile);
+            if (BuildConfig.DEBUG) {
+                final HostEntrySnapshot snapshot = verify(file) ? open(context) : null;
+                if (snapshot == null || !snapshot.matches(hostEntryDao))
+                    Log.w("AWAISKING_APP", "Host entry snapshot verification failed.");
+            }
+        } catch (final IOException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to write host entry snapshot.", e);
+            //noinspection ResultOfMethodCallIgnored
+            temporaryFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static void writeTo(@NonNull final File file, @NonNull final HostEntryDao hostEntryDao) throws IOException {
+        // Collect entries with reversed keys
+        final List<Record> records = new ArrayList<>();
+        final List<String> redirections = new ArrayList<>();
+        final Map<String, Integer> redirectionIndexes = new HashMap<>();
+        String lastHost = "";
+        List<HostEntry> page;
+        do {
+            page = hostEntryDao.getPage(lastHost, PAGE_SIZE);
+            for (final HostEntry entry : page) records.add(createRecord(entry, redirections, redirectionIndexes));
+            if (!page.isEmpty()) lastHost = page.get(page.size() - 1).getHost();
+        } while (page.size() == PAGE_SIZE);
+        writeRecords(file, records, redirections);
+    }
+
+    private void updateTo(@NonNull final File file, @NonNull final HostEntryDao hostEntryDao,
+                          @NonNull final Set<String> hosts) throws IOException {
+        // Skip the previous entries of the updated hosts
+        final BitSet updatedEntries = new BitSet(this.size);
+        for (final String host : hosts) {
+            final int entry = find(host);
+            if (entry != NOT_FOUND) updatedEntries.set(entry);
+        }
+        // Copy the other entries, keeping their redirection indexes
+        final List<String> redirections = new ArrayList<>(Arrays.asList(this.redirections));
+        final Map<String, Integer> redirectionIndexes = new HashMap<>();
+        for (int i = 0; i < redirections.size(); i++) redirectionIndexes.put(redirections.get(i), i);
+        final List<Record> records = new ArrayList<>(this.size + hosts.size());
+        for (int entry = 0; entry < this.size; entry++) {
+            if (updatedEntries.get(entry)) continue;
+            final int keyStart = getKeyStart(entry);
+            final byte[] key = new byte[getKeyEnd(entry) - keyStart];
+            for (int i = 0; i < key.length; i++) key[i] = this.buffer.get(keyStart + i);
+            final int value = this.buffer.getInt(HEADER_SIZE + entry * ENTRY_SIZE + 4);
+            records.add(new Record(key, TYPES_BY_VALUE[value >>> 24], value & NO_REDIRECTION));
+        }
+        // Add the current entries of the updated hosts
+        for (final String host : hosts) {
+            final HostEntry entry = hostEntryDao.getEntry(host);
+            if (entry != null) records.add(createRecord(entry, redirections, redirectionIndexes));
+        }
+        writeRecords(file, records, redirections);
+    }
+
+    @NonNull
+    private static Record createRecord(@NonNull final HostEntry entry, @NonNull final List<String> redirections,
+                                       @NonNull final Map<String, Integer> redirectionIndexes) {
+        int redirectionIndex = NO_REDIRECTION;
+        final String redirection = entry.getRedirection();
+        if (redirection != null) {
+            Integer index = redirectionIndexes.get(redirection);
+            if (index == null) {
+                index = redirections.size();
+                redirections.add(redirection);
+                redirectionIndexes.put(redirection, index);
+            }
+            redirectionIndex = index;
+        }
+        return new Record(reverseLabels(entry.getHost()), entry.getType(), redirectionIndex);
+    }
+
+    private static void writeRecords(@NonNull final File file, @NonNull final List<Record> records,
+                                     @NonNull final List<String> redirections) throws IOException {
+        if (redirections.size() >= NO_REDIRECTION) throw new IOException("Too many redirections.");
+        Collections.sort(records);
+        // Compute key data length
+        int keyDataLength = 0;
+        for (final Record record : records) keyDataLength += record.key.length;
+        // Write body then header, with checksum
+        final CRC32 checksum = new CRC32();
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(0);
+            randomAccessFile.seek(HEADER_SIZE);
+            final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                    new ChecksumOutputStream(new FileOutputStream(randomAccessFile.getFD()), checksum)
+            ));
+            int keyOffset = 0;
+            for (final Record record : records) {
+                outputStream.writeInt(keyOffset);
+                outputStream.writeInt(record.type.getValue() << 24 | record.redirectionIndex);
+                keyOffset += record.key.length;
+            }
+            for (final Record record : records) outputStream.write(record.key);
+            for (final String redirection : redirections) {
+                final byte[] bytes = redirection.getBytes(StandardCharsets.UTF_8);
+                outputStream.writeShort(bytes.length);
+                outputStream.write(bytes);
+            }
+            outputStream.flush();
+            randomAccessFile.seek(0);
+            randomAccessFile.writeInt(MAGIC);
+            randomAccessFile.writeInt(VERSION);
+            randomAccessFile.writeInt(records.size());
+            randomAccessFile.writeInt(redirections.size());
+            randomAccessFile.writeInt(keyDataLength);
+            randomAccessFile.writeInt((int) checksum.getValue());
+            randomAccessFile.writeLong(0);
+            randomAccessFile.getFD().sync();
+        }
+    }
+
+    /**
+     * Verify a snapshot file: header, checksum, key order and entry values.
+     *
+     * @param file The snapshot file to verify.
+     *
+     * @return {@code true} if the snapshot is valid, {@code false} otherwise.
+     */
+    static boolean verify(@NonNull final File file) {
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             final FileChannel channel = randomAccessFile.getChannel()) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final HostEntrySnapshot snapshot = read(buffer);
+            if (snapshot == null) return false;
+            // Check checksum
+            final CRC32 checksum = new CRC32();
+            final byte[] chunk = new byte[8192];
+            for (int offset = HEADER_SIZE; offset < buffer.limit(); offset += chunk.length) {
+                final int length = Math.min(chunk.length, buffer.limit() - offset);
+                for (int i = 0; i < length; i++) chunk[i] = buffer.get(offset + i);
+                checksum.update(chunk, 0, length);
+            }
+            if ((int) checksum.getValue() != buffer.getInt(20)) return false;
+            // Check entries
+            for (int entry = 0; entry < snapshot.size; entry++) {
+                final int start = snapshot.getKeyStart(entry);
+                final int end = snapshot.getKeyEnd(entry);
+                if (start > end || end > snapshot.keyDataOffset + snapshot.keyDataLength) return false;
+                final int value = buffer.getInt(HEADER_SIZE + entry * ENTRY_SIZE + 4);
+                final int type = value >>> 24;
+                final int redirectionIndex = value & NO_REDIRECTION;
+                if (type >= TYPES_BY_VALUE.length) return false;
+                if (redirectionIndex != NO_REDIRECTION && redirectionIndex >= snapshot.redirections.length) return false;
+                if (entry > 0 && snapshot.compareKeys(entry - 1, entry) >= 0) return false;
+            }
+            return true;
+        } catch (final IOException | RuntimeException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to verify host entry snapshot.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Check the snapshot has the same content as the host entries of the database.
+     *
+     * @param hostEntryDao The host entry DAO to compare entries with.
+     *
+     * @return {@code true} if the snapshot matches the database content, {@code false} otherwise.
+     */
+    boolean matches(@NonNull final HostEntryDao hostEntryDao) {
+        final List<HostEntry> entries = hostEntryDao.getAll();
+        if (entries.size() != this.size) return false;
+        for (final HostEntry entry : entries) {
+            final int index = find(entry.getHost());
+            if (index == NOT_FOUND || getType(index) != entry.getType()) return false;
+            final String redirection = getRedirection(index);
+            if (redirection == null ? entry.getRedirection() != null : !redirection.equals(entry.getRedirection())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int find(@NonNull final CharSequence host) {
+        if (host.length() == 0) return NOT_FOUND;
+        int low = 0;
+        int high = this.size - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = compareKey(middle, host);
+            if (comparison < 0) low = middle + 1;
+            else if (comparison > 0) high = middle - 1;
+            else return middle;
+        }
+        return NOT_FOUND;
+    }
+
+    @NonNull
+    @Override
+    public ListType getType(final int entry) {
+        return TYPES_BY_VALUE[this.buffer.getInt(HEADER_SIZE + entry * ENTRY_SIZE + 4) >>> 24];
+    }
+
+    @Nullable
+    @Override
+    public String getRedirection(final int entry) {
+        final int redirectionIndex = this.buffer.getInt(HEADER_SIZE + entry * ENTRY_SIZE + 4) & NO_REDIRECTION;
+        return redirectionIndex == NO_REDIRECTION ? null : this.redirections[redirectionIndex];
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void forEachHost(@NonNull final HostVisitor visitor) {
+        final StringBuilder host = new StringBuilder();
+        for (int entry = 0; entry < this.size; entry++) {
+            // Restore the label order of the key
+            final int keyStart = getKeyStart(entry);
+            host.setLength(0);
+            int end = getKeyEnd(entry);
+            while (true) {
+                int start = end;
+                while (start > keyStart && this.buffer.get(start - 1) != '.') start--;
+                for (int i = start; i < end; i++) host.append((char) (this.buffer.get(i) & 0xFF));
+                if (start == keyStart) break;
+                host.append('.');
+                end = start - 1;
+            }
+            visitor.visit(host);
+        }
+    }
+
+    private int getKeyStart(final int entry) {
+        return this.keyDataOffset + this.buffer.getInt(HEADER_SIZE + entry * ENTRY_SIZE);
+    }
+
+    private int getKeyEnd(final int entry) {
+        return entry + 1 < this.size ? getKeyStart(entry + 1) : this.keyDataOffset + this.keyDataLength;
+    }
+
+    /**
+     * Compare an entry key with a host name, read with reversed labels.
+     *
+     * @param entry The entry to compare key.
+     * @param host  The host name to compare.
+     *
+     * @return A negative value, zero or a positive value if the key is before, equal or after the host.
+     */
+    private int compareKey(final int entry, final CharSequence host) {
+        int position = getKeyStart(entry);
+        final int keyEnd = getKeyEnd(entry);
+        int end = host.length();
+        while (true) {
+            int start = end;
+            while (start > 0 && host.charAt(start - 1) != '.') start--;
+            for (int i = start; i < end; i++) {
+                if (position == keyEnd) return -1;
+                final int difference = (this.buffer.get(position++) & 0xFF) - host.charAt(i);
+                if (difference != 0) return difference;
+            }
+            if (start == 0) return position == keyEnd ? 0 : 1;
+            if (position == keyEnd) return -1;
+            final int difference = (this.buffer.get(position++) & 0xFF) - '.';
+            if (difference != 0) return difference;
+            end = start - 1;
+        }
+    }
+
+    private int compareKeys(final int first, final int second) {
+        int firstPosition = getKeyStart(first);
+        final int firstEnd = getKeyEnd(first);
+        int secondPosition = getKeyStart(second);
+        final int secondEnd = getKeyEnd(second);
+        while (firstPosition < firstEnd && secondPosition < secondEnd) {
+            final int difference = (this.buffer.get(firstPosition++) & 0xFF) - (this.buffer.get(secondPosition++) & 0xFF);
+            if (difference != 0) return difference;
+        }
+        return (firstEnd - firstPosition) - (secondEnd - secondPosition);
+    }
+
+    /**
+     * Reverse the labels of a host name ({@code www.example.com} becomes {@code com.example.www}).
+     *
+     * @param host The host name to reverse.
+     *
+     * @return The reversed host name bytes.
+     */
+    @NonNull
+    private static byte[] reverseLabels(@NonNull final String host) {
+        final byte[] bytes = new byte[host.length()];
+        int position = 0;
+        int end = host.length();
+        while (end >= 0) {
+            final int start = host.lastIndexOf('.', end - 1) + 1;
+            for (int i = start; i < end; i++) bytes[position++] = (byte) host.charAt(i);
+            if (start > 0) bytes[position++] = '.';
+            end = start - 1;
+        }
+        return bytes;
+    }
+
+    private static final class Record implements Comparable<Record> {
+        private final byte[] key;
+        private final ListType type;
+        private final int redirectionIndex;
+
+        private Record(final byte[] key, final ListType type, final int redirectionIndex) {
+            this.key = key;
+            this.type = type;
+            this.redirectionIndex = redirectionIndex;
+        }
+
+        @Override
+        public int compareTo(@NonNull final Record other) {
+            final int count = Math.min(this.key.length, other.key.length);
+            for (int i = 0; i < count; i++) {
+                final int difference = (this.key[i] & 0xFF) - (other.key[i] & 0xFF);
+                if (difference != 0) return difference;
+            }
+            return this.key.length - other.key.length;
+        }
+    }
+
+    private static final class ChecksumOutputStream extends FilterOutputStream {
+        private final CRC32 checksum;
+
+        private ChecksumOutputStream(final OutputStream outputStream, final CRC32 checksum) {
+            super(outputStream);
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.out.write(b);
+            this.checksum.update(b);
+        }
+
+        @Override
+        public void write(@NonNull final byte[] bytes, final int offset, final int length) throws IOException {
+            this.out.write(bytes, offset, length);
+            this.checksum.update(bytes, offset, length);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package org.pro.adaway.model.vpn;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.pro.adaway.db.dao.HostEntryDao;
+import org.pro.adaway.db.entity.HostEntry;
+import org.pro.adaway.db.entity.ListType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * This class is a compiled and read-only trie of the {@link HostEntry} records.
+ * <p>
+ * Host names are stored label by label, from the top level domain to the leftmost label, so a lookup walks
+ * the host name from its end. All nodes are flattened into arrays in breadth first order and the children of
+ * a node are contiguous and sorted, so looking a host up is a binary search per label, without any database
+ * access nor allocation.
+ */
+final class HostEntryTrie implements HostEntryIndex {
+    /**
+     * The number of host entries to read from database at once.
+     */
+    private static final int PAGE_SIZE = 10_000;
+    /**
+     * The type value of nodes not related to any host entry.
+     */
+    private static final byte NO_TYPE = -1;
+    /**
+     * The root node index.
+     */
+    private static final int ROOT = 0;
+    /**
+     * The list types indexed by their value.
+     */
+    private static final ListType[] TYPES_BY_VALUE = new ListType[ListType.values().length];
+
+    static {
+        for (final ListType type : ListType.values()) TYPES_BY_VALUE[type.getValue()] = type;
+    }
+
+    /**
+     * The label bytes, shared by all nodes.
+     */
+    private final byte[] labels;
+    /**
+     * The offset of each node label in {@link #labels}.
+     */
+    private final int[] labelOffsets;
+    /**
+     * The length of each node label (unsigned).
+     */
+    private final byte[] labelLengths;
+    /**
+     * The index of the first child of each node, the last value is the total node count.
+     */
+    private final int[] firstChildren;
+    /**
+     * The {@link ListType} value of each node, {@link #NO_TYPE} if the node is not related to an entry.
+     */
+    private final byte[] types;
+    /**
+     * The sorted indexes of the redirected nodes.
+     */
+    private final int[] redirectedNodes;
+    /**
+     * The redirections of the redirected nodes, in the same order as {@link #redirectedNodes}.
+     */
+    private final String[] redirections;
+    /**
+     * The number of host entries.
+     */
+    private final int size;
+
+    private HostEntryTrie(final byte[] labels, final int[] labelOffsets, final byte[] labelLengths,
+                          final int[] firstChildren, final byte[] types, final int[] redirectedNodes,
+                          final String[] redirections, final int size) {
+        this.labels = labels;
+        this.labelOffsets = labelOffsets;
+        this.labelLengths = labelLengths;
+        this.firstChildren = firstChildren;
+        this.types = types;
+        this.redirectedNodes = redirectedNodes;
+        this.redirections = redirections;
+        this.size = size;
+    }
+
+    /**
+     * Compile the trie from all the host entries of the database.
+     *
+     * @param hostEntryDao The host entry DAO to read entries from.
+     *
+     * @return The compiled trie.
+     */
+    @NonNull
+    static HostEntryTrie build(@NonNull final HostEntryDao hostEntryDao) {
+        final Builder builder = new Builder();
+        String lastHost = "";
+        List<HostEntry> page;
+        do {
+            page = hostEntryDao.getPage(lastHost, PAGE_SIZE);
+            for (final HostEntry entry : page) {
+                builder.add(entry.getHost(), entry.getType(), entry.getRedirection());
+            }
+            if (!page.isEmpty()) lastHost = page.get(page.size() - 1).getHost();
+        } while (page.size() == PAGE_SIZE);
+        return builder.build();
+    }
+
+    @Override
+    public int find(@NonNull final CharSequence host) {
+        int end = host.length();
+        if (end == 0) return NOT_FOUND;
+        int node = ROOT;
+        while (true) {
+            int start = end;
+            while (start > 0 && host.charAt(start - 1) != '.') start--;
+            node = findChild(node, host, start, end);
+            if (node == NOT_FOUND) return NOT_FOUND;
+            if (start == 0) return this.types[node] == NO_TYPE ? NOT_FOUND : node;
+            end = start - 1;
+        }
+    }
+
+    @NonNull
+    @Override
+    public ListType getType(final int node) {
+        return TYPES_BY_VALUE[this.types[node]];
+    }
+
+    @Nullable
+    @Override
+    public String getRedirection(final int node) {
+        final int index = Arrays.binarySearch(this.redirectedNodes, node);
+        return index < 0 ? null : this.redirections[index];
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void forEachHost(@NonNull final HostVisitor visitor) {
+        // Link nodes to their parent to walk host names from their leftmost label
+        final int nodeCount = this.types.length;
+        final int[] parents = new int[nodeCount];
+        for (int node = ROOT; node < nodeCount; node++) {
+            for (int child = this.firstChildren[node]; child < this.firstChildren[node + 1]; child++) {
+                parents[child] = node;
+            }
+        }
+        final StringBuilder host = new StringBuilder();
+        for (int node = ROOT + 1; node < nodeCount; node++) {
+            if (this.types[node] == NO_TYPE) continue;
+            host.setLength(0);
+            for (int current = node; current != ROOT; current = parents[current]) {
+                if (current != node) host.append('.');
+                final int offset = this.labelOffsets[current];
+                final int length = this.labelLengths[current] & 0xFF;
+                for (int i = 0; i < length; i++) host.append((char) (this.labels[offset + i] & 0xFF));
+            }
+            visitor.visit(host);
+        }
+    }
+
+    private int findChild(final int node, final CharSequence host, final int start, final int end) {
+        int low = this.firstChildren[node];
+        int high = this.firstChildren[node + 1] - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = compareLabel(middle, host, start, end);
+            if (comparison < 0) low = middle + 1;
+            else if (comparison > 0) high = middle - 1;
+            else return middle;
+        }
+        return NOT_FOUND;
+    }
+
+    private int compareLabel(final int node, final CharSequence host, final int start, final int end) {
+        final int offset = this.labelOffsets[node];
+        final int length = this.labelLengths[node] & 0xFF;
+        final int hostLength = end - start;
+        final int count = Math.min(length, hostLength);
+        for (int i = 0; i < count; i++) {
+            final int difference = (this.labels[offset + i] & 0xFF) - host.charAt(start + i);
+            if (difference != 0) return difference;
+        }
+        return length - hostLength;
+    }
+
+    /**
+     * This class is a builder for {@link HostEntryTrie}.
+     */
+    static final class Builder {
+        /**
+         * The maximum length of a label.
+         */
+        private static final int MAX_LABEL_LENGTH = 0xFF;
+        private static final Comparator<Node> LABEL_COMPARATOR = (first, second) -> compareBytes(first.label, second.label);
+        private final Node root;
+        private int size;
+
+        Builder() {
+            this.root = new Node(new byte[0]);
+            this.size = 0;
+        }
+
+        /**
+         * Add a host entry.
+         *
+         * @param host        The lower case host name.
+         * @param type        The entry type.
+         * @param redirection The entry redirection, {@code null} if not redirected.
+         */
+        void add(@NonNull final String host, @NonNull final ListType type, @Nullable final String redirection) {
+            Node node = this.root;
+            int end = host.length();
+            while (end >= 0) {
+                final int start = host.lastIndexOf('.', end - 1) + 1;
+                if (end - start > MAX_LABEL_LENGTH) return;
+                node = node.getOrCreateChild(host.substring(start, end));
+                end = start - 1;
+            }
+            if (node.type == NO_TYPE) this.size++;
+            node.type = (byte) type.getValue();
+            node.redirection = redirection;
+        }
+
+        /**
+         * Compile the added entries.
+         *
+         * @return The compiled trie.
+         */
+        @NonNull
+        HostEntryTrie build() {
+            // Flatten nodes in breadth first order
+            final List<Node> nodes = new ArrayList<>();
+            final Queue<Node> queue = new ArrayDeque<>();
+            queue.add(this.root);
+            while (!queue.isEmpty()) {
+                final Node node = queue.remove();
+                nodes.add(node);
+                queue.addAll(node.getSortedChildren());
+            }
+            // Pool labels and compute children bounds
+            final int nodeCount = nodes.size();
+            final Map<String, Integer> labelPool = new HashMap<>();
+            byte[] labels = new byte[1024];
+            int labelsLength = 0;
+            final int[] labelOffsets = new int[nodeCount];
+            final byte[] labelLengths = new byte[nodeCount];
+            final int[] firstChildren = new int[nodeCount + 1];
+            final byte[] types = new byte[nodeCount];
+            final List<Integer> redirectedNodes = new ArrayList<>();
+            final List<String> redirections = new ArrayList<>();
+            int nextChild = 1;
+            for (int index = 0; index < nodeCount; index++) {
+                final Node node = nodes.get(index);
+                final String key = new String(node.label, StandardCharsets.ISO_8859_1);
+                Integer offset = labelPool.get(key);
+                if (offset == null) {
+                    if (labelsLength + node.label.length > labels.length) {
+                        labels = Arrays.copyOf(labels, Math.max(labels.length * 2, labelsLength + node.label.length));
+                    }
+                    System.arraycopy(node.label, 0, labels, labelsLength, node.label.length);
+                    offset = labelsLength;
+                    labelsLength += node.label.length;
+                    labelPool.put(key, offset);
+                }
+                labelOffsets[index] = offset;
+                labelLengths[index] = (byte) node.label.length;
+                firstChildren[index] = nextChild;
+                nextChild += node.getChildCount();
+                types[index] = node.type;
+                if (node.redirection != null) {
+                    redirectedNodes.add(index);
+                    redirections.add(node.redirection);
+                }
+            }
+            firstChildren[nodeCount] = nextChild;
+            final int[] redirectedNodeArray = new int[redirectedNodes.size()];
+            for (int i = 0; i < redirectedNodeArray.length; i++) {
+                redirectedNodeArray[i] = redirectedNodes.get(i);
+            }
+            return new HostEntryTrie(
+                    Arrays.copyOf(labels, labelsLength),
+                    labelOffsets,
+                    labelLengths,
+                    firstChildren,
+                    types,
+                    redirectedNodeArray,
+                    redirections.toArray(new String[0]),
+                    this.size
+            );
+        }
+
+        private static int compareBytes(final byte[] first, final byte[] second) {
+            final int count = Math.min(first.length, second.length);
+            for (int i = 0; i < count; i++) {
+                final int difference = (first[i] & 0xFF) - (second[i] & 0xFF);
+                if (difference != 0) return difference;
+            }
+            return first.length - second.length;
+        }
+
+        private static final class Node {
+            private final byte[] label;
+            private Map<String, Node> children;
+            private byte type;
+            private String redirection;
+
+            private Node(final byte[] label) {
+                this.label = label;
+                this.type = NO_TYPE;
+            }
+
+            private Node getOrCreateChild(final String label) {
+                if (this.children == null) this.children = new HashMap<>(4);
+                Node child = this.children.get(label);
+                if (child == null) {
+                    child = new Node(label.getBytes(StandardCharsets.ISO_8859_1));
+                    this.children.put(label, child);
+                }
+                return child;
+            }
+
+            private int getChildCount() {
+                return this.children == null ? 0 : this.children.size();
+            }
+
+            private List<Node> getSortedChildren() {
+                if (this.children == null) return Collections.emptyList();
+                final List<Node> sortedChildren = new ArrayList<>(this.children.values());
+                Collections.sort(sortedChildren, LABEL_COMPARATOR);
+                return sortedChildren;
+            }
+        }
+    }
+}
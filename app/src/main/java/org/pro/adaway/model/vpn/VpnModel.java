@@ -7,19 +7,26 @@ import android.content.Context;
 import android.util.Log;
 import android.util.LruCache;
 
+import androidx.annotation.NonNull;
+
 import org.pro.adaway.BuildConfig;
 import org.pro.adaway.R;
 import org.pro.adaway.db.AppDatabase;
 import org.pro.adaway.db.dao.HostEntryDao;
 import org.pro.adaway.db.entity.HostEntry;
+import org.pro.adaway.db.entity.ListType;
 import org.pro.adaway.model.adblocking.AdBlockMethod;
 import org.pro.adaway.model.adblocking.AdBlockModel;
 import org.pro.adaway.model.error.HostErrorException;
+import org.pro.adaway.util.AllowListMatcher;
 import org.pro.adaway.vpn.VpnServiceControls;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * This class is the model to represent VPN service configuration.
@@ -27,11 +34,36 @@ import java.util.List;
  * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
  */
 public class VpnModel extends AdBlockModel {
+    /**
+     * The cached value of hosts without entry, as {@link LruCache} does not store {@code null} values.
+     */
+    private static final HostEntry NO_ENTRY = new HostEntry();
+    /**
+     * The number of requests between two cache statistics reports.
+     */
+    private static final int STATISTICS_PERIOD = 1000;
     private final HostEntryDao hostEntryDao;
     private final LruCache<String, HostEntry> blockCache;
+    /**
+     * The rules to answer lookups with, {@code null} until loaded.
+     * They are replaced as a whole, so lookups never see an index and a filter that do not match.
+     */
+    private volatile HostEntryRules rules;
     private final LinkedHashSet<String> logs;
     private boolean recordingLogs;
     private int requestCount;
+    /**
+     * The number of requests answered without database access since the last statistics report.
+     */
+    private int hitCount;
+    /**
+     * The number of requests answered from database since the last statistics report.
+     */
+    private int missCount;
+    /**
+     * The number of requests answered by the host filter since the last statistics report.
+     */
+    private int filteredCount;
 
     /**
      * Constructor.
@@ -45,12 +77,17 @@ public class VpnModel extends AdBlockModel {
         this.blockCache = new LruCache<String, HostEntry>(4 * 1024) {
             @Override
             protected HostEntry create(String key) {
-                return VpnModel.this.hostEntryDao.getEntry(key);
+                VpnModel.this.missCount++;
+                HostEntry entry = VpnModel.this.hostEntryDao.getEntry(key);
+                return entry == null ? NO_ENTRY : entry;
             }
         };
         this.logs = new LinkedHashSet<>();
         this.recordingLogs = false;
         this.requestCount = 0;
+        this.hitCount = 0;
+        this.missCount = 0;
+        this.filteredCount = 0;
         this.applied.postValue(VpnServiceControls.isRunning(context));
     }
 
@@ -61,9 +98,10 @@ public class VpnModel extends AdBlockModel {
 
     @Override
     public void apply() throws HostErrorException {
-        // Clear cache
+        // Load host entries and clear cache, a running VPN uses them from its next lookup
+        loadHostEntries();
         this.blockCache.evictAll();
-        // Start VPN
+        // Start VPN if not running yet
         boolean started = VpnServiceControls.start(this.context);
         this.applied.postValue(started);
         if (!started) {
@@ -98,29 +136,153 @@ public class VpnModel extends AdBlockModel {
         this.logs.clear();
     }
 
+    /**
+     * Ensure the host entries are compiled before querying them.<br>
+     * This should be called from a worker thread as it may read all the host entries from database.
+     */
+    public void initializeHostEntries() {
+        if (this.rules == null) loadHostEntries();
+    }
+
+    /**
+     * Preload the host entries of hosts likely to be looked up soon, so their first lookups do not wait for storage.<br>
+     * This should be called from a worker thread as it may read the host entries from database.
+     *
+     * @param hosts The lower case host names to preload.
+     */
+    public void preloadEntries(@NonNull final Collection<String> hosts) {
+        final HostEntryRules currentRules = this.rules;
+        for (final String host : hosts) {
+            if (currentRules == null) {
+                // Put looked up entries as getting them would update the cache statistics of the VPN worker
+                final HostEntry entry = this.hostEntryDao.getEntry(host);
+                this.blockCache.put(host, entry == null ? NO_ENTRY : entry);
+            } else if (currentRules.filter.mightContain(host)) {
+                // Fault the index pages in
+                currentRules.index.find(host);
+            }
+        }
+    }
+
+    /**
+     * Apply the change of the list items of a host without rebuilding the host entry index.<br>
+     * The host entry is synchronized from its list items then overrides the index entry of the running VPN.
+     * The host entry snapshot and filter are then patched for the next start.
+     * This should be called from a worker thread as it accesses the database.
+     *
+     * @param host The host of the changed list items.
+     *
+     * @return {@code true} if the change was applied, {@code false} if the host is a pattern and needs
+     * the host entries to be fully synchronized.
+     */
+    public synchronized boolean applyHostChange(@NonNull final String host) {
+        if (host.indexOf('*') >= 0 || host.indexOf('?') >= 0) return false;
+        final long startTime = System.nanoTime();
+        this.hostEntryDao.syncHost(host);
+        final HostEntry entry = this.hostEntryDao.getEntry(host);
+        final String lowerCaseHost = host.toLowerCase(Locale.ROOT);
+        final HostEntryRules currentRules = this.rules;
+        if (currentRules != null) this.rules = currentRules.withOverride(lowerCaseHost, entry == null ? NO_ENTRY : entry);
+        this.blockCache.remove(lowerCaseHost);
+        // Patch the files loaded at next start, once the running VPN already uses the change
+        HostEntrySnapshot.update(this.context, this.hostEntryDao, Collections.singleton(host));
+        HostBloomFilter.write(this.context, this.hostEntryDao);
+        if (BuildConfig.DEBUG) {
+            Log.d("AWAISKING_APP", "Applied change of host " + host + " in " + (System.nanoTime() - startTime) / 1000 + "µs");
+        }
+        return true;
+    }
+
+    /**
+     * Load the host entry index and filter from their files or, if missing, compile them from database.
+     */
+    private synchronized void loadHostEntries() {
+        final long startTime = System.currentTimeMillis();
+        HostEntryIndex index = HostEntrySnapshot.open(this.context);
+        HostBloomFilter filter = index == null ? null : HostBloomFilter.open(this.context);
+        if (index == null) index = HostEntryTrie.build(this.hostEntryDao);
+        if (filter == null || filter.size() != index.size()) filter = HostBloomFilter.build(index);
+        final AllowListMatcher allowList = new AllowListMatcher(this.hostEntryDao.getEnabledAllowedHosts());
+        // Publish the new rules at once, lookups in progress keep using the previous ones
+        final long swapStartTime = System.nanoTime();
+        this.rules = new HostEntryRules(index, filter, allowList);
+        final long swapTime = System.nanoTime() - swapStartTime;
+        if (BuildConfig.DEBUG) {
+            Log.d("AWAISKING_APP", "Loaded " + index.size() + " host entries from " + index.getClass().getSimpleName()
+                    + " in " + (System.currentTimeMillis() - startTime) + "ms, swapped in " + swapTime + "ns");
+            Log.d("AWAISKING_APP", "Allowed host patterns: " + allowList.size());
+            Log.d("AWAISKING_APP", "Host filter size: " + filter.getSizeInBytes() + " bytes, false positive rate: "
+                    + 100D * filter.getFalsePositiveRate() + "%");
+        }
+    }
+
+    /**
+     * Get the filter of listed hosts.
+     *
+     * @return The filter of listed hosts, {@code null} if not loaded yet.
+     */
+    public HostBloomFilter getHostFilter() {
+        final HostEntryRules currentRules = this.rules;
+        return currentRules == null ? null : currentRules.filter;
+    }
+
     /**
      * Checks host entry related to an host name.
      *
-     * @param host A hostname to check.
+     * @param host A lower case hostname to check.
      *
-     * @return The related host entry.
+     * @return The related host entry. Entries answered from the host entry index are shared,
+     * have no host name and must not be modified.
      */
-    public HostEntry getEntry(String host) {
-        // Compute miss rate periodically
+    public HostEntry getEntry(CharSequence host) {
+        // Report cache statistics periodically
         this.requestCount++;
-        if (this.requestCount >= 1000) {
-            int hits = this.blockCache.hitCount();
-            int misses = this.blockCache.missCount();
-            double missRate = 100D * (hits + misses) / misses;
-            if (BuildConfig.DEBUG)
-                Log.d("AWAISKING_APP", "Host cache miss rate: " + missRate);
+        if (this.requestCount >= STATISTICS_PERIOD) {
+            if (BuildConfig.DEBUG) {
+                double missRate = 100D * this.missCount / (this.hitCount + this.missCount);
+                Log.d("AWAISKING_APP", "Host cache hits: " + this.hitCount + ", misses: " + this.missCount + ", miss rate: " + missRate + "%"
+                        + ", filtered: " + this.filteredCount);
+            }
             this.requestCount = 0;
+            this.hitCount = 0;
+            this.missCount = 0;
+            this.filteredCount = 0;
         }
         // Add host to logs
         if (this.recordingLogs) {
-            this.logs.add(host);
+            this.logs.add(host.toString());
+        }
+        // Read the rules once so the whole lookup uses the same ones
+        final HostEntryRules currentRules = this.rules;
+        if (currentRules != null) {
+            // Check edited hosts first as they are not in the index
+            if (currentRules.hasOverrides()) {
+                final HostEntry override = currentRules.getOverride(host);
+                if (override != null) {
+                    this.hitCount++;
+                    return override.getType() == null ? null : override;
+                }
+            }
+            // Check host filter
+            if (!currentRules.filter.mightContain(host)) {
+                this.filteredCount++;
+                return null;
+            }
+            // Check host entry index
+            final HostEntryIndex index = currentRules.index;
+            this.hitCount++;
+            final int found = index.find(host);
+            if (found == HostEntryIndex.NOT_FOUND) return null;
+            final ListType type = index.getType(found);
+            // Check allowed host patterns too, for entries indexed before their last change
+            if (type == ListType.BLOCKED && currentRules.allowList.matches(host)) return null;
+            // Share the entries of the index rather than creating one per lookup
+            return currentRules.getIndexEntry(type, index.getRedirection(found));
         }
-        // Check cache
-        return this.blockCache.get(host);
+        // Check cache, including hosts without entry
+        int misses = this.missCount;
+        HostEntry entry = this.blockCache.get(host.toString());
+        if (misses == this.missCount) this.hitCount++;
+        return entry == NO_ENTRY ? null : entry;
     }
 }
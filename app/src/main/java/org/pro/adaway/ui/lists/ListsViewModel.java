@@ -19,10 +19,13 @@ import androidx.paging.PagingConfig;
 import androidx.paging.PagingData;
 import androidx.paging.PagingLiveData;
 
+import org.pro.adaway.AdAwayApplication;
 import org.pro.adaway.db.AppDatabase;
 import org.pro.adaway.db.dao.HostListItemDao;
 import org.pro.adaway.db.entity.HostListItem;
 import org.pro.adaway.db.entity.ListType;
+import org.pro.adaway.model.adblocking.AdBlockModel;
+import org.pro.adaway.model.vpn.VpnModel;
 import org.pro.adaway.ui.lists.type.AbstractListFragment;
 import org.pro.adaway.util.AppExecutors;
 
@@ -79,7 +82,7 @@ public class ListsViewModel extends AndroidViewModel {
         item.setEnabled(!item.isEnabled());
         EXECUTOR.execute(() -> {
             this.hostListItemDao.update(item);
-            this.modelChanged.postValue(true);
+            notifyHostsChanged(item.getHost());
         });
     }
 
@@ -97,23 +100,24 @@ public class ListsViewModel extends AndroidViewModel {
                 item.setId(id);
                 this.hostListItemDao.update(item);
             }
-            this.modelChanged.postValue(true);
+            notifyHostsChanged(host);
         });
     }
 
     public void updateListItem(@NonNull final HostListItem item, @NonNull final String host, final String redirection) {
+        final String previousHost = item.getHost();
         item.setHost(host);
         item.setRedirection(redirection);
         EXECUTOR.execute(() -> {
             this.hostListItemDao.update(item);
-            this.modelChanged.postValue(true);
+            notifyHostsChanged(previousHost, host);
         });
     }
 
     public void removeListItem(final HostListItem list) {
         EXECUTOR.execute(() -> {
             this.hostListItemDao.delete(list);
-            this.modelChanged.postValue(true);
+            notifyHostsChanged(list.getHost());
         });
     }
 
@@ -139,6 +143,22 @@ public class ListsViewModel extends AndroidViewModel {
         this.filter.setValue(newFilter);
     }
 
+    /**
+     * Notify list items changed. The changes are applied right away to the VPN rules if possible,
+     * otherwise the model is marked as changed to be applied.<br>
+     * This should be called from the disk executor.
+     *
+     * @param hosts The hosts of the changed list items.
+     */
+    private void notifyHostsChanged(@NonNull final String... hosts) {
+        final AdBlockModel adBlockModel = ((AdAwayApplication) getApplication()).getAdBlockModel();
+        boolean applied = adBlockModel instanceof VpnModel;
+        for (int i = 0; applied && i < hosts.length; i++) {
+            applied = ((VpnModel) adBlockModel).applyHostChange(hosts[i]);
+        }
+        if (!applied) this.modelChanged.postValue(true);
+    }
+
     private ListsFilter getFilter() {
         final ListsFilter filter = this.filter.getValue();
         return filter == null ? ALL : filter;
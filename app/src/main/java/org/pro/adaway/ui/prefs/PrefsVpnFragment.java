@@ -37,6 +37,7 @@ public class PrefsVpnFragment extends PreferenceFragmentCompat {
         // Bind pref actions
         bindExcludedSystemApps();
         bindExcludedUserApps();
+        bindDnsUpstream();
     }
 
     @Override
@@ -68,6 +69,21 @@ public class PrefsVpnFragment extends PreferenceFragmentCompat {
         });
     }
 
+    private void bindDnsUpstream() {
+        final ListPreference dnsUpstreamPreference = findPreference(getString(R.string.pref_vpn_dns_upstream_key));
+        assert dnsUpstreamPreference != null : PREFERENCE_NOT_FOUND;
+        dnsUpstreamPreference.setOnPreferenceChangeListener((preference, newValue) -> {
+            restartVpn();
+            return true;
+        });
+        final ListPreference dnsProviderPreference = findPreference(getString(R.string.pref_vpn_dns_provider_key));
+        assert dnsProviderPreference != null : PREFERENCE_NOT_FOUND;
+        dnsProviderPreference.setOnPreferenceChangeListener((preference, newValue) -> {
+            restartVpn();
+            return true;
+        });
+    }
+
     private void restartVpn() {
         final Context context = requireContext();
         if (VpnServiceControls.isRunning(context)) {
@@ -26,6 +26,7 @@ import org.pro.adaway.databinding.SourceEditActivityBinding;
 import org.pro.adaway.db.AppDatabase;
 import org.pro.adaway.db.dao.HostsSourceDao;
 import org.pro.adaway.db.entity.HostsSource;
+import org.pro.adaway.helper.PreferenceHelper;
 import org.pro.adaway.ui.ThemedActivity;
 import org.pro.adaway.util.AppExecutors;
 
@@ -179,7 +180,11 @@ public class SourceEditActivity extends ThemedActivity {
         final int itemId = item.getItemId();
         // Check item identifier
         if (itemId == R.id.delete_action) {
-            DISK_IO_EXECUTOR.execute(() -> this.hostsSourceDao.delete(this.edited));
+            DISK_IO_EXECUTOR.execute(() -> {
+                // Deleting the source cascades to its items, flag host entries to be fully synchronized
+                PreferenceHelper.setHostEntriesOutdated(this, true);
+                this.hostsSourceDao.delete(this.edited);
+            });
             finish();
             return true;
         }
@@ -187,7 +192,10 @@ public class SourceEditActivity extends ThemedActivity {
             final HostsSource source = validate();
             if (source == null) return false;
             DISK_IO_EXECUTOR.execute(() -> {
-                if (this.editing) this.hostsSourceDao.delete(this.edited);
+                if (this.editing) {
+                    PreferenceHelper.setHostEntriesOutdated(this, true);
+                    this.hostsSourceDao.delete(this.edited);
+                }
                 this.hostsSourceDao.insert(source);
                 finish();
             });
@@ -0,0 +1,279 @@
+package org.pro.adaway.util;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class is a compiled matcher of allowed host patterns, with the {@link RegexUtils#wildcardToRegex(String)}
+ * semantics: {@code *} matches any character sequence and {@code ?} matches any character, case insensitively.
+ * <p>
+ * Patterns are split by shape so most of them are checked without walking the whole pattern list:
+ * <ul>
+ * <li>hosts without wildcard and suffix patterns, like {@code *.example.com}, are kept in a trie of reversed
+ * literals,</li>
+ * <li>other patterns are bucketed in the same trie by the literal after their last wildcard or, if they end with
+ * a wildcard, in a trie of the literal before their first wildcard,</li>
+ * <li>the few patterns starting and ending with a wildcard are checked one by one.</li>
+ * </ul>
+ * Matching a host is then linear in its length, plus the patterns of the buckets it reaches. Hosts are lower-cased
+ * character by character while walking, so matching does not allocate.
+ * This class is immutable and thread safe.
+ */
+public final class AllowListMatcher {
+    /**
+     * The trie of the reversed allowed hosts without wildcard and literals after the last wildcard of the patterns.
+     */
+    private final Node suffixes;
+    /**
+     * The trie of the literals before the first wildcard of the patterns ending with a wildcard.
+     */
+    private final Node prefixes;
+    /**
+     * The patterns starting and ending with a wildcard.
+     */
+    private final List<String> otherPatterns;
+    /**
+     * The number of patterns.
+     */
+    private final int size;
+
+    /**
+     * Constructor.
+     *
+     * @param patterns The allowed host patterns.
+     */
+    public AllowListMatcher(@NonNull final Iterable<String> patterns) {
+        this.suffixes = new Node();
+        this.prefixes = new Node();
+        this.otherPatterns = new ArrayList<>();
+        int size = 0;
+        for (final String rawPattern : patterns) {
+            final String pattern = rawPattern.toLowerCase(Locale.ROOT);
+            final int firstWildcard = indexOfWildcard(pattern);
+            if (firstWildcard < 0) {
+                this.suffixes.insert(pattern, pattern.length() - 1, -1, -1).exact = true;
+            } else {
+                final int lastWildcard = lastIndexOfWildcard(pattern);
+                if (lastWildcard < pattern.length() - 1) {
+                    final Node node = this.suffixes.insert(pattern, pattern.length() - 1, lastWildcard, -1);
+                    // A single leading any-sequence wildcard matches all hosts ending with the literal
+                    if (lastWildcard == 0 && pattern.charAt(0) == '*') node.suffix = true;
+                    else node.addPattern(pattern);
+                } else if (firstWildcard > 0) {
+                    this.prefixes.insert(pattern, 0, firstWildcard, 1).addPattern(pattern);
+                } else {
+                    this.otherPatterns.add(pattern);
+                }
+            }
+            size++;
+        }
+        this.size = size;
+    }
+
+    /**
+     * Check whether there is no pattern.
+     *
+     * @return {@code true} if there is no pattern, {@code false} otherwise.
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Get the number of patterns.
+     *
+     * @return The number of patterns.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Check whether a host is allowed.
+     *
+     * @param host The host name to check.
+     *
+     * @return {@code true} if the host matches an allowed pattern, {@code false} otherwise.
+     */
+    public boolean matches(@NonNull final CharSequence host) {
+        if (this.size == 0) return false;
+        // Walk the host backward for exact hosts, suffix patterns and their buckets
+        final int length = host.length();
+        Node node = this.suffixes;
+        for (int i = length - 1; node != null; i--) {
+            if (node.suffix || node.matchesPattern(host)) return true;
+            if (i < 0) {
+                if (node.exact) return true;
+                break;
+            }
+            node = node.getChild(toLowerCase(host.charAt(i)));
+        }
+        // Walk the host forward for the buckets of patterns ending with a wildcard
+        node = this.prefixes;
+        for (int i = 0; node != null; i++) {
+            if (node.matchesPattern(host)) return true;
+            if (i >= length) break;
+            node = node.getChild(toLowerCase(host.charAt(i)));
+        }
+        for (final String pattern : this.otherPatterns) {
+            if (globMatches(pattern, host)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a host matches a wildcard pattern.
+     *
+     * @param pattern The lower case pattern.
+     * @param host    The host name.
+     *
+     * @return {@code true} if the host matches the pattern, {@code false} otherwise.
+     */
+    static boolean globMatches(@NonNull final String pattern, @NonNull final CharSequence host) {
+        int patternIndex = 0;
+        int hostIndex = 0;
+        // The position after the last any-sequence wildcard and the host position it is matched up to
+        int starIndex = -1;
+        int starHostIndex = 0;
+        while (hostIndex < host.length()) {
+            if (patternIndex < pattern.length()) {
+                final char c = pattern.charAt(patternIndex);
+                if (c == '*') {
+                    starIndex = ++patternIndex;
+                    starHostIndex = hostIndex;
+                    continue;
+                }
+                if (c == '?' || c == toLowerCase(host.charAt(hostIndex))) {
+                    patternIndex++;
+                    hostIndex++;
+                    continue;
+                }
+            }
+            // Backtrack to make the last any-sequence wildcard match one more character
+            if (starIndex < 0) return false;
+            patternIndex = starIndex;
+            hostIndex = ++starHostIndex;
+        }
+        while (patternIndex < pattern.length() && pattern.charAt(patternIndex) == '*') patternIndex++;
+        return patternIndex == pattern.length();
+    }
+
+    private static int indexOfWildcard(@NonNull final String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if (isWildcard(pattern.charAt(i))) return i;
+        }
+        return -1;
+    }
+
+    private static int lastIndexOfWildcard(@NonNull final String pattern) {
+        for (int i = pattern.length() - 1; i >= 0; i--) {
+            if (isWildcard(pattern.charAt(i))) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isWildcard(final char c) {
+        return c == '*' || c == '?';
+    }
+
+    /**
+     * Lower-case a host character, as {@link String#toLowerCase(Locale)} with the root locale does for host names.
+     *
+     * @param c The character to lower-case.
+     *
+     * @return The lower case character.
+     */
+    private static char toLowerCase(final char c) {
+        if (c < 0x80) return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        return Character.toLowerCase(c);
+    }
+
+    /**
+     * This class is a trie node, keyed by characters.
+     */
+    private static final class Node {
+        /**
+         * The child nodes, {@code null} if none.
+         */
+        private Map<Character, Node> children;
+        /**
+         * Whether any host reaching this node matches, whatever its other characters.
+         */
+        private boolean suffix;
+        /**
+         * Whether a host ending at this node matches, as an allowed host without wildcard.
+         */
+        private boolean exact;
+        /**
+         * The patterns to check for hosts reaching this node, {@code null} if none.
+         */
+        private List<String> patterns;
+
+        /**
+         * Insert a literal.
+         *
+         * @param pattern The pattern holding the literal.
+         * @param start   The index of the first literal character to insert.
+         * @param end     The index after the last literal character to insert, in the step direction.
+         * @param step    The step between literal characters, {@code 1} or {@code -1}.
+         *
+         * @return The node of the literal.
+         */
+        @NonNull
+        Node insert(@NonNull final String pattern, final int start, final int end, final int step) {
+            Node node = this;
+            for (int i = start; i != end; i += step) {
+                if (node.children == null) node.children = new HashMap<>();
+                final char c = pattern.charAt(i);
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        /**
+         * Get a child node.
+         *
+         * @param c The character of the child.
+         *
+         * @return The child node, {@code null} if none.
+         */
+        Node getChild(final char c) {
+            return this.children == null ? null : this.children.get(c);
+        }
+
+        /**
+         * Add a pattern to check for hosts reaching this node.
+         *
+         * @param pattern The pattern to add.
+         */
+        void addPattern(@NonNull final String pattern) {
+            if (this.patterns == null) this.patterns = new ArrayList<>(1);
+            this.patterns.add(pattern);
+        }
+
+        /**
+         * Check whether a host matches one of the patterns of this node.
+         *
+         * @param host The host name.
+         *
+         * @return {@code true} if the host matches a pattern of this node, {@code false} otherwise.
+         */
+        boolean matchesPattern(@NonNull final CharSequence host) {
+            if (this.patterns == null) return false;
+            for (final String pattern : this.patterns) {
+                if (globMatches(pattern, host)) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,594 @@
+package org.pro.adaway.vpn.dns;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.pro.adaway.BuildConfig;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is a cache of the positive answers of upstream DNS servers, in wire format.
+ * <p>
+ * Answers are keyed by their question section (name, type and class) and whether they were requested with
+ * EDNS. They are kept for the minimum TTL of their records and served with their transaction identifier
+ * patched and their TTLs decreased by their age. The cache is bounded by the bytes of its answers, evicting the
+ * least recently used ones first, unless the new answer is requested less often than the evicted one.
+ * <p>
+ * Request frequencies are estimated with a {@link DnsFrequencySketch}. Answers of the hottest names are
+ * refreshed shortly before they expire, and expired answers are kept for a stale window to be served when the
+ * upstream server is slow or unreachable (RFC 8767). This class is thread safe.
+ */
+final class DnsAnswerCache {
+    /**
+     * The maximum size of the cached answers, in bytes.
+     */
+    private static final int MAX_SIZE_BYTES = 512 * 1024;
+    /**
+     * The maximum size of a single cached answer, in bytes.
+     */
+    private static final int MAX_ANSWER_SIZE_BYTES = MAX_SIZE_BYTES / 16;
+    /**
+     * The estimated memory overhead of a cached answer, in bytes.
+     */
+    private static final int ANSWER_OVERHEAD_BYTES = 96;
+    /**
+     * The maximum time to keep an answer, in seconds.
+     */
+    private static final int MAX_TTL_SECONDS = 3600;
+    /**
+     * The time to keep expired answers to serve them stale, in milliseconds.
+     */
+    private static final long STALE_WINDOW_MS = 24 * 3600 * 1000L;
+    /**
+     * The TTL of the records of stale answers, in seconds (RFC 8767).
+     */
+    private static final int STALE_TTL_SECONDS = 30;
+    /**
+     * The minimum estimated frequency of a name to refresh its answer before it expires.
+     */
+    private static final int HOT_FREQUENCY = 3;
+    /**
+     * The minimum time before expiry to refresh an answer, in milliseconds.
+     */
+    private static final long MIN_REFRESH_WINDOW_MS = 1000;
+    /**
+     * The time to wait for a refresh before trying again, in milliseconds.
+     */
+    private static final long REFRESH_RETRY_MS = 10_000;
+    /**
+     * The number of counters per row of the frequency sketch.
+     */
+    private static final int SKETCH_WIDTH = 1024;
+    /**
+     * The number of lookups between two statistics reports.
+     */
+    private static final int STATISTICS_PERIOD = 1000;
+    /**
+     * The DNS header length, in bytes.
+     */
+    private static final int DNS_HEADER_LENGTH = 12;
+    /**
+     * The OPT pseudo-record type, whose TTL field holds EDNS flags.
+     */
+    private static final int OPT_TYPE = 41;
+    /**
+     * The cached answers, in least recently used order.
+     */
+    private final LinkedHashMap<Key, Answer> answers;
+    /**
+     * The reusable key to look requests up with.
+     */
+    private final Key lookupKey;
+    /**
+     * The estimated request frequencies, by key hash.
+     */
+    private final DnsFrequencySketch sketch;
+    /**
+     * The size of the cached answers, in bytes.
+     */
+    private int sizeInBytes;
+    /**
+     * The number of lookups answered from the cache.
+     */
+    private long hitCount;
+    /**
+     * The number of lookups not answered from the cache.
+     */
+    private long missCount;
+    /**
+     * The number of answers refreshed before they expire.
+     */
+    private long refreshCount;
+
+    /**
+     * Constructor.
+     */
+    DnsAnswerCache() {
+        this.answers = new LinkedHashMap<>(64, 0.75F, true);
+        this.lookupKey = new Key();
+        this.sketch = new DnsFrequencySketch(SKETCH_WIDTH);
+        this.sizeInBytes = 0;
+        this.hitCount = 0;
+        this.missCount = 0;
+        this.refreshCount = 0;
+    }
+
+    /**
+     * Get the cached response of a request.
+     *
+     * @param request  The request packet.
+     * @param question The parsed question of the request packet.
+     *
+     * @return The response DNS message with the request identifier, {@code null} if not cached.
+     */
+    @Nullable
+    synchronized byte[] get(@NonNull final byte[] request, @NonNull final DnsQuestion question) {
+        final Answer answer = lookup(request, question);
+        this.sketch.increment(this.lookupKey.hash);
+        final long now = DnsTimer.now();
+        byte[] response = null;
+        if (answer != null) {
+            if (now < answer.expiresAt) {
+                final int dnsOffset = question.getDnsOffset();
+                response = answer.serve(now, request[dnsOffset], request[dnsOffset + 1]);
+            } else if (now >= answer.expiresAt + STALE_WINDOW_MS) {
+                this.answers.remove(this.lookupKey);
+                this.sizeInBytes -= answer.sizeInBytes;
+            }
+        }
+        if (response == null) this.missCount++;
+        else this.hitCount++;
+        reportStatistics();
+        return response;
+    }
+
+    /**
+     * Get the stale response of a request, to serve if the upstream server does not answer in time.
+     *
+     * @param request  The request packet.
+     * @param question The parsed question of the request packet.
+     *
+     * @return The expired response DNS message with the request identifier and stale TTLs,
+     * {@code null} if not cached or expired for longer than the stale window.
+     */
+    @Nullable
+    synchronized byte[] getStale(@NonNull final byte[] request, @NonNull final DnsQuestion question) {
+        final Answer answer = lookup(request, question);
+        if (answer == null || DnsTimer.now() >= answer.expiresAt + STALE_WINDOW_MS) return null;
+        final int dnsOffset = question.getDnsOffset();
+        return answer.serveStale(request[dnsOffset], request[dnsOffset + 1]);
+    }
+
+    /**
+     * Check whether the answer of a request should be refreshed before it expires, and mark it as refreshing.
+     * Only the answers of hot names about to expire are refreshed.
+     *
+     * @param request  The request packet.
+     * @param question The parsed question of the request packet.
+     *
+     * @return {@code true} if the request should be sent upstream to refresh its answer, {@code false} otherwise.
+     */
+    synchronized boolean startRefresh(@NonNull final byte[] request, @NonNull final DnsQuestion question) {
+        final Answer answer = lookup(request, question);
+        if (answer == null) return false;
+        final long now = DnsTimer.now();
+        final long refreshWindow = Math.max((answer.expiresAt - answer.cachedAt) / 10, MIN_REFRESH_WINDOW_MS);
+        if (now >= answer.expiresAt || answer.expiresAt - now > refreshWindow
+                || now - answer.refreshedAt < REFRESH_RETRY_MS
+                || this.sketch.frequency(this.lookupKey.hash) < HOT_FREQUENCY) {
+            return false;
+        }
+        answer.refreshedAt = now;
+        this.refreshCount++;
+        return true;
+    }
+
+    /**
+     * Look the answer of a request up.
+     *
+     * @param request  The request packet.
+     * @param question The parsed question of the request packet.
+     *
+     * @return The cached answer, {@code null} if not cached.
+     */
+    @Nullable
+    private Answer lookup(@NonNull final byte[] request, @NonNull final DnsQuestion question) {
+        final int dnsOffset = question.getDnsOffset();
+        final boolean edns = readShort(request, dnsOffset + 10) != 0;
+        this.lookupKey.set(request, dnsOffset + DNS_HEADER_LENGTH, question.getQuestionEnd(), edns);
+        return this.answers.get(this.lookupKey);
+    }
+
+    /**
+     * Cache an upstream response if it is a cacheable positive answer.
+     *
+     * @param response The response DNS message.
+     */
+    synchronized void put(@NonNull final byte[] response) {
+        store(response, DnsTimer.now());
+    }
+
+    /**
+     * Store a response if it is a cacheable positive answer.
+     *
+     * @param response The response DNS message.
+     * @param cachedAt The time the response was received, in {@link DnsTimer#now()} time.
+     *
+     * @return The key of the stored answer, {@code null} if the response was not stored.
+     */
+    @Nullable
+    private Key store(@NonNull final byte[] response, final long cachedAt) {
+        final int length = response.length;
+        if (length < DNS_HEADER_LENGTH || length > MAX_ANSWER_SIZE_BYTES) return null;
+        // Check QR is set, TC is cleared and RCODE is NOERROR
+        if ((response[2] & 0x82) != 0x80 || (response[3] & 0x0F) != 0) return null;
+        final int questionCount = readShort(response, 4);
+        final int answerCount = readShort(response, 6);
+        final int recordCount = answerCount + readShort(response, 8) + readShort(response, 10);
+        if (questionCount != 1 || answerCount == 0) return null;
+        // Skip question name, type and class
+        int offset = skipName(response, DNS_HEADER_LENGTH);
+        if (offset < 0 || offset + 4 > length) return null;
+        offset += 4;
+        final int questionEnd = offset;
+        // Collect record TTLs
+        final int[] ttlOffsets = new int[recordCount];
+        int ttlCount = 0;
+        long minTtl = MAX_TTL_SECONDS;
+        boolean edns = false;
+        for (int i = 0; i < recordCount; i++) {
+            offset = skipName(response, offset);
+            if (offset < 0 || offset + 10 > length) return null;
+            final int type = readShort(response, offset);
+            if (type == OPT_TYPE) {
+                edns = true;
+            } else {
+                ttlOffsets[ttlCount++] = offset + 4;
+                // TTLs with the most significant bit set are to be treated as zero (RFC 2181)
+                final long ttl = readInt(response, offset + 4);
+                minTtl = Math.min(minTtl, ttl > Integer.MAX_VALUE ? 0 : ttl);
+            }
+            offset += 10 + readShort(response, offset + 8);
+            if (offset > length) return null;
+        }
+        if (minTtl <= 0) return null;
+        // Store the answer
+        final Key key = new Key();
+        key.set(Arrays.copyOfRange(response, DNS_HEADER_LENGTH, questionEnd), 0, questionEnd - DNS_HEADER_LENGTH, edns);
+        final Answer answer = new Answer(response.clone(), Arrays.copyOf(ttlOffsets, ttlCount),
+                cachedAt, cachedAt + minTtl * 1000, key.length);
+        // Only let a new name evict answers if it is requested as often as the least recently used one
+        if (this.sizeInBytes + answer.sizeInBytes > MAX_SIZE_BYTES && !this.answers.isEmpty()
+                && !this.answers.containsKey(key)) {
+            final Key eldestKey = this.answers.keySet().iterator().next();
+            if (this.sketch.frequency(key.hash) < this.sketch.frequency(eldestKey.hash)) return null;
+        }
+        final Answer previousAnswer = this.answers.put(key, answer);
+        if (previousAnswer != null) this.sizeInBytes -= previousAnswer.sizeInBytes;
+        this.sizeInBytes += answer.sizeInBytes;
+        // Evict least recently used answers
+        final Iterator<Map.Entry<Key, Answer>> iterator = this.answers.entrySet().iterator();
+        while (this.sizeInBytes > MAX_SIZE_BYTES && iterator.hasNext()) {
+            this.sizeInBytes -= iterator.next().getValue().sizeInBytes;
+            iterator.remove();
+        }
+        return key;
+    }
+
+    /**
+     * Write the answers of the most requested names, to restore them with {@link #readAnswers(DataInputStream)}.
+     * Answers expired for longer than the stale window are not written.
+     *
+     * @param output   The stream to write answers to.
+     * @param maxCount The maximum number of answers to write.
+     *
+     * @throws IOException If the answers could not be written.
+     */
+    synchronized void writeHotAnswers(@NonNull final DataOutputStream output, final int maxCount) throws IOException {
+        final long now = DnsTimer.now();
+        final List<Map.Entry<Key, Answer>> entries = new ArrayList<>(this.answers.size());
+        for (final Map.Entry<Key, Answer> entry : this.answers.entrySet()) {
+            if (now < entry.getValue().expiresAt + STALE_WINDOW_MS) entries.add(entry);
+        }
+        Collections.sort(entries, (entry1, entry2) ->
+                Integer.compare(this.sketch.frequency(entry2.getKey().hash), this.sketch.frequency(entry1.getKey().hash)));
+        final int count = Math.min(entries.size(), maxCount);
+        // Store times as wall clock time as the monotonic clock restarts with the device
+        final long wallNow = System.currentTimeMillis();
+        output.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            final Map.Entry<Key, Answer> entry = entries.get(i);
+            final Answer answer = entry.getValue();
+            output.writeLong(wallNow - (now - answer.cachedAt));
+            output.writeByte(this.sketch.frequency(entry.getKey().hash));
+            output.writeShort(answer.response.length);
+            output.write(answer.response);
+        }
+    }
+
+    /**
+     * Read answers written by {@link #writeHotAnswers(DataOutputStream, int)}.
+     * Answers keep their age, so the expired ones are only served stale.
+     *
+     * @param input The stream to read answers from.
+     *
+     * @return The number of restored answers.
+     *
+     * @throws IOException If the answers could not be read.
+     */
+    synchronized int readAnswers(@NonNull final DataInputStream input) throws IOException {
+        final long now = DnsTimer.now();
+        final long wallNow = System.currentTimeMillis();
+        final int count = input.readInt();
+        int restoredCount = 0;
+        for (int i = 0; i < count; i++) {
+            final long wallCachedAt = input.readLong();
+            final int frequency = input.readUnsignedByte();
+            final byte[] response = new byte[input.readUnsignedShort()];
+            input.readFully(response);
+            // Skip answers from the future, the clock was changed, and answers too old to be served
+            final long age = wallNow - wallCachedAt;
+            if (age < 0 || age >= MAX_TTL_SECONDS * 1000L + STALE_WINDOW_MS) continue;
+            final Key key = store(response, now - age);
+            if (key == null) continue;
+            // Restore the name popularity so hot answers are refreshed and kept
+            for (int j = 0; j < Math.min(frequency, HOT_FREQUENCY); j++) {
+                this.sketch.increment(key.hash);
+            }
+            restoredCount++;
+        }
+        return restoredCount;
+    }
+
+    /**
+     * Remove all cached answers.
+     */
+    synchronized void clear() {
+        this.answers.clear();
+        this.sizeInBytes = 0;
+    }
+
+    /**
+     * Get the number of lookups answered from the cache, each saving an upstream round-trip.
+     *
+     * @return The number of lookups answered from the cache.
+     */
+    synchronized long getHitCount() {
+        return this.hitCount;
+    }
+
+    /**
+     * Get the number of lookups not answered from the cache.
+     *
+     * @return The number of lookups not answered from the cache.
+     */
+    synchronized long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * Get the number of answers refreshed before they expire.
+     *
+     * @return The number of answers refreshed before they expire.
+     */
+    synchronized long getRefreshCount() {
+        return this.refreshCount;
+    }
+
+    /**
+     * Get the size of the cached answers.
+     *
+     * @return The size of the cached answers, in bytes.
+     */
+    synchronized int getSizeInBytes() {
+        return this.sizeInBytes;
+    }
+
+    /**
+     * Report cache statistics periodically.
+     */
+    private void reportStatistics() {
+        final long lookupCount = this.hitCount + this.missCount;
+        if (!BuildConfig.DEBUG || lookupCount % STATISTICS_PERIOD != 0) return;
+        final double hitRate = 100D * this.hitCount / lookupCount;
+        Log.d("AWAISKING_APP", "DNS answer cache hits: " + this.hitCount + ", misses: " + this.missCount
+                + ", hit rate: " + hitRate + "%, saved round-trips: " + this.hitCount + ", refreshes: " + this.refreshCount
+                + ", answers: " + this.answers.size() + ", bytes: " + this.sizeInBytes);
+    }
+
+    /**
+     * Skip a name of a DNS message.
+     *
+     * @param message The DNS message.
+     * @param offset  The offset of the name.
+     *
+     * @return The offset after the name, {@code -1} if the name is invalid.
+     */
+    private static int skipName(final byte[] message, int offset) {
+        while (offset < message.length) {
+            final int labelLength = message[offset] & 0xFF;
+            if (labelLength == 0) return offset + 1;
+            if ((labelLength & 0xC0) == 0xC0) return offset + 2;
+            if ((labelLength & 0xC0) != 0) return -1;
+            offset += 1 + labelLength;
+        }
+        return -1;
+    }
+
+    private static int readShort(final byte[] data, final int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static long readInt(final byte[] data, final int offset) {
+        return ((long) readShort(data, offset) << 16) | readShort(data, offset + 2);
+    }
+
+    private static void writeInt(final byte[] data, final int offset, final long value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     * This class is the key of a cached answer: its question section and whether it uses EDNS.
+     */
+    private static final class Key {
+        /**
+         * The data holding the question section.
+         */
+        private byte[] data;
+        /**
+         * The offset of the question section in the data.
+         */
+        private int offset;
+        /**
+         * The length of the question section.
+         */
+        private int length;
+        /**
+         * Whether the answer was requested with EDNS.
+         */
+        private boolean edns;
+        /**
+         * The key hash.
+         */
+        private int hash;
+
+        /**
+         * Set the key.
+         *
+         * @param data   The data holding the question section.
+         * @param offset The offset of the question section in the data.
+         * @param end    The offset of the first byte after the question section.
+         * @param edns   Whether the answer was requested with EDNS.
+         */
+        void set(final byte[] data, final int offset, final int end, final boolean edns) {
+            this.data = data;
+            this.offset = offset;
+            this.length = end - offset;
+            this.edns = edns;
+            int hash = edns ? 1 : 0;
+            for (int i = offset; i < end; i++) {
+                hash = 31 * hash + data[i];
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key other = (Key) o;
+            if (this.hash != other.hash || this.length != other.length || this.edns != other.edns) return false;
+            for (int i = 0; i < this.length; i++) {
+                if (this.data[this.offset + i] != other.data[other.offset + i]) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * This class is a cached answer.
+     */
+    private static final class Answer {
+        /**
+         * The response DNS message, as received from upstream.
+         */
+        private final byte[] response;
+        /**
+         * The offsets of the record TTLs to decrease when serving the answer.
+         */
+        private final int[] ttlOffsets;
+        /**
+         * The time the answer was cached, in {@link DnsTimer#now()} time.
+         */
+        private final long cachedAt;
+        /**
+         * The time the answer expires, in {@link DnsTimer#now()} time.
+         */
+        private final long expiresAt;
+        /**
+         * The estimated memory size of the answer, in bytes.
+         */
+        private final int sizeInBytes;
+        /**
+         * The last time a refresh of the answer was started, in {@link DnsTimer#now()} time.
+         */
+        private long refreshedAt;
+
+        /**
+         * Constructor.
+         *
+         * @param response   The response DNS message, as received from upstream.
+         * @param ttlOffsets The offsets of the record TTLs to decrease when serving the answer.
+         * @param cachedAt   The time the answer was cached, in {@link DnsTimer#now()} time.
+         * @param expiresAt  The time the answer expires, in {@link DnsTimer#now()} time.
+         * @param keyLength  The length of the answer key data.
+         */
+        Answer(final byte[] response, final int[] ttlOffsets, final long cachedAt, final long expiresAt,
+               final int keyLength) {
+            this.response = response;
+            this.ttlOffsets = ttlOffsets;
+            this.cachedAt = cachedAt;
+            this.expiresAt = expiresAt;
+            this.refreshedAt = cachedAt - REFRESH_RETRY_MS;
+            this.sizeInBytes = ANSWER_OVERHEAD_BYTES + response.length + keyLength + 4 * ttlOffsets.length;
+        }
+
+        /**
+         * Serve the answer.
+         *
+         * @param now    The current time, in {@link DnsTimer#now()} time.
+         * @param idHigh The high byte of the request identifier.
+         * @param idLow  The low byte of the request identifier.
+         *
+         * @return A copy of the response with the request identifier and decreased TTLs.
+         */
+        byte[] serve(final long now, final byte idHigh, final byte idLow) {
+            final byte[] copy = this.response.clone();
+            copy[0] = idHigh;
+            copy[1] = idLow;
+            final long age = (now - this.cachedAt) / 1000;
+            for (final int ttlOffset : this.ttlOffsets) {
+                writeInt(copy, ttlOffset, Math.max(0, readInt(this.response, ttlOffset) - age));
+            }
+            return copy;
+        }
+
+        /**
+         * Serve the expired answer.
+         *
+         * @param idHigh The high byte of the request identifier.
+         * @param idLow  The low byte of the request identifier.
+         *
+         * @return A copy of the response with the request identifier and stale TTLs.
+         */
+        byte[] serveStale(final byte idHigh, final byte idLow) {
+            final byte[] copy = this.response.clone();
+            copy[0] = idHigh;
+            copy[1] = idLow;
+            for (final int ttlOffset : this.ttlOffsets) {
+                writeInt(copy, ttlOffset, STALE_TTL_SECONDS);
+            }
+            return copy;
+        }
+    }
+}
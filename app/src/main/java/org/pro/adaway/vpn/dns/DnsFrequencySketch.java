@@ -0,0 +1,102 @@
+package org.pro.adaway.vpn.dns;
+
+/**
+ * This class is a count-min sketch estimating how often DNS names are requested.
+ * <p>
+ * Each hash increments one small saturating counter per row, and the estimated frequency is the minimum of
+ * these counters. All counters are halved after a fixed number of increments so the sketch follows the
+ * recently popular names rather than the all-time ones.
+ */
+final class DnsFrequencySketch {
+    /**
+     * The number of counter rows.
+     */
+    private static final int ROW_COUNT = 4;
+    /**
+     * The maximum value of a counter.
+     */
+    private static final int MAX_COUNT = 15;
+    /**
+     * The row hash seeds.
+     */
+    private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+    /**
+     * The counters, row after row.
+     */
+    private final byte[] counters;
+    /**
+     * The mask to get a counter index in a row from a hash.
+     */
+    private final int rowMask;
+    /**
+     * The number of increments between two counter halvings.
+     */
+    private final int samplePeriod;
+    /**
+     * The number of increments since the last counter halving.
+     */
+    private int sampleCount;
+
+    /**
+     * Constructor.
+     *
+     * @param width The number of counters per row, as a power of two.
+     */
+    DnsFrequencySketch(final int width) {
+        this.counters = new byte[ROW_COUNT * width];
+        this.rowMask = width - 1;
+        this.samplePeriod = 10 * width;
+        this.sampleCount = 0;
+    }
+
+    /**
+     * Record an occurrence of a hash.
+     *
+     * @param hash The hash to record.
+     */
+    void increment(final int hash) {
+        boolean incremented = false;
+        for (int row = 0; row < ROW_COUNT; row++) {
+            final int index = indexOf(hash, row);
+            if (this.counters[index] < MAX_COUNT) {
+                this.counters[index]++;
+                incremented = true;
+            }
+        }
+        if (incremented && ++this.sampleCount >= this.samplePeriod) {
+            for (int i = 0; i < this.counters.length; i++) {
+                this.counters[i] >>>= 1;
+            }
+            this.sampleCount /= 2;
+        }
+    }
+
+    /**
+     * Estimate the frequency of a hash.
+     *
+     * @param hash The hash to estimate frequency.
+     *
+     * @return The estimated frequency, from {@code 0} to {@value #MAX_COUNT}.
+     */
+    int frequency(final int hash) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < ROW_COUNT; row++) {
+            frequency = Math.min(frequency, this.counters[indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * Get the counter index of a hash in a row.
+     *
+     * @param hash The hash.
+     * @param row  The row.
+     *
+     * @return The counter index.
+     */
+    private int indexOf(final int hash, final int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return row * (this.rowMask + 1) + (h & this.rowMask);
+    }
+}
@@ -18,6 +18,7 @@ import android.content.Context;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.core.util.Consumer;
 
 import org.pro.adaway.AdAwayApplication;
 import org.pro.adaway.BuildConfig;
@@ -40,6 +41,7 @@ import org.xbill.DNS.Flags;
 import org.xbill.DNS.Header;
 import org.xbill.DNS.Message;
 import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
 import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Record;
 import org.xbill.DNS.SOARecord;
@@ -52,7 +54,10 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import awaisome.compat.Optional;
 
@@ -60,11 +65,18 @@ import awaisome.compat.Optional;
  * Creates and parses packets, and sends packets to a remote socket or the device using VpnWorker.
  */
 public class DnsPacketProxy {
+    // The maximum length of a DNS message over TCP.
+    private static final int MAX_DNS_LENGTH = 65535;
     // Choose a value that is smaller than the time needed to unblock a host.
     private static final int NEGATIVE_CACHE_TTL_SECONDS = 5;
     private static final SOARecord NEGATIVE_CACHE_SOA_RECORD;
+    // The shared entry of unlisted names. It has no host name and must not be modified.
+    private static final HostEntry ALLOWED_ENTRY;
 
     static {
+        ALLOWED_ENTRY = new HostEntry();
+        ALLOWED_ENTRY.setHost("");
+        ALLOWED_ENTRY.setType(ListType.ALLOWED);
         try {
             // Let's use a guaranteed invalid hostname here, clients are not supposed to use
             // our fake values, the whole thing just exists for negative caching.
@@ -78,11 +90,44 @@ public class DnsPacketProxy {
 
     private final VpnWorker vpnWorker;
     private final DnsServerMapper dnsServerMapper;
+    /**
+     * The reusable holder of the DNS question of the handled request.
+     */
+    private final DnsQuestion dnsQuestion;
+    /**
+     * The writer of the response packets of the handled requests.
+     */
+    private final DnsResponseWriter dnsResponseWriter;
+    /**
+     * The cache of the upstream answers of allowed requests.
+     */
+    private final DnsAnswerCache dnsAnswerCache;
+    /**
+     * The persisted hot names and answers, to warm the caches at start.
+     */
+    private final DnsWarmCache dnsWarmCache;
+    /**
+     * The writer of response packets to the tunnel.
+     */
+    private final Consumer<byte[]> deviceWriter;
+    /**
+     * The endpoint of the DNS queries over TCP.
+     */
+    private final DnsTcpEndpoint dnsTcpEndpoint;
     private VpnModel vpnModel;
 
     public DnsPacketProxy(final VpnWorker vpnWorker, final DnsServerMapper dnsServerMapper) {
         this.vpnWorker = vpnWorker;
         this.dnsServerMapper = dnsServerMapper;
+        this.dnsQuestion = new DnsQuestion();
+        this.dnsResponseWriter = new DnsResponseWriter();
+        this.dnsAnswerCache = new DnsAnswerCache();
+        this.dnsWarmCache = new DnsWarmCache();
+        this.deviceWriter = response -> {
+            this.dnsWarmCache.onAnswer();
+            vpnWorker.queueDeviceWrite(response);
+        };
+        this.dnsTcpEndpoint = new DnsTcpEndpoint(this, vpnWorker::queueDeviceWrite);
     }
 
     /**
@@ -92,6 +137,35 @@ public class DnsPacketProxy {
      */
     public void initialize(@NonNull final Context context) {
         this.vpnModel = (VpnModel) ((AdAwayApplication) context.getApplicationContext()).getAdBlockModel();
+        this.vpnModel.initializeHostEntries();
+        this.dnsAnswerCache.clear();
+        this.dnsTcpEndpoint.clear();
+        // Warm the caches with the names requested before the last stop
+        final List<String> hotNames = this.dnsWarmCache.load(context, this.dnsAnswerCache);
+        this.vpnModel.preloadEntries(hotNames);
+    }
+
+    /**
+     * Get the time until the next DNS over TCP retransmission.
+     *
+     * @return The time until the next retransmission, in milliseconds, {@code -1} if there is nothing to retransmit.
+     */
+    public int getTcpTimeout() {
+        return this.dnsTcpEndpoint.getTimeout();
+    }
+
+    /**
+     * Retransmit the DNS over TCP segments not acknowledged in time.
+     */
+    public void retransmitTcpSegments() {
+        this.dnsTcpEndpoint.retransmit();
+    }
+
+    /**
+     * Save the hot names and their answers, to warm the caches at next start.
+     */
+    public void saveWarmCache() {
+        this.dnsWarmCache.save(this.dnsAnswerCache);
     }
 
     /**
@@ -101,6 +175,18 @@ public class DnsPacketProxy {
      * @param responsePayload The payload of the response
      */
     public void handleDnsResponse(@NonNull final IpPacket requestPacket, final byte[] responsePayload) {
+        handleDnsResponse(requestPacket, responsePayload, this.deviceWriter);
+    }
+
+    /**
+     * Handles a responsePayload from an upstream DNS server
+     *
+     * @param requestPacket   The original request packet
+     * @param responsePayload The payload of the response
+     * @param responseWriter  The writer of the response packet
+     */
+    private void handleDnsResponse(@NonNull final IpPacket requestPacket, final byte[] responsePayload,
+                                   @NonNull final Consumer<byte[]> responseWriter) {
         final UdpPacket udpOutPacket = (UdpPacket) requestPacket.getPayload();
         final UdpPacket.Builder payLoadBuilder = new UdpPacket.Builder(udpOutPacket)
                 .srcPort(udpOutPacket.getHeader().getDstPort())
@@ -128,20 +214,122 @@ public class DnsPacketProxy {
                     .payloadBuilder(payLoadBuilder)
                     .build();
         }
-        this.vpnWorker.queueDeviceWrite(ipOutPacket);
+        final byte[] rawData = ipOutPacket.getRawData();
+        if (rawData != null) responseWriter.accept(rawData);
     }
 
     /**
      * Handles a DNS request, by either blocking it or forwarding it to the remote location.
      *
+     * The packet buffer is only borrowed for the call: it is reused by the caller once this method returns.
+     *
      * @param packetData The packet data to read
+     * @param length     The length of the packet data
+     *
+     * @throws IOException If some network error occurred
+     */
+    public void handleDnsRequest(final byte[] packetData, final int length) throws IOException {
+        handleDnsRequest(packetData, length, this.deviceWriter, false);
+    }
+
+    /**
+     * Handles a DNS request, by either blocking it or forwarding it to the remote location.
+     *
+     * The packet buffer is only borrowed for the call: it is reused by the caller once this method returns.
+     *
+     * @param packetData     The packet data to read
+     * @param length         The length of the packet data
+     * @param responseWriter The writer of the response packets
+     * @param stream         Whether the request came over TCP, so responses are not truncated
+     *
+     * @throws IOException If some network error occurred
+     */
+    void handleDnsRequest(final byte[] packetData, final int length, @NonNull final Consumer<byte[]> responseWriter,
+                          final boolean stream) throws IOException {
+        // Parse common queries without decoding the whole packet
+        final DnsQuestion question = this.dnsQuestion;
+        if (!question.parse(packetData, length)) {
+            // Answer queries over TCP with the user-space endpoint
+            if (!stream && this.dnsTcpEndpoint.handlePacket(packetData, length)) return;
+            handleUnusualDnsRequest(packetData, length, responseWriter, stream);
+            return;
+        }
+        final Optional<InetAddress> dnsAddressOptional =
+                this.dnsServerMapper.getDnsServerFromFakeAddressLastByte(question.getDestinationAddressLastByte());
+        if (!dnsAddressOptional.isPresent()) {
+            if (BuildConfig.DEBUG)
+                Log.w("AWAISKING_APP", "Cannot find mapped DNS for fake address " + question.getDestinationAddressLastByte());
+            return;
+        }
+        final InetAddress dnsAddress = dnsAddressOptional.get();
+        this.dnsWarmCache.recordRequest(question, this.dnsAnswerCache);
+        final HostEntry entry = getHostEntry(question);
+        final ListType entryType = entry.getType();
+        if (entryType == ListType.BLOCKED) {
+            if (BuildConfig.DEBUG)
+                Log.i("AWAISKING_APP", "handleDnsRequest: DNS Name " + question + " blocked!");
+            responseWriter.accept(this.dnsResponseWriter.writeBlockedResponse(packetData, question));
+        } else if (entryType == ListType.ALLOWED) {
+            final int dnsOffset = question.getDnsOffset();
+            // Truncate UDP responses to the client payload size, and keep header and question if truncated
+            final int maxPayloadLength = stream ? MAX_DNS_LENGTH : question.getUdpPayloadSize();
+            final int questionLength = question.getQuestionEnd() - dnsOffset;
+            final DatagramPacket outPacket = new DatagramPacket(packetData, dnsOffset, question.getDnsLength(),
+                    dnsAddress, question.getDestinationPort());
+            final byte[] cachedResponse = this.dnsAnswerCache.get(packetData, question);
+            if (cachedResponse != null) {
+                if (BuildConfig.DEBUG)
+                    Log.i("AWAISKING_APP", "handleDnsRequest: DNS Name " + question + " allowed, answered from cache");
+                responseWriter.accept(this.dnsResponseWriter.writeResponse(packetData, dnsOffset, cachedResponse,
+                        maxPayloadLength, questionLength));
+                // Refresh hot answers in background before they expire
+                if (this.dnsAnswerCache.startRefresh(packetData, question)) {
+                    this.vpnWorker.forwardPacket(outPacket, this.dnsAnswerCache::put);
+                }
+                return;
+            }
+            if (BuildConfig.DEBUG)
+                Log.i("AWAISKING_APP", "handleDnsRequest: DNS Name " + question + " allowed, sending to " + dnsAddress);
+            // Only keep the IP and UDP headers for the response as the packet buffer will be reused
+            final byte[] requestHeaders = Arrays.copyOf(packetData, dnsOffset);
+            // Answer with the expired answer if upstream is too slow or unreachable
+            final byte[] staleResponse = this.dnsAnswerCache.getStale(packetData, question);
+            final AtomicBoolean answered = new AtomicBoolean(false);
+            final Runnable slowCallback = staleResponse == null ? null : () -> {
+                if (!answered.compareAndSet(false, true)) return;
+                if (BuildConfig.DEBUG)
+                    Log.i("AWAISKING_APP", "handleDnsRequest: Upstream is late, serving stale answer");
+                responseWriter.accept(this.dnsResponseWriter.writeResponse(requestHeaders, dnsOffset, staleResponse,
+                        maxPayloadLength, questionLength));
+            };
+            this.vpnWorker.forwardPacket(outPacket, data -> {
+                this.dnsAnswerCache.put(data);
+                if (!answered.compareAndSet(false, true)) return;
+                responseWriter.accept(this.dnsResponseWriter.writeResponse(requestHeaders, dnsOffset, data,
+                        maxPayloadLength, questionLength));
+            }, slowCallback);
+        } else if (entryType == ListType.REDIRECTED) {
+            if (BuildConfig.DEBUG)
+                Log.i("AWAISKING_APP", "handleDnsRequest: DNS Name " + question + " redirected to " + entry.getRedirection());
+            responseWriter.accept(this.dnsResponseWriter.writeRedirectedResponse(packetData, question, entry.getRedirection()));
+        }
+    }
+
+    /**
+     * Handles a DNS request not supported by {@link DnsQuestion}, by decoding the whole packet.
+     *
+     * @param packetData     The packet data to read
+     * @param length         The length of the packet data
+     * @param responseWriter The writer of the response packets
+     * @param stream         Whether the request came over TCP, so responses are not truncated
      *
      * @throws IOException If some network error occurred
      */
-    public void handleDnsRequest(final byte[] packetData) throws IOException {
+    private void handleUnusualDnsRequest(final byte[] packetData, final int length,
+                                         @NonNull final Consumer<byte[]> responseWriter, final boolean stream) throws IOException {
         final IpPacket ipPacket;
         try {
-            ipPacket = (IpPacket) IpSelector.newPacket(packetData, 0, packetData.length);
+            ipPacket = (IpPacket) IpSelector.newPacket(packetData, 0, length);
         } catch (final Exception e) {
             if (BuildConfig.DEBUG)
                 Log.w("AWAISKING_APP", "handleDnsRequest: Discarding invalid IP packet", e);
@@ -201,9 +389,33 @@ public class DnsPacketProxy {
             return;
         }
 
+        final String dnsQueryName = dnsMsg.getQuestion().getName().toString(true);
+        final HostEntry entry = getHostEntry(dnsQueryName.toLowerCase(Locale.ENGLISH));
+
+        if (entry.getType() == ListType.ALLOWED) {
+            if (BuildConfig.DEBUG)
+                Log.i("AWAISKING_APP", "handleDnsRequest: DNS Name " + dnsQueryName + " allowed, sending to " + dnsAddress);
+            final DatagramPacket outPacket = new DatagramPacket(dnsRawData, 0, dnsRawData.length, dnsAddress, packetPort);
+            final int maxPayloadLength = stream ? MAX_DNS_LENGTH : getUdpPayloadSize(dnsMsg);
+            this.vpnWorker.forwardPacket(outPacket, data ->
+                    handleDnsResponse(ipPacket, truncate(data, maxPayloadLength), responseWriter));
+        } else {
+            handleListedDnsRequest(ipPacket, dnsMsg, entry, responseWriter);
+        }
+    }
+
+    /**
+     * Handles a DNS request of a blocked or redirected host, by answering it directly.
+     *
+     * @param ipPacket       The request packet
+     * @param dnsMsg         The request DNS message
+     * @param entry          The host entry of the requested name
+     * @param responseWriter The writer of the response packet
+     */
+    private void handleListedDnsRequest(@NonNull final IpPacket ipPacket, @NonNull final Message dnsMsg,
+                                        @NonNull final HostEntry entry, @NonNull final Consumer<byte[]> responseWriter) {
         final Name name = dnsMsg.getQuestion().getName();
         final String dnsQueryName = name.toString(true);
-        final HostEntry entry = getHostEntry(dnsQueryName);
         final ListType entryType = entry.getType();
 
         if (entryType == ListType.BLOCKED) {
@@ -213,12 +425,7 @@ public class DnsPacketProxy {
             dnsMsgHeader.setFlag(Flags.QR);
             dnsMsgHeader.setRcode(Rcode.NOERROR);
             dnsMsg.addRecord(NEGATIVE_CACHE_SOA_RECORD, Section.AUTHORITY);
-            handleDnsResponse(ipPacket, dnsMsg.toWire());
-        } else if (entryType == ListType.ALLOWED) {
-            if (BuildConfig.DEBUG)
-                Log.i("AWAISKING_APP", "handleDnsRequest: DNS Name " + dnsQueryName + " allowed, sending to " + dnsAddress);
-            final DatagramPacket outPacket = new DatagramPacket(dnsRawData, 0, dnsRawData.length, dnsAddress, packetPort);
-            this.vpnWorker.forwardPacket(outPacket, data -> handleDnsResponse(ipPacket, data));
+            handleDnsResponse(ipPacket, dnsMsg.toWire(), responseWriter);
         } else if (entryType == ListType.REDIRECTED) {
             if (BuildConfig.DEBUG)
                 Log.i("AWAISKING_APP", "handleDnsRequest: DNS Name " + dnsQueryName + " redirected to " + entry.getRedirection());
@@ -240,20 +447,50 @@ public class DnsPacketProxy {
                 if (BuildConfig.DEBUG)
                     Log.e("AWAISKING_APP", "Failed to get inet address for host " + dnsQueryName, e);
             }
-            handleDnsResponse(ipPacket, dnsMsg.toWire());
+            handleDnsResponse(ipPacket, dnsMsg.toWire(), responseWriter);
         }
     }
 
-    @NonNull
-    private HostEntry getHostEntry(@NonNull final String dnsQueryName) {
-        final String hostname = dnsQueryName.toLowerCase(Locale.ENGLISH);
-        HostEntry entry = null;
-        if (this.vpnModel != null) entry = this.vpnModel.getEntry(hostname);
-        if (entry == null) {
-            entry = new HostEntry();
-            entry.setHost(hostname);
-            entry.setType(ListType.ALLOWED);
+    /**
+     * Get the maximum UDP payload size a client accepts.
+     *
+     * @param dnsMsg The request DNS message.
+     *
+     * @return The EDNS UDP payload size of the request, {@value DnsQuestion#MIN_UDP_PAYLOAD_SIZE} without EDNS.
+     */
+    private static int getUdpPayloadSize(@NonNull final Message dnsMsg) {
+        final OPTRecord opt = dnsMsg.getOPT();
+        return opt == null ? DnsQuestion.MIN_UDP_PAYLOAD_SIZE : Math.max(DnsQuestion.MIN_UDP_PAYLOAD_SIZE, opt.getPayloadSize());
+    }
+
+    /**
+     * Truncate a response payload larger than the client accepts, setting its TC flag.
+     *
+     * @param payload          The response payload.
+     * @param maxPayloadLength The maximum payload length the client accepts.
+     *
+     * @return The response payload, truncated if needed.
+     */
+    private static byte[] truncate(final byte[] payload, final int maxPayloadLength) {
+        if (payload.length <= maxPayloadLength) return payload;
+        try {
+            return new Message(payload).toWire(maxPayloadLength);
+        } catch (final IOException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to truncate invalid DNS response", e);
+            return payload;
         }
-        return entry;
+    }
+
+    /**
+     * Get the host entry of a requested name.
+     *
+     * @param hostname The lower case requested name.
+     *
+     * @return The host entry of the requested name, the shared {@link ListType#ALLOWED} entry if the name is not listed.
+     */
+    @NonNull
+    private HostEntry getHostEntry(@NonNull final CharSequence hostname) {
+        final HostEntry entry = this.vpnModel == null ? null : this.vpnModel.getEntry(hostname);
+        return entry == null ? ALLOWED_ENTRY : entry;
     }
 }
@@ -0,0 +1,79 @@
+package org.pro.adaway.vpn.dns;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * This enum represents the providers of the encrypted DNS upstreams.
+ * <p>
+ * Each provider has a server name, used to authenticate its servers, and bootstrap addresses, used to reach them
+ * without resolving their name through the VPN.
+ */
+public enum DnsProvider {
+    /**
+     * The Cloudflare DNS resolver.
+     */
+    CLOUDFLARE("cloudflare", "cloudflare-dns.com", "1.1.1.1", "1.0.0.1"),
+    /**
+     * The Google Public DNS resolver.
+     */
+    GOOGLE("google", "dns.google", "8.8.8.8", "8.8.4.4"),
+    /**
+     * The Quad9 DNS resolver.
+     */
+    QUAD9("quad9", "dns.quad9.net", "9.9.9.9", "149.112.112.112");
+
+    private final String value;
+    private final String serverName;
+    private final String[] addresses;
+
+    DnsProvider(final String value, final String serverName, final String... addresses) {
+        this.value = value;
+        this.serverName = serverName;
+        this.addresses = addresses;
+    }
+
+    /**
+     * Get the provider of a preference value.
+     *
+     * @param value The preference value.
+     *
+     * @return The related provider, {@link #CLOUDFLARE} if the value is unknown.
+     */
+    @NonNull
+    public static DnsProvider fromValue(@Nullable final String value) {
+        for (final DnsProvider provider : DnsProvider.values())
+            if (provider.value.equals(value)) return provider;
+        return CLOUDFLARE;
+    }
+
+    /**
+     * Get the server name, both for TLS authentication and DNS-over-HTTPS URL.
+     *
+     * @return The server name.
+     */
+    @NonNull
+    public String getServerName() {
+        return this.serverName;
+    }
+
+    /**
+     * Get the DNS-over-HTTPS URL.
+     *
+     * @return The DNS-over-HTTPS URL.
+     */
+    @NonNull
+    public String getDohUrl() {
+        return "https://" + this.serverName + "/dns-query";
+    }
+
+    /**
+     * Get the bootstrap addresses of the servers.
+     *
+     * @return The server addresses.
+     */
+    @NonNull
+    public String[] getAddresses() {
+        return this.addresses.clone();
+    }
+}
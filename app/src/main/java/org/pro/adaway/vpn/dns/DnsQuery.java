@@ -1,104 +1,302 @@
 package org.pro.adaway.vpn.dns;
 
-import static android.system.OsConstants.POLLIN;
-
-import android.os.ParcelFileDescriptor;
-import android.system.StructPollfd;
-import android.util.Log;
-
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.util.Consumer;
 
-import org.pro.adaway.BuildConfig;
-
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class represents a DNS query.
  *
  * @author Bruce BUJON
  */
-class DnsQuery implements AutoCloseable {
+class DnsQuery extends DnsTimer.Task {
     /**
      * The socket used to query DNS server.
      */
-    private final DatagramSocket socket;
+    private final DnsUpstreamSocket socket;
+    /**
+     * The identifier of the query sent to the DNS server.
+     */
+    private final int upstreamId;
+    /**
+     * The identifier of the original query, to restore in the response.
+     */
+    private final int originalId;
+    /**
+     * The question section of the query, to check the response against, {@code null} if not checked.
+     */
+    @Nullable
+    private final byte[] question;
     /**
      * The callback to call with the query response data.
      */
     private final Consumer<byte[]> callback;
     /**
-     * The pollfd related to the query to poll the OS with.
+     * The callback to run if the response is late, {@code null} if none or already run.
+     */
+    @Nullable
+    private Runnable slowCallback;
+    /**
+     * The time the query was sent, in {@link DnsTimer#now()} time.
+     */
+    private final long sentAt;
+    /**
+     * The key of the query in the in-flight queries, {@code null} if not coalesced with other queries.
+     */
+    @Nullable
+    private final DnsQueryQueue.QueryKey key;
+    /**
+     * The identical queries waiting for the response of this query, {@code null} if none.
+     */
+    @Nullable
+    private List<DnsQuery> followers;
+    /**
+     * The DNS server to hedge the query to, {@code null} if none or already hedged.
+     */
+    @Nullable
+    private InetSocketAddress hedgeServer;
+    /**
+     * The time to hedge the query to {@link #hedgeServer}, in {@link DnsTimer#now()} time.
+     */
+    private long hedgeAt;
+    /**
+     * The query sent to another DNS server in parallel to this one, {@code null} if not hedged.
      */
-    private final StructPollfd pollfd;
+    @Nullable
+    private DnsQuery hedge;
     /**
-     * The query creation time, UNIX timestamp in seconds).
+     * The query this one is the hedge of, {@code null} if not a hedge.
      */
-    private final long time;
+    @Nullable
+    private DnsQuery primary;
 
     /**
      * Constructor.
      *
-     * @param socket   The socket used to query DNS server.
-     * @param callback The callback to call with the query response data.
+     * @param socket       The socket used to query DNS server.
+     * @param upstreamId   The identifier of the query sent to the DNS server.
+     * @param originalId   The identifier of the original query, to restore in the response.
+     * @param question     The question section of the query, to check the response against, {@code null} if not checked.
+     * @param callback     The callback to call with the query response data.
+     * @param slowCallback The callback to run if the response is late, {@code null} if none.
+     * @param sentAt       The time the query was sent, in {@link DnsTimer#now()} time.
+     * @param key          The key of the query in the in-flight queries, {@code null} if not coalesced.
      */
-    DnsQuery(final DatagramSocket socket, final Consumer<byte[]> callback) {
+    DnsQuery(@NonNull final DnsUpstreamSocket socket, final int upstreamId, final int originalId,
+             @Nullable final byte[] question, @NonNull final Consumer<byte[]> callback,
+             @Nullable final Runnable slowCallback, final long sentAt, @Nullable final DnsQueryQueue.QueryKey key) {
         this.socket = socket;
+        this.upstreamId = upstreamId;
+        this.originalId = originalId;
+        this.question = question;
         this.callback = callback;
-        this.time = System.currentTimeMillis() / 1000L;
-        this.pollfd = new StructPollfd();
-        this.pollfd.fd = ParcelFileDescriptor.fromDatagramSocket(this.socket).getFileDescriptor();
-        this.pollfd.events = (short) POLLIN;
+        this.slowCallback = slowCallback;
+        this.sentAt = sentAt;
+        this.key = key;
+        this.followers = null;
+        this.hedgeServer = null;
+        this.hedgeAt = 0;
+        this.hedge = null;
+        this.primary = null;
+    }
+
+    /**
+     * Get the socket used to query DNS server.
+     *
+     * @return The socket used to query DNS server.
+     */
+    @NonNull
+    DnsUpstreamSocket getSocket() {
+        return this.socket;
+    }
+
+    /**
+     * Get the identifier of the query sent to the DNS server.
+     *
+     * @return The identifier of the query sent to the DNS server.
+     */
+    int getUpstreamId() {
+        return this.upstreamId;
+    }
+
+    /**
+     * Get the time the query was sent.
+     *
+     * @return The time the query was sent, in {@link DnsTimer#now()} time.
+     */
+    long getSentAt() {
+        return this.sentAt;
+    }
+
+    /**
+     * Get the key of the query in the in-flight queries.
+     *
+     * @return The key of the query in the in-flight queries, {@code null} if not coalesced with other queries.
+     */
+    @Nullable
+    DnsQueryQueue.QueryKey getKey() {
+        return this.key;
+    }
+
+    /**
+     * Plan to hedge the query to another DNS server if it is not answered in time.
+     *
+     * @param hedgeServer The DNS server to hedge the query to.
+     * @param hedgeAt     The time to hedge the query, in {@link DnsTimer#now()} time.
+     */
+    void setHedgeServer(@NonNull final InetSocketAddress hedgeServer, final long hedgeAt) {
+        this.hedgeServer = hedgeServer;
+        this.hedgeAt = hedgeAt;
+    }
+
+    /**
+     * Get the DNS server to hedge the query to.
+     *
+     * @return The DNS server to hedge the query to, {@code null} if none or already hedged.
+     */
+    @Nullable
+    InetSocketAddress getHedgeServer() {
+        return this.hedgeServer;
+    }
+
+    /**
+     * Get the time to hedge the query.
+     *
+     * @return The time to hedge the query, in {@link DnsTimer#now()} time.
+     */
+    long getHedgeAt() {
+        return this.hedgeAt;
     }
 
     /**
-     * Check whether a query is older than a timestamp.
+     * Create the hedge of the query, to send to another DNS server.
      *
-     * @param timestamp The UNIX timestamp (in seconds) to compare query time with.
+     * @param socket     The socket used to query the other DNS server.
+     * @param upstreamId The identifier of the hedge sent to the other DNS server.
+     * @param sentAt     The time the hedge is sent, in {@link DnsTimer#now()} time.
      *
-     * @return <code>true</code> if the query is older than the given timestamp, <code>false</code> otherwise.
+     * @return The hedge of the query.
      */
-    boolean isOlderThan(final long timestamp) {
-        return this.time < timestamp;
+    @NonNull
+    DnsQuery createHedge(@NonNull final DnsUpstreamSocket socket, final int upstreamId, final long sentAt) {
+        final DnsQuery hedge = new DnsQuery(socket, upstreamId, this.originalId, this.question, this.callback,
+                null, sentAt, null);
+        hedge.primary = this;
+        this.hedge = hedge;
+        this.hedgeServer = null;
+        return hedge;
     }
 
     /**
-     * Get the pollfd related to the query to poll the OS with.
+     * Get the query sent to another DNS server in parallel to this one.
      *
-     * @return The pollfd related to the query to poll the OS with.
+     * @return The hedge of the query, {@code null} if not hedged.
      */
-    StructPollfd getPollfd() {
-        return this.pollfd;
+    @Nullable
+    DnsQuery getHedge() {
+        return this.hedge;
     }
 
     /**
-     * Check whether the query is answered, meaning its socket has received data to read.
+     * Get the query this one is the hedge of.
      *
-     * @return {@code true} if there is data to read from {@link #socket}, {@code false} otherwise.
+     * @return The query this one is the hedge of, {@code null} if not a hedge.
      */
-    boolean isAnswered() {
-        return (this.pollfd.revents & POLLIN) != 0;
+    @Nullable
+    DnsQuery getPrimary() {
+        return this.primary;
     }
 
     /**
-     * Read DNS query response and notify callback.
+     * Add an identical query to wait for the response of this query.
+     *
+     * @param originalId   The identifier of the identical query, to restore in its response.
+     * @param callback     The callback to call with the identical query response data.
+     * @param slowCallback The callback to run if the response is late, {@code null} if none.
+     */
+    void addFollower(final int originalId, @NonNull final Consumer<byte[]> callback,
+                     @Nullable final Runnable slowCallback) {
+        if (this.followers == null) this.followers = new ArrayList<>();
+        this.followers.add(new DnsQuery(this.socket, this.upstreamId, originalId, this.question,
+                callback, slowCallback, this.sentAt, null));
+    }
+
+    /**
+     * Get the number of identical queries waiting for the response of this query.
+     *
+     * @return The number of identical queries waiting for the response of this query.
+     */
+    int getFollowerCount() {
+        return this.followers == null ? 0 : this.followers.size();
+    }
+
+    /**
+     * Check whether the query or its followers have a callback to run if the response is late.
+     *
+     * @return {@code true} if the query has a callback not run yet, {@code false} otherwise.
+     */
+    boolean hasSlowCallback() {
+        if (this.slowCallback != null) return true;
+        if (this.followers != null) {
+            for (final DnsQuery follower : this.followers) {
+                if (follower.hasSlowCallback()) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run the callbacks of late response of the query and its followers, once.
+     */
+    void runSlowCallback() {
+        if (this.followers != null) {
+            for (final DnsQuery follower : this.followers) follower.runSlowCallback();
+        }
+        final Runnable slowCallback = this.slowCallback;
+        this.slowCallback = null;
+        if (slowCallback != null) slowCallback.run();
+    }
+
+    /**
+     * Check a response matches the query question.
+     *
+     * @param response The response data.
+     * @param length   The response length.
+     *
+     * @return {@code true} if the response matches the query question, {@code false} otherwise.
+     */
+    boolean matches(@NonNull final byte[] response, final int length) {
+        if (this.question == null) return true;
+        final int questionOffset = DnsQueryQueue.DNS_HEADER_LENGTH;
+        if (length < questionOffset + this.question.length) return false;
+        for (int i = 0; i < this.question.length; i++) {
+            if (response[questionOffset + i] != this.question[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Complete the query with its response: restore the original identifier and notify callback.
+     * Followers are completed first, with their own copy of the response.
+     *
+     * @param response The response data, owned by the query.
      */
-    void handleResponse() {
-        try {
-            final byte[] responseData = new byte[1024];
-            this.socket.receive(new DatagramPacket(responseData, responseData.length));
-            this.callback.accept(responseData);
-        } catch (final IOException e) {
-            if (BuildConfig.DEBUG) Log.e("AWAISKING_APP", "Could not handle DNS response.", e);
-        } finally {
-            close();
+    void complete(@NonNull final byte[] response) {
+        if (this.followers != null) {
+            for (final DnsQuery follower : this.followers) follower.complete(response.clone());
         }
+        response[0] = (byte) (this.originalId >>> 8);
+        response[1] = (byte) this.originalId;
+        this.callback.accept(response);
     }
 
+    @NonNull
     @Override
-    public void close() {
-        this.socket.close();
+    public String toString() {
+        return "DnsQuery{id=" + this.originalId + ", upstreamId=" + this.upstreamId + "}";
     }
 }
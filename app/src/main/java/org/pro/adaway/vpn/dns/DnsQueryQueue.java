@@ -1,78 +1,474 @@
 package org.pro.adaway.vpn.dns;
 
+import android.net.VpnService;
 import android.system.StructPollfd;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.util.Consumer;
 
 import org.pro.adaway.BuildConfig;
 
-import java.net.DatagramSocket;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 
 
 /**
  * This class represents the running DNS queries queue.<br>
  * This queue is time and space bound.
+ * <p>
+ * Queries are sent through a small pool of long-lived sockets per DNS server, so the number of polled file
+ * descriptors does not depend on the number of running queries. Each query gets a random upstream
+ * identifier, and responses are matched back by socket, identifier and question before the original
+ * identifier is restored. Sockets are replaced after a number of queries to change their source port.
+ * Timeouts are tracked by a timing wheel, so they are checked in constant time at each poll round.
+ * Identical queries to the same server, except for their identifier, are coalesced while in flight: only the
+ * first one is sent, and its response is fanned out to each of them with their own identifier.
+ * Queries not answered within the 90th percentile of their server response time are hedged to another
+ * server, the first response wins, and the latency and loss of each server are recorded in its
+ * {@link DnsUpstreamStats}.
+ * Queries may also have a callback for late responses, run after a short delay or when the query cannot be
+ * sent, to let the caller answer with stale data (RFC 8767).
  *
  * @author Bruce BUJON
  */
-public class DnsQueryQueue {
+public class DnsQueryQueue implements DnsUpstream {
+    /**
+     * The DNS header length, in bytes.
+     */
+    static final int DNS_HEADER_LENGTH = 12;
     /**
      * The maximum number of responses to wait for.
      */
     private static final int DNS_MAXIMUM_WAITING = 1024;
     /**
-     * The maximum time to wait for the response (in seconds).
+     * The maximum time to wait for the response (in milliseconds).
+     */
+    private static final long DNS_TIMEOUT_MS = 10_000;
+    /**
+     * The time to wait for the response before running the late response callback (in milliseconds).
+     */
+    private static final long DNS_SLOW_RESPONSE_MS = 1800;
+    /**
+     * The number of sockets per DNS server.
+     */
+    private static final int SOCKETS_PER_SERVER = 4;
+    /**
+     * The number of queries to send with a socket before replacing it.
+     */
+    private static final int QUERIES_PER_SOCKET = 256;
+    /**
+     * The maximum size of a DNS response.
+     */
+    private static final int MAX_RESPONSE_SIZE = 65535;
+    /**
+     * The VPN service to protect sockets with.
+     */
+    private final VpnService vpnService;
+    /**
+     * The DNS server mapper, to get the server statistics and hedge servers from.
+     */
+    private final DnsServerMapper dnsServerMapper;
+    /**
+     * The socket pools, by DNS server.
+     */
+    private final Map<InetSocketAddress, DnsUpstreamSocket[]> socketPools;
+    /**
+     * The retired sockets, waiting for their pending queries.
+     */
+    private final List<DnsUpstreamSocket> retiredSockets;
+    /**
+     * The queries waiting for their response, by key, to coalesce identical queries.
      */
-    private static final long DNS_TIMEOUT_SEC = 10;
+    private final Map<QueryKey, DnsQuery> inflightQueries;
     /**
-     * The packet queue (older packets first, in the queue head).
+     * The reusable key to look in-flight queries up with.
      */
-    private final Queue<DnsQuery> queries;
+    private final QueryKey lookupKey;
+    /**
+     * The timer of the pending queries timeouts.
+     */
+    private final DnsTimer<DnsQuery> timeouts;
+    /**
+     * The handler of timed out queries.
+     */
+    private final Consumer<DnsQuery> timeoutHandler;
+    /**
+     * The random generator of upstream identifiers and socket selection.
+     */
+    private final SecureRandom random;
+    /**
+     * The reusable buffer of the query to send.
+     */
+    private final byte[] sendBuffer;
+    /**
+     * The reusable packet of the query to send.
+     */
+    private final DatagramPacket sendPacket;
+    /**
+     * The reusable buffer of the received response.
+     */
+    private final byte[] receiveBuffer;
+    /**
+     * The reusable packet of the received response.
+     */
+    private final DatagramPacket receivePacket;
+    /**
+     * The socket pollfds, {@code null} if the socket list changed since it was built.
+     */
+    @Nullable
+    private StructPollfd[] queryFds;
+    /**
+     * The sockets related to {@link #queryFds}, in the same order.
+     */
+    private DnsUpstreamSocket[] polledSockets;
 
     /**
      * Constructor.
+     *
+     * @param vpnService      The VPN service to protect sockets with.
+     * @param dnsServerMapper The DNS server mapper, to get the server statistics and hedge servers from.
      */
-    public DnsQueryQueue() {
-        this.queries = new LinkedList<>();
+    public DnsQueryQueue(@NonNull final VpnService vpnService, @NonNull final DnsServerMapper dnsServerMapper) {
+        this.vpnService = vpnService;
+        this.dnsServerMapper = dnsServerMapper;
+        this.socketPools = new HashMap<>();
+        this.retiredSockets = new ArrayList<>();
+        this.inflightQueries = new HashMap<>();
+        this.lookupKey = new QueryKey();
+        this.timeouts = new DnsTimer<>();
+        this.timeoutHandler = query -> {
+            final long now = DnsTimer.now();
+            if (query.getHedgeServer() != null && now >= query.getHedgeAt()) hedgeQuery(query, now);
+            if (query.hasSlowCallback() && now >= query.getSentAt() + DNS_SLOW_RESPONSE_MS) {
+                if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "Query " + query + " is slow.");
+                runSlowCallback(query);
+            }
+            if (now < query.getSentAt() + DNS_TIMEOUT_MS) {
+                // Keep waiting for the response until the query times out
+                this.timeouts.schedule(query, getNextDeadline(query));
+                return;
+            }
+            if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "Query " + query + " timed out.");
+            recordLoss(query);
+            final DnsQuery hedge = query.getHedge();
+            if (hedge != null) recordLoss(hedge);
+            dropQuery(query);
+        };
+        this.random = new SecureRandom();
+        this.sendBuffer = new byte[MAX_RESPONSE_SIZE];
+        this.sendPacket = new DatagramPacket(this.sendBuffer, 0);
+        this.receiveBuffer = new byte[MAX_RESPONSE_SIZE];
+        this.receivePacket = new DatagramPacket(this.receiveBuffer, MAX_RESPONSE_SIZE);
+        this.queryFds = null;
+        this.polledSockets = new DnsUpstreamSocket[0];
+    }
+
+    /**
+     * Send a DNS query and add it to the queue.
+     *
+     * @param outPacket The query packet, with the DNS server address.
+     * @param callback  The callback to call with the query response data.
+     *
+     * @throws IOException If the query could not be sent.
+     */
+    public void forwardQuery(@NonNull final DatagramPacket outPacket, @NonNull final Consumer<byte[]> callback) throws IOException {
+        forwardQuery(outPacket, callback, null);
     }
 
     /**
-     * Add DNS query to the queue.
+     * Send a DNS query and add it to the queue.
      *
-     * @param socket   The socket used to query DNS server.
-     * @param callback The callback to call with the query response data.
+     * @param outPacket    The query packet, with the DNS server address.
+     * @param callback     The callback to call with the query response data.
+     * @param slowCallback The callback to run if the response is late or the query could not be sent,
+     *                     {@code null} if none.
+     *
+     * @throws IOException If the query could not be sent.
      */
-    public void addQuery(final DatagramSocket socket, final Consumer<byte[]> callback) {
+    @Override
+    public void forwardQuery(@NonNull final DatagramPacket outPacket, @NonNull final Consumer<byte[]> callback,
+                             @Nullable final Runnable slowCallback) throws IOException {
+        final int length = outPacket.getLength();
+        if (length < DNS_HEADER_LENGTH) throw new IOException("Invalid DNS query of " + length + " bytes.");
         // Apply time constraint by removing timed out queries
         clearTimedOutQueries();
         // Apply space constraint by removing older packet if queue is full
         ensureFreeSpace();
-        // Add query to the queue
-        final DnsQuery query = new DnsQuery(socket, callback);
-        this.queries.add(query);
+        // Copy query with a random upstream identifier
+        final byte[] data = outPacket.getData();
+        final int offset = outPacket.getOffset();
+        System.arraycopy(data, offset, this.sendBuffer, 0, length);
+        final int originalId = (this.sendBuffer[0] & 0xFF) << 8 | this.sendBuffer[1] & 0xFF;
+        final InetSocketAddress server = (InetSocketAddress) outPacket.getSocketAddress();
+        final long now = DnsTimer.now();
+        // Wait for the response of an identical query if already in flight
+        this.lookupKey.set(server, this.sendBuffer, length);
+        final DnsQuery inflightQuery = this.inflightQueries.get(this.lookupKey);
+        if (inflightQuery != null) {
+            final boolean slow = inflightQuery.hasSlowCallback();
+            inflightQuery.addFollower(originalId, callback, slowCallback);
+            if (slowCallback != null && !slow) {
+                // Check for late response at the follower pace
+                this.timeouts.cancel(inflightQuery);
+                this.timeouts.schedule(inflightQuery, getNextDeadline(inflightQuery));
+            }
+            if (BuildConfig.DEBUG)
+                Log.d("AWAISKING_APP", "Coalescing query with " + inflightQuery + ", "
+                        + inflightQuery.getFollowerCount() + " followers.");
+            return;
+        }
+        final DnsUpstreamSocket socket;
+        try {
+            socket = getSocket(server);
+        } catch (final IOException e) {
+            if (slowCallback != null) slowCallback.run();
+            throw e;
+        }
+        final int upstreamId = nextUpstreamId(socket);
+        this.sendBuffer[0] = (byte) (upstreamId >>> 8);
+        this.sendBuffer[1] = (byte) upstreamId;
+        final QueryKey key = new QueryKey();
+        key.set(server, Arrays.copyOf(this.sendBuffer, length), length);
+        final DnsQuery query = new DnsQuery(socket, upstreamId, originalId, copyQuestion(this.sendBuffer, length),
+                callback, slowCallback, now, key);
+        // Send query
+        this.sendPacket.setData(this.sendBuffer, 0, length);
+        try {
+            socket.send(this.sendPacket, query);
+        } catch (final IOException e) {
+            // Replace the socket as it may be related to a lost network
+            retire(socket);
+            runSlowCallback(query);
+            throw e;
+        }
+        // Plan to hedge the query to another server if not answered in time
+        final InetAddress hedgeServer = this.dnsServerMapper.getHedgeDnsServer(server.getAddress());
+        final DnsUpstreamStats stats = this.dnsServerMapper.getUpstreamStats(server.getAddress());
+        if (hedgeServer != null && stats != null) {
+            query.setHedgeServer(new InetSocketAddress(hedgeServer, server.getPort()), now + stats.getHedgeDelay());
+        }
+        this.timeouts.schedule(query, getNextDeadline(query));
+        this.inflightQueries.put(key, query);
+        // Replace the socket after some queries to change its source port
+        if (socket.getQueryCount() >= QUERIES_PER_SOCKET) retire(socket);
+    }
+
+    /**
+     * Send a query to its hedge server.
+     *
+     * @param query The query to hedge.
+     * @param now   The current time, in {@link DnsTimer#now()} time.
+     */
+    private void hedgeQuery(@NonNull final DnsQuery query, final long now) {
+        final InetSocketAddress hedgeServer = query.getHedgeServer();
+        final QueryKey key = query.getKey();
+        if (hedgeServer == null || key == null) return;
+        DnsUpstreamSocket socket = null;
+        try {
+            socket = getSocket(hedgeServer);
+            final int upstreamId = nextUpstreamId(socket);
+            System.arraycopy(key.data, 0, this.sendBuffer, 0, key.length);
+            this.sendBuffer[0] = (byte) (upstreamId >>> 8);
+            this.sendBuffer[1] = (byte) upstreamId;
+            this.sendPacket.setData(this.sendBuffer, 0, key.length);
+            socket.send(this.sendPacket, query.createHedge(socket, upstreamId, now));
+            if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "Hedging query " + query + " to " + hedgeServer + ".");
+            if (socket.getQueryCount() >= QUERIES_PER_SOCKET) retire(socket);
+        } catch (final IOException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to hedge query " + query + ".", e);
+            if (socket != null) retire(socket);
+        }
+    }
+
+    /**
+     * Get the next deadline of a query: its hedge, its late response callback or its timeout.
+     *
+     * @param query The query to get the next deadline.
+     *
+     * @return The next deadline of the query, in {@link DnsTimer#now()} time.
+     */
+    private static long getNextDeadline(@NonNull final DnsQuery query) {
+        long deadline = query.getSentAt() + DNS_TIMEOUT_MS;
+        if (query.hasSlowCallback()) deadline = Math.min(deadline, query.getSentAt() + DNS_SLOW_RESPONSE_MS);
+        if (query.getHedgeServer() != null) deadline = Math.min(deadline, query.getHedgeAt());
+        return deadline;
+    }
+
+    /**
+     * Get an upstream identifier not used by the pending queries of a socket.
+     *
+     * @param socket The socket to send a query with.
+     *
+     * @return A random unused upstream identifier.
+     */
+    private int nextUpstreamId(@NonNull final DnsUpstreamSocket socket) {
+        int upstreamId;
+        do {
+            upstreamId = this.random.nextInt(0x10000);
+        } while (socket.isPending(upstreamId));
+        return upstreamId;
+    }
+
+    /**
+     * Record the response time of a query in its server statistics.
+     *
+     * @param query The answered query.
+     * @param now   The current time, in {@link DnsTimer#now()} time.
+     */
+    private void recordResponse(@NonNull final DnsQuery query, final long now) {
+        final DnsUpstreamStats stats = this.dnsServerMapper.getUpstreamStats(query.getSocket().getServerAddress());
+        if (stats != null) stats.recordResponse(now - query.getSentAt());
+    }
+
+    /**
+     * Record the loss of a query in its server statistics.
+     *
+     * @param query The timed out query.
+     */
+    private void recordLoss(@NonNull final DnsQuery query) {
+        final DnsUpstreamStats stats = this.dnsServerMapper.getUpstreamStats(query.getSocket().getServerAddress());
+        if (stats == null) return;
+        stats.recordLoss();
+        if (BuildConfig.DEBUG && stats.isDemoted()) Log.d("AWAISKING_APP", "DNS server demoted: " + stats);
+    }
+
+    /**
+     * Get a socket to send a query to a DNS server.
+     *
+     * @param server The DNS server address.
+     *
+     * @return A socket connected to the DNS server.
+     *
+     * @throws IOException If the socket could not be created.
+     */
+    @NonNull
+    private DnsUpstreamSocket getSocket(@NonNull final InetSocketAddress server) throws IOException {
+        DnsUpstreamSocket[] pool = this.socketPools.get(server);
+        if (pool == null) {
+            pool = new DnsUpstreamSocket[SOCKETS_PER_SERVER];
+            this.socketPools.put(server, pool);
+        }
+        final int index = this.random.nextInt(SOCKETS_PER_SERVER);
+        DnsUpstreamSocket socket = pool[index];
+        if (socket == null || socket.isRetired()) {
+            socket = new DnsUpstreamSocket(this.vpnService, server);
+            pool[index] = socket;
+            this.queryFds = null;
+        }
+        return socket;
+    }
+
+    /**
+     * Retire a socket: remove it from its pool and close it once its pending queries are done.
+     *
+     * @param socket The socket to retire.
+     */
+    private void retire(@NonNull final DnsUpstreamSocket socket) {
+        socket.retire();
+        if (socket.hasPendingQueries()) {
+            this.retiredSockets.add(socket);
+        } else {
+            socket.close();
+        }
+        this.queryFds = null;
+    }
+
+    /**
+     * Copy the question section of a query.
+     *
+     * @param query  The query data.
+     * @param length The query length.
+     *
+     * @return The question section, {@code null} if the query does not have a single uncompressed question.
+     */
+    @Nullable
+    private static byte[] copyQuestion(@NonNull final byte[] query, final int length) {
+        if (((query[4] & 0xFF) << 8 | query[5] & 0xFF) != 1) return null;
+        int offset = DNS_HEADER_LENGTH;
+        while (offset < length) {
+            final int labelLength = query[offset] & 0xFF;
+            if (labelLength == 0) {
+                // Include type and class
+                offset += 5;
+                return offset <= length ? Arrays.copyOfRange(query, DNS_HEADER_LENGTH, offset) : null;
+            }
+            if (labelLength > 63) return null;
+            offset += 1 + labelLength;
+        }
+        return null;
+    }
+
+    /**
+     * Run the late response callback of a query.
+     *
+     * @param query The query whose response is late.
+     */
+    private static void runSlowCallback(@NonNull final DnsQuery query) {
+        try {
+            query.runSlowCallback();
+        } catch (final RuntimeException e) {
+            if (BuildConfig.DEBUG) Log.e("AWAISKING_APP", "Could not handle late DNS response.", e);
+        }
     }
 
     private void ensureFreeSpace() {
-        if (this.queries.size() > DNS_MAXIMUM_WAITING) {
-            final DnsQuery oldestQuery = this.queries.remove();
+        while (this.timeouts.size() >= DNS_MAXIMUM_WAITING) {
+            final DnsQuery oldestQuery = this.timeouts.getEarliest();
+            if (oldestQuery == null) break;
             if (BuildConfig.DEBUG)
                 Log.d("AWAISKING_APP", "Dropping query due to space constraints: " + oldestQuery);
-            oldestQuery.close();
+            this.timeouts.cancel(oldestQuery);
+            dropQuery(oldestQuery);
         }
     }
 
-    private void clearTimedOutQueries() {
-        final long now = System.currentTimeMillis() / 1000;
-        while (!this.queries.isEmpty() && this.queries.element().isOlderThan(now - DNS_TIMEOUT_SEC)) {
-            final DnsQuery timedOutQuery = this.queries.remove();
-            if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "Query " + timedOutQuery + " timed out.");
-            timedOutQuery.close();
+    /**
+     * Remove the timed out queries.
+     */
+    public void clearTimedOutQueries() {
+        this.timeouts.expire(DnsTimer.now(), this.timeoutHandler);
+    }
+
+    /**
+     * Get the time until the next query timeout check.
+     *
+     * @return The time until the next query timeout check, in milliseconds, {@code -1} if there is no pending query.
+     */
+    public int getTimeout() {
+        return this.timeouts.getTimeout(DnsTimer.now());
+    }
+
+    private void dropQuery(@NonNull final DnsQuery query) {
+        final DnsUpstreamSocket socket = query.getSocket();
+        socket.removePendingQuery(query);
+        removeInflightQuery(query);
+        closeIfDone(socket);
+        final DnsQuery hedge = query.getHedge();
+        if (hedge != null) {
+            hedge.getSocket().removePendingQuery(hedge);
+            closeIfDone(hedge.getSocket());
+        }
+    }
+
+    private void removeInflightQuery(@NonNull final DnsQuery query) {
+        final QueryKey key = query.getKey();
+        if (key != null && this.inflightQueries.get(key) == query) this.inflightQueries.remove(key);
+    }
+
+    private void closeIfDone(@NonNull final DnsUpstreamSocket socket) {
+        if (socket.isRetired() && !socket.hasPendingQueries() && this.retiredSockets.remove(socket)) {
+            socket.close();
+            this.queryFds = null;
         }
     }
 
@@ -82,34 +478,157 @@ public class DnsQueryQueue {
      * @return The number of pending DNS queries.
      */
     public int size() {
-        return this.queries.size();
+        return this.timeouts.size();
     }
 
     /**
-     * Get the query pollfds.
+     * Get the query pollfds.<br>
+     * There is one pollfd per open socket, and the array is only rebuilt when sockets are added or closed.
      *
      * @return The query pollfds.
      */
     public StructPollfd[] getQueryFds() {
-        final List<StructPollfd> list = new ArrayList<>(0);
-        for (final DnsQuery query : this.queries) list.add(query.getPollfd());
-        return list.toArray(new StructPollfd[0]);
+        if (this.queryFds == null) {
+            final List<DnsUpstreamSocket> sockets = new ArrayList<>();
+            for (final DnsUpstreamSocket[] pool : this.socketPools.values()) {
+                for (final DnsUpstreamSocket socket : pool) {
+                    if (socket != null && !socket.isRetired()) sockets.add(socket);
+                }
+            }
+            sockets.addAll(this.retiredSockets);
+            this.polledSockets = sockets.toArray(new DnsUpstreamSocket[0]);
+            this.queryFds = new StructPollfd[this.polledSockets.length];
+            for (int i = 0; i < this.polledSockets.length; i++) this.queryFds[i] = this.polledSockets[i].getPollfd();
+        }
+        return this.queryFds;
     }
 
     /**
      * Handle any responded query.
      */
     public void handleResponses() {
-        final Iterator<DnsQuery> iterator = this.queries.iterator();
-        while (iterator.hasNext()) {
-            try (final DnsQuery query = iterator.next()) {
-                if (query.isAnswered()) {
-                    iterator.remove();
-                    query.handleResponse();
-                }
-            } catch (final Throwable ignore) {
-                // ignore
+        for (final DnsUpstreamSocket socket : this.polledSockets) {
+            if (!socket.isReadable()) continue;
+            socket.getPollfd().revents = 0;
+            try {
+                this.receivePacket.setData(this.receiveBuffer, 0, MAX_RESPONSE_SIZE);
+                socket.receive(this.receivePacket);
+            } catch (final IOException e) {
+                if (BuildConfig.DEBUG) Log.e("AWAISKING_APP", "Could not handle DNS response.", e);
+                continue;
+            }
+            handleResponse(socket, this.receivePacket.getLength());
+            closeIfDone(socket);
+        }
+    }
+
+    private void handleResponse(@NonNull final DnsUpstreamSocket socket, final int length) {
+        if (length < DNS_HEADER_LENGTH) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Discarding invalid DNS response of " + length + " bytes.");
+            return;
+        }
+        final int upstreamId = (this.receiveBuffer[0] & 0xFF) << 8 | this.receiveBuffer[1] & 0xFF;
+        final DnsQuery query = socket.getPendingQuery(upstreamId);
+        if (query == null || !query.matches(this.receiveBuffer, length)) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Discarding unexpected DNS response " + upstreamId + ".");
+            return;
+        }
+        socket.removePendingQuery(query);
+        // Complete the primary query, whichever of it or its hedge was answered first
+        final long now = DnsTimer.now();
+        recordResponse(query, now);
+        final DnsQuery primary = query.getPrimary() == null ? query : query.getPrimary();
+        final DnsQuery other = query == primary ? primary.getHedge() : primary;
+        if (other != null) {
+            // The primary query lost the race: count it lost rather than crediting a response it never got
+            if (other == primary) recordLoss(primary);
+            other.getSocket().removePendingQuery(other);
+            closeIfDone(other.getSocket());
+        }
+        removeInflightQuery(primary);
+        this.timeouts.cancel(primary);
+        try {
+            primary.complete(Arrays.copyOf(this.receiveBuffer, length));
+        } catch (final RuntimeException e) {
+            if (BuildConfig.DEBUG) Log.e("AWAISKING_APP", "Could not handle DNS response.", e);
+        }
+    }
+
+    /**
+     * Close all sockets and drop all pending queries.
+     */
+    @Override
+    public void clear() {
+        for (final DnsUpstreamSocket[] pool : this.socketPools.values()) {
+            for (final DnsUpstreamSocket socket : pool) {
+                if (socket != null) socket.close();
             }
         }
+        this.socketPools.clear();
+        for (final DnsUpstreamSocket socket : this.retiredSockets) socket.close();
+        this.retiredSockets.clear();
+        this.timeouts.clear();
+        this.inflightQueries.clear();
+        this.queryFds = null;
+        this.polledSockets = new DnsUpstreamSocket[0];
+    }
+
+    /**
+     * This class is the key of an in-flight query: its DNS server and its data except the identifier.
+     */
+    static final class QueryKey {
+        /**
+         * The DNS server address.
+         */
+        private InetSocketAddress server;
+        /**
+         * The query data, starting with the identifier.
+         */
+        private byte[] data;
+        /**
+         * The query length.
+         */
+        private int length;
+        /**
+         * The key hash.
+         */
+        private int hash;
+
+        /**
+         * Set the key.
+         *
+         * @param server The DNS server address.
+         * @param data   The query data, starting with the identifier.
+         * @param length The query length.
+         */
+        void set(final InetSocketAddress server, final byte[] data, final int length) {
+            this.server = server;
+            this.data = data;
+            this.length = length;
+            int hash = server.hashCode();
+            for (int i = 2; i < length; i++) {
+                hash = 31 * hash + data[i];
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof QueryKey)) return false;
+            final QueryKey other = (QueryKey) o;
+            if (this.hash != other.hash || this.length != other.length || !this.server.equals(other.server)) {
+                return false;
+            }
+            for (int i = 2; i < this.length; i++) {
+                if (this.data[i] != other.data[i]) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
     }
 }
@@ -0,0 +1,285 @@
+package org.pro.adaway.vpn.dns;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class is a reusable holder of the DNS question of a tunnel packet.
+ * <p>
+ * It reads the IPv4 or IPv6 header, the UDP header and the DNS question straight from the packet bytes,
+ * without any allocation. The question name is stored lower case and exposed as a {@link CharSequence},
+ * in the same form as {@code Name.toString(true)}: labels separated by dots, without the trailing dot.
+ * <p>
+ * Only common queries are parsed. Fragmented packets, IPv6 extension headers, compressed or escaped names
+ * and packets with several questions are rejected so they can be handled by the complete packet parsers.
+ */
+final class DnsQuestion implements CharSequence {
+    /**
+     * The IP protocol number of UDP.
+     */
+    private static final int UDP_PROTOCOL = 17;
+    /**
+     * The IPv4 header minimum length, in bytes.
+     */
+    private static final int IPV4_HEADER_LENGTH = 20;
+    /**
+     * The IPv6 header length, in bytes.
+     */
+    private static final int IPV6_HEADER_LENGTH = 40;
+    /**
+     * The UDP header length, in bytes.
+     */
+    private static final int UDP_HEADER_LENGTH = 8;
+    /**
+     * The DNS header length, in bytes.
+     */
+    private static final int DNS_HEADER_LENGTH = 12;
+    /**
+     * The UDP payload size of clients without EDNS (RFC 1035).
+     */
+    static final int MIN_UDP_PAYLOAD_SIZE = 512;
+    /**
+     * The OPT pseudo record type (RFC 6891).
+     */
+    private static final int OPT_TYPE = 41;
+    /**
+     * The maximum length of a DNS name, in presentation format without the trailing dot.
+     */
+    private static final int MAX_NAME_LENGTH = 253;
+    /**
+     * The maximum length of a DNS label.
+     */
+    private static final int MAX_LABEL_LENGTH = 63;
+    /**
+     * The lower case name bytes.
+     */
+    private final byte[] name;
+    /**
+     * The length of the name.
+     */
+    private int nameLength;
+    /**
+     * The name hash, computed as {@link String#hashCode()} would.
+     */
+    private int nameHash;
+    /**
+     * The offset of the DNS message in the packet.
+     */
+    private int dnsOffset;
+    /**
+     * The offset of the first byte after the question in the packet.
+     */
+    private int questionEnd;
+    /**
+     * The length of the DNS message.
+     */
+    private int dnsLength;
+    /**
+     * The last byte of the packet destination address.
+     */
+    private int destinationAddressLastByte;
+    /**
+     * The UDP destination port.
+     */
+    private int destinationPort;
+    /**
+     * The maximum UDP payload size the client accepts.
+     */
+    private int udpPayloadSize;
+
+    /**
+     * Constructor.
+     */
+    DnsQuestion() {
+        this.name = new byte[MAX_NAME_LENGTH];
+    }
+
+    /**
+     * Parse the DNS question of a tunnel packet.
+     *
+     * @param packet The packet data.
+     * @param length The packet length.
+     *
+     * @return {@code true} if the packet is a common DNS query and was parsed,
+     * {@code false} if it should be handled by the complete packet parsers.
+     */
+    boolean parse(@NonNull final byte[] packet, final int length) {
+        if (length < 1) return false;
+        final int ipVersion = (packet[0] & 0xFF) >>> 4;
+        // Parse IP header
+        final int udpOffset;
+        final int ipEnd;
+        if (ipVersion == 4) {
+            if (length < IPV4_HEADER_LENGTH) return false;
+            final int headerLength = (packet[0] & 0x0F) * 4;
+            final int totalLength = readUnsignedShort(packet, 2);
+            final int fragment = readUnsignedShort(packet, 6);
+            // Check header and total lengths, protocol, and that the packet is not a fragment
+            if (headerLength < IPV4_HEADER_LENGTH || totalLength < headerLength || totalLength > length
+                    || (fragment & 0x3FFF) != 0 || (packet[9] & 0xFF) != UDP_PROTOCOL) {
+                return false;
+            }
+            this.destinationAddressLastByte = packet[19] & 0xFF;
+            udpOffset = headerLength;
+            ipEnd = totalLength;
+        } else if (ipVersion == 6) {
+            if (length < IPV6_HEADER_LENGTH) return false;
+            final int totalLength = IPV6_HEADER_LENGTH + readUnsignedShort(packet, 4);
+            // Check length and that the next header is UDP, without extension headers
+            if (totalLength > length || (packet[6] & 0xFF) != UDP_PROTOCOL) return false;
+            this.destinationAddressLastByte = packet[39] & 0xFF;
+            udpOffset = IPV6_HEADER_LENGTH;
+            ipEnd = totalLength;
+        } else {
+            return false;
+        }
+        // Parse UDP header
+        if (udpOffset + UDP_HEADER_LENGTH > ipEnd) return false;
+        final int udpLength = readUnsignedShort(packet, udpOffset + 4);
+        if (udpLength < UDP_HEADER_LENGTH || udpOffset + udpLength > ipEnd) return false;
+        this.destinationPort = readUnsignedShort(packet, udpOffset + 2);
+        this.dnsOffset = udpOffset + UDP_HEADER_LENGTH;
+        this.dnsLength = udpLength - UDP_HEADER_LENGTH;
+        // Parse DNS header: a single question query
+        if (this.dnsLength < DNS_HEADER_LENGTH) return false;
+        final int dnsEnd = this.dnsOffset + this.dnsLength;
+        if ((packet[this.dnsOffset + 2] & 0x80) != 0 || readUnsignedShort(packet, this.dnsOffset + 4) != 1) {
+            return false;
+        }
+        // Parse question name
+        int offset = this.dnsOffset + DNS_HEADER_LENGTH;
+        int nameLength = 0;
+        int hash = 0;
+        while (true) {
+            if (offset >= dnsEnd) return false;
+            final int labelLength = packet[offset++] & 0xFF;
+            if (labelLength == 0) break;
+            // Reject compression pointers and extended label types
+            if (labelLength > MAX_LABEL_LENGTH || offset + labelLength > dnsEnd) return false;
+            if (nameLength > 0) {
+                if (nameLength >= MAX_NAME_LENGTH) return false;
+                this.name[nameLength++] = '.';
+                hash = 31 * hash + '.';
+            }
+            if (nameLength + labelLength > MAX_NAME_LENGTH) return false;
+            for (int i = 0; i < labelLength; i++) {
+                int character = packet[offset++];
+                if (character >= 'A' && character <= 'Z') {
+                    character += 'a' - 'A';
+                } else if (!(character >= 'a' && character <= 'z') && !(character >= '0' && character <= '9')
+                        && character != '-' && character != '_') {
+                    // Reject characters escaped in presentation format
+                    return false;
+                }
+                this.name[nameLength++] = (byte) character;
+                hash = 31 * hash + character;
+            }
+        }
+        // Reject root name
+        if (nameLength == 0) return false;
+        this.nameLength = nameLength;
+        this.nameHash = hash;
+        // Check question type and class
+        if (offset + 4 > dnsEnd) return false;
+        this.questionEnd = offset + 4;
+        // Read the EDNS UDP payload size from an OPT record right after the question
+        this.udpPayloadSize = MIN_UDP_PAYLOAD_SIZE;
+        if (readUnsignedShort(packet, this.dnsOffset + 6) == 0 && readUnsignedShort(packet, this.dnsOffset + 8) == 0
+                && readUnsignedShort(packet, this.dnsOffset + 10) > 0 && this.questionEnd + 11 <= dnsEnd
+                && packet[this.questionEnd] == 0 && readUnsignedShort(packet, this.questionEnd + 1) == OPT_TYPE) {
+            this.udpPayloadSize = Math.max(MIN_UDP_PAYLOAD_SIZE, readUnsignedShort(packet, this.questionEnd + 3));
+        }
+        return true;
+    }
+
+    /**
+     * Get the offset of the DNS message in the packet.
+     *
+     * @return The offset of the DNS message in the packet.
+     */
+    int getDnsOffset() {
+        return this.dnsOffset;
+    }
+
+    /**
+     * Get the length of the DNS message.
+     *
+     * @return The length of the DNS message.
+     */
+    int getDnsLength() {
+        return this.dnsLength;
+    }
+
+    /**
+     * Get the offset of the first byte after the question in the packet.
+     *
+     * @return The offset of the first byte after the question in the packet.
+     */
+    int getQuestionEnd() {
+        return this.questionEnd;
+    }
+
+    /**
+     * Get the last byte of the packet destination address.
+     *
+     * @return The last byte of the packet destination address.
+     */
+    int getDestinationAddressLastByte() {
+        return this.destinationAddressLastByte;
+    }
+
+    /**
+     * Get the UDP destination port.
+     *
+     * @return The UDP destination port.
+     */
+    int getDestinationPort() {
+        return this.destinationPort;
+    }
+
+    /**
+     * Get the maximum UDP payload size the client accepts.
+     *
+     * @return The EDNS UDP payload size of the query, {@value #MIN_UDP_PAYLOAD_SIZE} without EDNS.
+     */
+    int getUdpPayloadSize() {
+        return this.udpPayloadSize;
+    }
+
+    /**
+     * Get the name hash.
+     *
+     * @return The name hash, equal to the {@link String#hashCode()} of the name.
+     */
+    int getNameHash() {
+        return this.nameHash;
+    }
+
+    @Override
+    public int length() {
+        return this.nameLength;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        if (index < 0 || index >= this.nameLength) throw new IndexOutOfBoundsException("Invalid index " + index);
+        return (char) this.name[index];
+    }
+
+    @NonNull
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return new String(this.name, 0, this.nameLength, StandardCharsets.US_ASCII);
+    }
+
+    private static int readUnsignedShort(final byte[] data, final int offset) {
+        return (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+    }
+}
@@ -0,0 +1,275 @@
+package org.pro.adaway.vpn.dns;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.pro.adaway.BuildConfig;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class writes DNS response packets to the tunnel directly from the request packet bytes.
+ * <p>
+ * The IP and UDP headers of the request are copied with their addresses and ports swapped, then the lengths
+ * and checksums are updated. Blocked and redirected answers are made of the request header and question
+ * followed by a pre-encoded record, so answering them needs neither pcap4j nor dnsjava.
+ */
+final class DnsResponseWriter {
+    /**
+     * The TTL of the synthesized records, smaller than the time needed to unblock a host.
+     */
+    private static final int TTL_SECONDS = 5;
+    /**
+     * The UDP header length, in bytes.
+     */
+    private static final int UDP_HEADER_LENGTH = 8;
+    /**
+     * The DNS header length, in bytes.
+     */
+    private static final int DNS_HEADER_LENGTH = 12;
+    /**
+     * The IP protocol number of UDP.
+     */
+    private static final int UDP_PROTOCOL = 17;
+    /**
+     * The wire format of the negative cache SOA authority record.<br>
+     * It uses a guaranteed invalid hostname, clients are not supposed to use it,
+     * the whole thing just exists for negative caching.
+     */
+    private static final byte[] NEGATIVE_CACHE_SOA_RECORD = encodeNegativeCacheSoaRecord();
+    /**
+     * The encoded redirection addresses, by redirection.
+     * An empty array means the redirection is not a valid address.
+     */
+    private final Map<String, byte[]> redirectionAddresses;
+
+    /**
+     * Constructor.
+     */
+    DnsResponseWriter() {
+        this.redirectionAddresses = new HashMap<>();
+    }
+
+    /**
+     * Write the response packet of a blocked host, with a negative cache SOA record.
+     *
+     * @param request  The request packet data.
+     * @param question The parsed request question.
+     *
+     * @return The response packet data.
+     */
+    @NonNull
+    byte[] writeBlockedResponse(@NonNull final byte[] request, @NonNull final DnsQuestion question) {
+        final byte[] response = copyQuestion(request, question, NEGATIVE_CACHE_SOA_RECORD.length);
+        final int dnsOffset = question.getDnsOffset();
+        // Set QR flag and NOERROR rcode, then authority count
+        response[dnsOffset + 2] |= (byte) 0x80;
+        response[dnsOffset + 3] &= (byte) 0xF0;
+        writeShort(response, dnsOffset + 8, 1);
+        System.arraycopy(NEGATIVE_CACHE_SOA_RECORD, 0, response, question.getQuestionEnd(), NEGATIVE_CACHE_SOA_RECORD.length);
+        finishPacket(response, dnsOffset - UDP_HEADER_LENGTH);
+        return response;
+    }
+
+    /**
+     * Write the response packet of a redirected host, with an authoritative A or AAAA record.
+     *
+     * @param request     The request packet data.
+     * @param question    The parsed request question.
+     * @param redirection The host redirection.
+     *
+     * @return The response packet data.
+     */
+    @NonNull
+    byte[] writeRedirectedResponse(@NonNull final byte[] request, @NonNull final DnsQuestion question,
+                                   @Nullable final String redirection) {
+        final byte[] address = getRedirectionAddress(redirection);
+        final int recordLength = address.length == 0 ? 0 : 12 + address.length;
+        final byte[] response = copyQuestion(request, question, recordLength);
+        final int dnsOffset = question.getDnsOffset();
+        // Set QR and AA flags, clear RD flag and set NOERROR rcode
+        response[dnsOffset + 2] = (byte) (response[dnsOffset + 2] & ~0x01 | 0x84);
+        response[dnsOffset + 3] &= (byte) 0xF0;
+        if (recordLength > 0) {
+            writeShort(response, dnsOffset + 6, 1);
+            // Write record with a pointer to the question name
+            int offset = question.getQuestionEnd();
+            writeShort(response, offset, 0xC000 | DNS_HEADER_LENGTH);
+            writeShort(response, offset + 2, address.length == 4 ? 1 : 28);
+            writeShort(response, offset + 4, 1);
+            writeShort(response, offset + 6, 0);
+            writeShort(response, offset + 8, TTL_SECONDS);
+            writeShort(response, offset + 10, address.length);
+            System.arraycopy(address, 0, response, offset + 12, address.length);
+        }
+        finishPacket(response, dnsOffset - UDP_HEADER_LENGTH);
+        return response;
+    }
+
+    /**
+     * Write the response packet of a DNS payload, like an upstream server response.
+     * <p>
+     * Payloads larger than the client UDP payload size are truncated to their header and question, with the
+     * TC flag set, so the client retries over TCP.
+     *
+     * @param request          The request packet data.
+     * @param dnsOffset        The offset of the DNS message in the request packet.
+     * @param payload          The response DNS payload.
+     * @param maxPayloadLength The maximum payload length the client accepts.
+     * @param questionLength   The length of the payload header and question.
+     *
+     * @return The response packet data.
+     */
+    @NonNull
+    byte[] writeResponse(@NonNull final byte[] request, final int dnsOffset, @NonNull final byte[] payload,
+                         final int maxPayloadLength, final int questionLength) {
+        final boolean truncated = payload.length > maxPayloadLength && questionLength <= payload.length;
+        final int payloadLength = truncated ? questionLength : payload.length;
+        final byte[] response = new byte[dnsOffset + payloadLength];
+        System.arraycopy(request, 0, response, 0, dnsOffset);
+        System.arraycopy(payload, 0, response, dnsOffset, payloadLength);
+        if (truncated) {
+            // Set TC flag and clear answer, authority and additional counts
+            response[dnsOffset + 2] |= (byte) 0x02;
+            for (int i = 6; i < DNS_HEADER_LENGTH; i++) response[dnsOffset + i] = 0;
+        }
+        finishPacket(response, dnsOffset - UDP_HEADER_LENGTH);
+        return response;
+    }
+
+    /**
+     * Copy the request headers and question to a new response packet, with empty answer sections.
+     *
+     * @param request      The request packet data.
+     * @param question     The parsed request question.
+     * @param recordLength The length of the record to write after the question.
+     *
+     * @return The response packet data.
+     */
+    private byte[] copyQuestion(final byte[] request, final DnsQuestion question, final int recordLength) {
+        final int questionEnd = question.getQuestionEnd();
+        final byte[] response = new byte[questionEnd + recordLength];
+        System.arraycopy(request, 0, response, 0, questionEnd);
+        // Clear answer, authority and additional counts
+        final int dnsOffset = question.getDnsOffset();
+        for (int i = 6; i < DNS_HEADER_LENGTH; i++) response[dnsOffset + i] = 0;
+        return response;
+    }
+
+    /**
+     * Swap addresses and ports of a response packet, then update its lengths and checksums.
+     *
+     * @param response  The response packet data, with the request headers.
+     * @param udpOffset The offset of the UDP header.
+     */
+    private static void finishPacket(final byte[] response, final int udpOffset) {
+        final int length = response.length;
+        final int udpLength = length - udpOffset;
+        final boolean ipv4 = (response[0] & 0xF0) == 0x40;
+        final int addressOffset = ipv4 ? 12 : 8;
+        final int addressLength = ipv4 ? 4 : 16;
+        swap(response, addressOffset, addressOffset + addressLength, addressLength);
+        swap(response, udpOffset, udpOffset + 2, 2);
+        // Update IP header
+        if (ipv4) {
+            writeShort(response, 2, length);
+            writeShort(response, 10, 0);
+            writeShort(response, 10, ~sum(response, 0, udpOffset, 0) & 0xFFFF);
+        } else {
+            writeShort(response, 4, udpLength);
+        }
+        // Update UDP header with pseudo header checksum
+        writeShort(response, udpOffset + 4, udpLength);
+        writeShort(response, udpOffset + 6, 0);
+        int sum = sum(response, addressOffset, addressOffset + 2 * addressLength, UDP_PROTOCOL + udpLength);
+        sum = sum(response, udpOffset, length, sum);
+        final int checksum = ~sum & 0xFFFF;
+        writeShort(response, udpOffset + 6, checksum == 0 ? 0xFFFF : checksum);
+    }
+
+    /**
+     * Compute the ones' complement sum of 16-bit words.
+     *
+     * @param data  The data to sum.
+     * @param start The start offset, inclusive.
+     * @param end   The end offset, exclusive.
+     * @param sum   The initial sum.
+     *
+     * @return The folded sum.
+     */
+    static int sum(final byte[] data, final int start, final int end, int sum) {
+        int offset = start;
+        for (; offset + 1 < end; offset += 2) sum += (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+        if (offset < end) sum += (data[offset] & 0xFF) << 8;
+        while ((sum >>> 16) != 0) sum = (sum & 0xFFFF) + (sum >>> 16);
+        return sum;
+    }
+
+    private static void swap(final byte[] data, final int first, final int second, final int length) {
+        for (int i = 0; i < length; i++) {
+            final byte value = data[first + i];
+            data[first + i] = data[second + i];
+            data[second + i] = value;
+        }
+    }
+
+    static void writeShort(final byte[] data, final int offset, final int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    /**
+     * Get the encoded address of a redirection.
+     *
+     * @param redirection The host redirection.
+     *
+     * @return The encoded address, an empty array if the redirection is not a valid address.
+     */
+    @NonNull
+    private byte[] getRedirectionAddress(@Nullable final String redirection) {
+        byte[] address = this.redirectionAddresses.get(redirection);
+        if (address == null) {
+            try {
+                address = InetAddress.getByName(redirection).getAddress();
+            } catch (final UnknownHostException e) {
+                if (BuildConfig.DEBUG)
+                    Log.e("AWAISKING_APP", "Failed to get inet address for redirection " + redirection, e);
+                address = new byte[0];
+            }
+            this.redirectionAddresses.put(redirection, address);
+        }
+        return address;
+    }
+
+    /**
+     * Encode the negative cache SOA record: "adaway.vpn.invalid." as owner, primary server and mailbox,
+     * zero serial, refresh, retry and expire values, and {@link #TTL_SECONDS} as TTL and minimum.
+     *
+     * @return The wire format of the record.
+     */
+    private static byte[] encodeNegativeCacheSoaRecord() {
+        final byte[] name = {6, 'a', 'd', 'a', 'w', 'a', 'y', 3, 'v', 'p', 'n', 7, 'i', 'n', 'v', 'a', 'l', 'i', 'd', 0};
+        final int dataLength = 2 * name.length + 20;
+        final byte[] record = new byte[name.length + 10 + dataLength];
+        System.arraycopy(name, 0, record, 0, name.length);
+        int offset = name.length;
+        writeShort(record, offset, 6);
+        writeShort(record, offset + 2, 1);
+        writeShort(record, offset + 4, 0);
+        writeShort(record, offset + 6, TTL_SECONDS);
+        writeShort(record, offset + 8, dataLength);
+        offset += 10;
+        System.arraycopy(name, 0, record, offset, name.length);
+        offset += name.length;
+        System.arraycopy(name, 0, record, offset, name.length);
+        offset += name.length;
+        // Serial, refresh, retry and expire are zero, only write minimum
+        writeShort(record, offset + 18, TTL_SECONDS);
+        return record;
+    }
+}
@@ -17,6 +17,7 @@ import android.os.Build.VERSION;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.pro.adaway.BuildConfig;
 import org.pro.adaway.helper.PreferenceHelper;
@@ -28,6 +29,8 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import awaisome.compat.StringJoiner;
 import awaisome.compat.Optional;
@@ -37,6 +40,9 @@ import awaisome.compat.Optional;
  * <p>
  * Fake DNS addresses are registered as VPN interface DNS to capture DNS traffic.
  * Each original DNS server is directly mapped to one fake address.
+ * <p>
+ * The latency and loss of each original DNS server are tracked, so queries can be sent to a faster server
+ * than the mapped one when the latter is demoted or much slower, and hedged to a second server.
  *
  * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
  */
@@ -57,16 +63,25 @@ public class DnsServerMapper {
      * VPN network IPv6 interface prefix length.
      */
     private static final int IPV6_PREFIX_LENGTH = 120;
+    /**
+     * The score ratio of the mapped DNS server to the best one to prefer the best one.
+     */
+    private static final double SERVER_SWITCH_RATIO = 1.5;
     /**
      * The original DNS servers.
      */
     private final List<InetAddress> dnsServers;
+    /**
+     * The statistics of the original DNS servers.
+     */
+    private final Map<InetAddress, DnsUpstreamStats> upstreamStats;
 
     /**
      * Constructor.
      */
     public DnsServerMapper() {
         this.dnsServers = new ArrayList<>(0);
+        this.upstreamStats = new ConcurrentHashMap<>();
     }
 
     /**
@@ -97,6 +112,12 @@ public class DnsServerMapper {
             if (dnsServer instanceof Inet4Address)
                 builder.addRoute(dnsAddressAlias, 32);
         }
+        // Keep statistics of the DNS servers still in use
+        this.upstreamStats.keySet().retainAll(this.dnsServers);
+        for (final InetAddress dnsServer : this.dnsServers) {
+            if (!this.upstreamStats.containsKey(dnsServer))
+                this.upstreamStats.put(dnsServer, new DnsUpstreamStats(dnsServer));
+        }
     }
 
     public InetAddress getDefaultDnsServerAddress() {
@@ -107,12 +128,88 @@ public class DnsServerMapper {
                 throw new IllegalStateException("Failed to parse hardcoded DNS IP address.", e);
             }
         }
-        // Return last DNS server added
-        return this.dnsServers.get(this.dnsServers.size() - 1);
+        // Return best DNS server, or last DNS server added if all are demoted
+        final DnsUpstreamStats best = getBestUpstream(null);
+        return best == null ? this.dnsServers.get(this.dnsServers.size() - 1) : best.getAddress();
+    }
+
+    /**
+     * Get the statistics of the original DNS servers.
+     *
+     * @return The statistics of the original DNS servers.
+     */
+    @NonNull
+    public List<DnsUpstreamStats> getUpstreamStatistics() {
+        return new ArrayList<>(this.upstreamStats.values());
+    }
+
+    /**
+     * Get the statistics of an original DNS server.
+     *
+     * @param dnsServer The original DNS server address.
+     *
+     * @return The statistics of the DNS server, {@code null} if not an original DNS server.
+     */
+    @Nullable
+    DnsUpstreamStats getUpstreamStats(@NonNull final InetAddress dnsServer) {
+        return this.upstreamStats.get(dnsServer);
+    }
+
+    /**
+     * Get the original DNS server to hedge a query to.
+     *
+     * @param dnsServer The original DNS server the query was sent to.
+     *
+     * @return The best other DNS server not demoted, {@code null} if none.
+     */
+    @Nullable
+    InetAddress getHedgeDnsServer(@NonNull final InetAddress dnsServer) {
+        final DnsUpstreamStats best = getBestUpstream(dnsServer);
+        return best == null ? null : best.getAddress();
+    }
+
+    /**
+     * Get the DNS server to send a query to instead of the mapped one.
+     *
+     * @param dnsServer The mapped DNS server.
+     *
+     * @return The mapped DNS server, or the best one if the mapped one is demoted or much slower.
+     */
+    @NonNull
+    private InetAddress selectDnsServer(@NonNull final InetAddress dnsServer) {
+        final DnsUpstreamStats stats = this.upstreamStats.get(dnsServer);
+        final DnsUpstreamStats best = getBestUpstream(null);
+        if (stats == null || best == null || stats == best) return dnsServer;
+        if (!stats.isDemoted(DnsTimer.now()) && stats.getScore() <= SERVER_SWITCH_RATIO * best.getScore())
+            return dnsServer;
+        if (BuildConfig.DEBUG)
+            Log.d("AWAISKING_APP", "Switching from DNS server " + stats + " to " + best);
+        return best.getAddress();
+    }
+
+    /**
+     * Get the statistics of the best original DNS server not demoted.
+     *
+     * @param excludedServer The DNS server to exclude, {@code null} if none.
+     *
+     * @return The statistics of the DNS server with the best score, {@code null} if none.
+     */
+    @Nullable
+    private DnsUpstreamStats getBestUpstream(@Nullable final InetAddress excludedServer) {
+        final long now = DnsTimer.now();
+        DnsUpstreamStats best = null;
+        for (final InetAddress dnsServer : this.dnsServers) {
+            if (dnsServer.equals(excludedServer)) continue;
+            final DnsUpstreamStats stats = this.upstreamStats.get(dnsServer);
+            if (stats == null || stats.isDemoted(now)) continue;
+            if (best == null || stats.getScore() < best.getScore()) best = stats;
+        }
+        return best;
     }
 
     /**
      * Get the original DNS server address from fake DNS server address.
+     * A better DNS server may be returned if the mapped one is demoted or much slower.
      *
      * @param fakeDnsAddress The fake DNS address to get the original DNS server address.
      *
@@ -120,11 +217,23 @@ public class DnsServerMapper {
      */
     Optional<InetAddress> getDnsServerFromFakeAddress(@NonNull final InetAddress fakeDnsAddress) {
         final byte[] address = fakeDnsAddress.getAddress();
-        final int index = address[address.length - 1] - 2;
+        return getDnsServerFromFakeAddressLastByte(address[address.length - 1]);
+    }
+
+    /**
+     * Get the original DNS server address from the last byte of a fake DNS server address.
+     * A better DNS server may be returned if the mapped one is demoted or much slower.
+     *
+     * @param lastByte The last byte of the fake DNS address to get the original DNS server address.
+     *
+     * @return The original DNS server address, wrapped into an {@link Optional} or {@link Optional#empty()} if it does not exists.
+     */
+    Optional<InetAddress> getDnsServerFromFakeAddressLastByte(final int lastByte) {
+        final int index = lastByte - 2;
         if (index < 0 || index >= this.dnsServers.size()) return Optional.empty();
-        final InetAddress dnsAddress = this.dnsServers.get(index);
-        if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "handleDnsRequest: Incoming packet to " +
-                fakeDnsAddress.getHostAddress() + " AKA " + index + " AKA " + dnsAddress.getHostAddress());
+        final InetAddress dnsAddress = selectDnsServer(this.dnsServers.get(index));
+        if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "handleDnsRequest: Incoming packet to fake address "
+                + lastByte + " AKA " + index + " AKA " + dnsAddress.getHostAddress());
         return Optional.of(dnsAddress);
     }
 
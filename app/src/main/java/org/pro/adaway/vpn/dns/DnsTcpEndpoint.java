@@ -0,0 +1,889 @@
+package org.pro.adaway.vpn.dns;
+
+import static org.pro.adaway.vpn.dns.DnsResponseWriter.sum;
+import static org.pro.adaway.vpn.dns.DnsResponseWriter.writeShort;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.util.Consumer;
+
+import org.pro.adaway.BuildConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This class is a minimal user-space TCP endpoint for the DNS queries sent over TCP to the fake DNS servers.
+ * <p>
+ * Clients retry over TCP when a UDP response is truncated, so large answers need it. Each length-prefixed
+ * query of a connection is wrapped in a UDP packet and handled like any tunnel query, then its response is
+ * sent back on the connection. Only what DNS needs is implemented: one connection per client socket and
+ * in order data. Responses are sent within the client receive window and retransmitted with an exponential
+ * back off until acknowledged, as the tunnel drops packets when the client does not read them fast enough.
+ * This class is thread safe as responses can be written from the upstream threads.
+ */
+final class DnsTcpEndpoint {
+    /**
+     * The IP protocol number of TCP.
+     */
+    private static final int TCP_PROTOCOL = 6;
+    /**
+     * The IP protocol number of UDP.
+     */
+    private static final int UDP_PROTOCOL = 17;
+    /**
+     * The IPv4 header minimum length, in bytes.
+     */
+    private static final int IPV4_HEADER_LENGTH = 20;
+    /**
+     * The IPv6 header length, in bytes.
+     */
+    private static final int IPV6_HEADER_LENGTH = 40;
+    /**
+     * The TCP header minimum length, in bytes.
+     */
+    private static final int TCP_HEADER_LENGTH = 20;
+    /**
+     * The UDP header length, in bytes.
+     */
+    private static final int UDP_HEADER_LENGTH = 8;
+    /**
+     * The DNS port.
+     */
+    private static final int DNS_PORT = 53;
+    /**
+     * The FIN flag.
+     */
+    private static final int FIN = 0x01;
+    /**
+     * The SYN flag.
+     */
+    private static final int SYN = 0x02;
+    /**
+     * The RST flag.
+     */
+    private static final int RST = 0x04;
+    /**
+     * The PSH flag.
+     */
+    private static final int PSH = 0x08;
+    /**
+     * The ACK flag.
+     */
+    private static final int ACK = 0x10;
+    /**
+     * The maximum segment size of clients without MSS option (RFC 9293).
+     */
+    private static final int DEFAULT_MSS = 536;
+    /**
+     * The maximum segment size to announce.
+     */
+    private static final int LOCAL_MSS = 1400;
+    /**
+     * The receive window to announce.
+     */
+    private static final int WINDOW = 0xFFFF;
+    /**
+     * The maximum length of a DNS message.
+     */
+    private static final int MAX_MESSAGE_LENGTH = 0xFFFF;
+    /**
+     * The maximum number of connections.
+     */
+    private static final int MAX_CONNECTIONS = 64;
+    /**
+     * The idle time after which a connection is dropped (in milliseconds).
+     */
+    private static final long IDLE_TIMEOUT_MS = 30_000;
+    /**
+     * The initial retransmission timeout (in milliseconds).
+     */
+    private static final long INITIAL_RTO_MS = 1_000;
+    /**
+     * The maximum retransmission timeout (in milliseconds).
+     */
+    private static final long MAX_RTO_MS = 8_000;
+    /**
+     * The number of retransmissions after which a connection is reset.
+     */
+    private static final int MAX_RETRANSMISSIONS = 5;
+    /**
+     * The maximum length of the responses waiting to be sent or acknowledged on a connection.
+     */
+    private static final int MAX_SEND_LENGTH = 4 * (2 + MAX_MESSAGE_LENGTH);
+    /**
+     * The DNS packet proxy to handle the queries with.
+     */
+    private final DnsPacketProxy dnsPacketProxy;
+    /**
+     * The writer of segments to the tunnel.
+     */
+    private final Consumer<byte[]> deviceWriter;
+    /**
+     * The connections, by addresses and ports.
+     */
+    private final Map<ByteBuffer, Connection> connections;
+    /**
+     * The generator of initial sequence numbers.
+     */
+    private final Random random;
+
+    /**
+     * Constructor.
+     *
+     * @param dnsPacketProxy The DNS packet proxy to handle the queries with.
+     * @param deviceWriter   The writer of segments to the tunnel.
+     */
+    DnsTcpEndpoint(@NonNull final DnsPacketProxy dnsPacketProxy, @NonNull final Consumer<byte[]> deviceWriter) {
+        this.dnsPacketProxy = dnsPacketProxy;
+        this.deviceWriter = deviceWriter;
+        this.connections = new HashMap<>();
+        this.random = new Random();
+    }
+
+    /**
+     * Handle a tunnel packet if it is a TCP segment.
+     * <p>
+     * The packet buffer is only borrowed for the call: it is reused by the caller once this method returns.
+     *
+     * @param packet The packet data.
+     * @param length The packet length.
+     *
+     * @return {@code true} if the packet was a TCP segment and was handled, {@code false} otherwise.
+     *
+     * @throws IOException If a query could not be forwarded.
+     */
+    boolean handlePacket(@NonNull final byte[] packet, final int length) throws IOException {
+        if (length < 1) return false;
+        // Parse IP header
+        final boolean ipv4;
+        final int tcpOffset;
+        final int ipEnd;
+        final int ipVersion = (packet[0] & 0xFF) >>> 4;
+        if (ipVersion == 4) {
+            if (length < IPV4_HEADER_LENGTH || (packet[9] & 0xFF) != TCP_PROTOCOL) return false;
+            ipv4 = true;
+            tcpOffset = (packet[0] & 0x0F) * 4;
+            ipEnd = readUnsignedShort(packet, 2);
+            // Fragments are not expected from the small DNS queries
+            if ((readUnsignedShort(packet, 6) & 0x3FFF) != 0) return true;
+        } else if (ipVersion == 6) {
+            if (length < IPV6_HEADER_LENGTH || (packet[6] & 0xFF) != TCP_PROTOCOL) return false;
+            ipv4 = false;
+            tcpOffset = IPV6_HEADER_LENGTH;
+            ipEnd = IPV6_HEADER_LENGTH + readUnsignedShort(packet, 4);
+        } else {
+            return false;
+        }
+        if (tcpOffset < IPV4_HEADER_LENGTH || ipEnd > length || tcpOffset + TCP_HEADER_LENGTH > ipEnd) return true;
+        // Parse TCP header
+        final int dataOffset = tcpOffset + ((packet[tcpOffset + 12] & 0xFF) >>> 4) * 4;
+        if (dataOffset < tcpOffset + TCP_HEADER_LENGTH || dataOffset > ipEnd) return true;
+        final Segment segment = new Segment(packet, ipv4, tcpOffset, dataOffset, ipEnd);
+        handleSegment(segment);
+        return true;
+    }
+
+    /**
+     * Drop all the connections.
+     */
+    synchronized void clear() {
+        this.connections.clear();
+    }
+
+    /**
+     * Get the time until the next retransmission.
+     *
+     * @return The time until the next retransmission, in milliseconds, {@code -1} if there is nothing to retransmit.
+     */
+    synchronized int getTimeout() {
+        long retransmitAt = Long.MAX_VALUE;
+        for (final Connection connection : this.connections.values()) {
+            if (connection.retransmitAt != 0) retransmitAt = Math.min(retransmitAt, connection.retransmitAt);
+        }
+        if (retransmitAt == Long.MAX_VALUE) return -1;
+        return (int) Math.max(0, retransmitAt - DnsTimer.now());
+    }
+
+    /**
+     * Retransmit the segments not acknowledged in time.
+     */
+    synchronized void retransmit() {
+        final long now = DnsTimer.now();
+        final Iterator<Connection> iterator = this.connections.values().iterator();
+        while (iterator.hasNext()) {
+            final Connection connection = iterator.next();
+            if (connection.retransmitAt == 0 || now < connection.retransmitAt) continue;
+            // Give up on clients that do not acknowledge anymore
+            if (connection.retransmissions >= MAX_RETRANSMISSIONS) {
+                write(connection, RST);
+                iterator.remove();
+                continue;
+            }
+            connection.retransmissions++;
+            final int inFlight = connection.localSeq - connection.sendUna;
+            if (connection.sendLength > 0 && inFlight > 0) {
+                // Send the first unacknowledged segment again
+                write(connection, PSH | ACK, connection.sendUna, connection.sendBuffer, 0,
+                        Math.min(connection.remoteMss, Math.min(connection.sendLength, inFlight)));
+            } else if (connection.sendLength > 0) {
+                // Probe the closed receive window with one byte
+                write(connection, PSH | ACK, connection.localSeq, connection.sendBuffer, 0, 1);
+                connection.localSeq++;
+            } else if (connection.finSent) {
+                write(connection, FIN | ACK, connection.localSeq - 1, null, 0, 0);
+            }
+            connection.rto = Math.min(2 * connection.rto, MAX_RTO_MS);
+            connection.retransmitAt = now + connection.rto;
+        }
+    }
+
+    /**
+     * Handle a TCP segment.
+     *
+     * @param segment The segment to handle.
+     *
+     * @throws IOException If a query could not be forwarded.
+     */
+    private void handleSegment(@NonNull final Segment segment) throws IOException {
+        final Connection connection;
+        final byte[][] queries;
+        synchronized (this) {
+            Connection current = this.connections.get(segment.key);
+            if ((segment.flags & RST) != 0) {
+                if (current != null) this.connections.remove(segment.key);
+                return;
+            }
+            if ((segment.flags & SYN) != 0) {
+                if (current == null) {
+                    if (segment.localPort != DNS_PORT || (segment.flags & ACK) != 0) {
+                        reset(segment);
+                        return;
+                    }
+                    current = open(segment);
+                }
+                // Answer new or repeated connection requests
+                if (current.established) reset(segment);
+                else write(current, SYN | ACK);
+                return;
+            }
+            if (current == null) {
+                reset(segment);
+                return;
+            }
+            connection = current;
+            connection.lastActivity = DnsTimer.now();
+            // Handle acknowledgment of the connection, of the responses or of the closing
+            if ((segment.flags & ACK) != 0) {
+                if (!connection.established && segment.ack == connection.localSeq) connection.established = true;
+                if (connection.finSent && segment.ack == connection.localSeq) {
+                    this.connections.remove(segment.key);
+                    return;
+                }
+                if (connection.established) acknowledge(connection, segment);
+            }
+            if (!connection.established) return;
+            // Only accept in order data, acknowledging again the expected data otherwise
+            final int dataLength = segment.dataEnd - segment.dataOffset;
+            if (segment.seq != connection.remoteSeq) {
+                if (dataLength > 0 || (segment.flags & FIN) != 0) write(connection, ACK);
+                return;
+            }
+            queries = dataLength > 0 ? connection.receive(segment.packet, segment.dataOffset, dataLength) : null;
+            if ((segment.flags & FIN) != 0) {
+                connection.remoteSeq++;
+                connection.finReceived = true;
+            }
+            if (dataLength > 0 || connection.finReceived) {
+                write(connection, ACK);
+                closeIfDone(connection);
+            }
+        }
+        // Handle the queries out of the lock as their responses may be written right away
+        if (queries == null) return;
+        for (final byte[] query : queries) {
+            final byte[] udpPacket = connection.wrap(query);
+            this.dnsPacketProxy.handleDnsRequest(udpPacket, udpPacket.length,
+                    response -> handleResponse(connection, response), true);
+        }
+    }
+
+    /**
+     * Open a connection.
+     *
+     * @param segment The connection request segment.
+     *
+     * @return The opened connection.
+     */
+    @NonNull
+    private Connection open(@NonNull final Segment segment) {
+        // Drop idle connections to bound the memory used
+        final long now = DnsTimer.now();
+        final Iterator<Connection> iterator = this.connections.values().iterator();
+        while (iterator.hasNext()) {
+            final Connection connection = iterator.next();
+            if (now - connection.lastActivity >= IDLE_TIMEOUT_MS) iterator.remove();
+        }
+        if (this.connections.size() >= MAX_CONNECTIONS) {
+            this.connections.remove(this.connections.keySet().iterator().next());
+        }
+        final Connection connection = new Connection(segment, this.random.nextInt());
+        this.connections.put(segment.key, connection);
+        if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "Opening DNS over TCP connection from port " + segment.remotePort);
+        return connection;
+    }
+
+    /**
+     * Handle the acknowledgment and window of a segment, then send the responses the window now allows.
+     *
+     * @param connection The connection of the segment.
+     * @param segment    The segment with the ACK flag.
+     */
+    private void acknowledge(@NonNull final Connection connection, @NonNull final Segment segment) {
+        final int acknowledged = segment.ack - connection.sendUna;
+        // Ignore old or not yet sent acknowledgments
+        if (acknowledged < 0 || acknowledged > connection.localSeq - connection.sendUna) return;
+        connection.remoteWindow = segment.window;
+        if (acknowledged > 0) {
+            connection.acknowledge(acknowledged);
+            connection.retransmissions = 0;
+            connection.rto = INITIAL_RTO_MS;
+            connection.retransmitAt = 0;
+        }
+        send(connection);
+        closeIfDone(connection);
+    }
+
+    /**
+     * Send the waiting responses, within the client receive window.
+     *
+     * @param connection The connection to send the responses of.
+     */
+    private void send(@NonNull final Connection connection) {
+        int sent = connection.localSeq - connection.sendUna;
+        while (sent < connection.sendLength) {
+            final int length = Math.min(Math.min(connection.remoteMss, connection.sendLength - sent),
+                    connection.remoteWindow - sent);
+            if (length <= 0) break;
+            write(connection, PSH | ACK, connection.localSeq, connection.sendBuffer, sent, length);
+            connection.localSeq += length;
+            sent += length;
+        }
+        // Wait for the acknowledgment, or for the window to open if nothing could be sent
+        if (connection.sendLength > 0 && connection.retransmitAt == 0) {
+            connection.retransmitAt = DnsTimer.now() + connection.rto;
+        }
+    }
+
+    /**
+     * Handle the response of a query.
+     *
+     * @param connection The connection of the query.
+     * @param response   The response packet, as written for UDP.
+     */
+    private synchronized void handleResponse(@NonNull final Connection connection, @NonNull final byte[] response) {
+        connection.pendingQueries--;
+        if (this.connections.get(connection.key) != connection || connection.finSent) return;
+        final int ipHeaderLength = connection.ipv4 ? IPV4_HEADER_LENGTH : IPV6_HEADER_LENGTH;
+        final int dnsOffset = ipHeaderLength + UDP_HEADER_LENGTH;
+        final int dnsLength = response.length - dnsOffset;
+        if (dnsLength > 0) {
+            // Reset clients that do not read their responses rather than buffering them without limit
+            if (connection.sendLength + 2 + dnsLength > MAX_SEND_LENGTH) {
+                write(connection, RST);
+                this.connections.remove(connection.key);
+                return;
+            }
+            connection.enqueue(response, dnsOffset, dnsLength);
+            send(connection);
+        }
+        closeIfDone(connection);
+    }
+
+    /**
+     * Close a connection once the client closed its side and all its queries are answered and acknowledged.
+     *
+     * @param connection The connection to check.
+     */
+    private void closeIfDone(@NonNull final Connection connection) {
+        if (connection.finReceived && !connection.finSent && connection.pendingQueries <= 0 && connection.sendLength == 0) {
+            write(connection, FIN | ACK);
+            // The FIN flag counts as one byte
+            connection.localSeq++;
+            connection.finSent = true;
+            connection.retransmitAt = DnsTimer.now() + connection.rto;
+        }
+    }
+
+    /**
+     * Reset a segment without connection.
+     *
+     * @param segment The segment to reset.
+     */
+    private void reset(@NonNull final Segment segment) {
+        final Connection connection = new Connection(segment, 0);
+        final int flags;
+        if ((segment.flags & ACK) != 0) {
+            connection.localSeq = segment.ack;
+            flags = RST;
+        } else {
+            connection.localSeq = 0;
+            flags = RST | ACK;
+        }
+        write(connection, flags);
+    }
+
+    /**
+     * Write a segment without data to the tunnel, at the next sequence number to send.
+     *
+     * @param connection The connection of the segment.
+     * @param flags      The segment flags.
+     */
+    private void write(@NonNull final Connection connection, final int flags) {
+        // The SYN flag is before the initial sequence number
+        write(connection, flags, (flags & SYN) != 0 ? connection.localSeq - 1 : connection.localSeq, null, 0, 0);
+    }
+
+    /**
+     * Write a segment to the tunnel.
+     *
+     * @param connection The connection of the segment.
+     * @param flags      The segment flags.
+     * @param seq        The segment sequence number.
+     * @param data       The segment data, {@code null} if none.
+     * @param offset     The offset of the segment data.
+     * @param length     The length of the segment data.
+     */
+    private void write(@NonNull final Connection connection, final int flags, final int seq,
+                       @Nullable final byte[] data, final int offset, final int length) {
+        final int ipHeaderLength = connection.ipv4 ? IPV4_HEADER_LENGTH : IPV6_HEADER_LENGTH;
+        final int optionLength = (flags & SYN) != 0 ? 4 : 0;
+        final int tcpLength = TCP_HEADER_LENGTH + optionLength + length;
+        final byte[] packet = new byte[ipHeaderLength + tcpLength];
+        final int addressLength = connection.localAddress.length;
+        final int addressOffset = writeIpHeader(packet, connection, TCP_PROTOCOL, tcpLength);
+        // Write TCP header
+        writeShort(packet, ipHeaderLength, DNS_PORT);
+        writeShort(packet, ipHeaderLength + 2, connection.remotePort);
+        writeInt(packet, ipHeaderLength + 4, seq);
+        writeInt(packet, ipHeaderLength + 8, (flags & ACK) != 0 ? connection.remoteSeq : 0);
+        packet[ipHeaderLength + 12] = (byte) ((TCP_HEADER_LENGTH + optionLength) / 4 << 4);
+        packet[ipHeaderLength + 13] = (byte) flags;
+        writeShort(packet, ipHeaderLength + 14, WINDOW);
+        if (optionLength > 0) {
+            packet[ipHeaderLength + TCP_HEADER_LENGTH] = 2;
+            packet[ipHeaderLength + TCP_HEADER_LENGTH + 1] = 4;
+            writeShort(packet, ipHeaderLength + TCP_HEADER_LENGTH + 2, LOCAL_MSS);
+        }
+        if (data != null) System.arraycopy(data, offset, packet, ipHeaderLength + TCP_HEADER_LENGTH + optionLength, length);
+        // Compute checksum with pseudo header
+        int checksum = sum(packet, addressOffset, addressOffset + 2 * addressLength, TCP_PROTOCOL + tcpLength);
+        checksum = sum(packet, ipHeaderLength, packet.length, checksum);
+        writeShort(packet, ipHeaderLength + 16, ~checksum & 0xFFFF);
+        this.deviceWriter.accept(packet);
+    }
+
+    /**
+     * Write the IP header of a packet from the local address to the remote address of a connection.
+     *
+     * @param packet        The packet to write the header to.
+     * @param connection    The connection of the packet.
+     * @param protocol      The IP protocol number of the payload.
+     * @param payloadLength The payload length.
+     *
+     * @return The offset of the addresses, source then destination.
+     */
+    private static int writeIpHeader(@NonNull final byte[] packet, @NonNull final Connection connection,
+                                     final int protocol, final int payloadLength) {
+        return writeIpHeader(packet, connection.ipv4, connection.localAddress, connection.remoteAddress,
+                protocol, payloadLength);
+    }
+
+    /**
+     * Write the IP header of a packet.
+     *
+     * @param packet             The packet to write the header to.
+     * @param ipv4               Whether to write an IPv4 or IPv6 header.
+     * @param sourceAddress      The source address.
+     * @param destinationAddress The destination address.
+     * @param protocol           The IP protocol number of the payload.
+     * @param payloadLength      The payload length.
+     *
+     * @return The offset of the addresses, source then destination.
+     */
+    private static int writeIpHeader(@NonNull final byte[] packet, final boolean ipv4,
+                                     @NonNull final byte[] sourceAddress, @NonNull final byte[] destinationAddress,
+                                     final int protocol, final int payloadLength) {
+        final int addressOffset;
+        if (ipv4) {
+            packet[0] = 0x45;
+            writeShort(packet, 2, IPV4_HEADER_LENGTH + payloadLength);
+            packet[6] = 0x40;
+            packet[8] = 64;
+            packet[9] = (byte) protocol;
+            addressOffset = 12;
+        } else {
+            packet[0] = 0x60;
+            writeShort(packet, 4, payloadLength);
+            packet[6] = (byte) protocol;
+            packet[7] = 64;
+            addressOffset = 8;
+        }
+        System.arraycopy(sourceAddress, 0, packet, addressOffset, sourceAddress.length);
+        System.arraycopy(destinationAddress, 0, packet, addressOffset + sourceAddress.length, destinationAddress.length);
+        if (ipv4) writeShort(packet, 10, ~sum(packet, 0, IPV4_HEADER_LENGTH, 0) & 0xFFFF);
+        return addressOffset;
+    }
+
+    private static int readUnsignedShort(final byte[] data, final int offset) {
+        return (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+    }
+
+    private static int readInt(final byte[] data, final int offset) {
+        return readUnsignedShort(data, offset) << 16 | readUnsignedShort(data, offset + 2);
+    }
+
+    private static void writeInt(final byte[] data, final int offset, final int value) {
+        writeShort(data, offset, value >>> 16);
+        writeShort(data, offset + 2, value);
+    }
+
+    /**
+     * This class is a parsed TCP segment from the tunnel.
+     */
+    private static final class Segment {
+        /**
+         * The packet data.
+         */
+        final byte[] packet;
+        /**
+         * Whether the packet is an IPv4 packet.
+         */
+        final boolean ipv4;
+        /**
+         * The client address.
+         */
+        final byte[] remoteAddress;
+        /**
+         * The fake DNS server address.
+         */
+        final byte[] localAddress;
+        /**
+         * The client port.
+         */
+        final int remotePort;
+        /**
+         * The fake DNS server port.
+         */
+        final int localPort;
+        /**
+         * The sequence number.
+         */
+        final int seq;
+        /**
+         * The acknowledgment number.
+         */
+        final int ack;
+        /**
+         * The TCP flags.
+         */
+        final int flags;
+        /**
+         * The receive window, not scaled as the window scale option is never negotiated.
+         */
+        final int window;
+        /**
+         * The maximum segment size of the MSS option, {@value #DEFAULT_MSS} if none.
+         */
+        final int mss;
+        /**
+         * The offset of the segment data in the packet.
+         */
+        final int dataOffset;
+        /**
+         * The end of the segment data in the packet.
+         */
+        final int dataEnd;
+        /**
+         * The connection key, made of the addresses and ports.
+         */
+        final ByteBuffer key;
+
+        /**
+         * Constructor.
+         *
+         * @param packet     The packet data.
+         * @param ipv4       Whether the packet is an IPv4 packet.
+         * @param tcpOffset  The offset of the TCP header in the packet.
+         * @param dataOffset The offset of the segment data in the packet.
+         * @param ipEnd      The end of the IP packet.
+         */
+        Segment(final byte[] packet, final boolean ipv4, final int tcpOffset, final int dataOffset, final int ipEnd) {
+            this.packet = packet;
+            this.ipv4 = ipv4;
+            final int addressOffset = ipv4 ? 12 : 8;
+            final int addressLength = ipv4 ? 4 : 16;
+            this.remoteAddress = Arrays.copyOfRange(packet, addressOffset, addressOffset + addressLength);
+            this.localAddress = Arrays.copyOfRange(packet, addressOffset + addressLength, addressOffset + 2 * addressLength);
+            this.remotePort = readUnsignedShort(packet, tcpOffset);
+            this.localPort = readUnsignedShort(packet, tcpOffset + 2);
+            this.seq = readInt(packet, tcpOffset + 4);
+            this.ack = readInt(packet, tcpOffset + 8);
+            this.flags = packet[tcpOffset + 13] & 0x3F;
+            this.window = readUnsignedShort(packet, tcpOffset + 14);
+            this.mss = readMss(packet, tcpOffset + TCP_HEADER_LENGTH, dataOffset);
+            this.dataOffset = dataOffset;
+            this.dataEnd = ipEnd;
+            // Key on both addresses and ports
+            final byte[] key = Arrays.copyOfRange(packet, addressOffset, addressOffset + 2 * addressLength + 4);
+            System.arraycopy(packet, tcpOffset, key, 2 * addressLength, 4);
+            this.key = ByteBuffer.wrap(key);
+        }
+
+        /**
+         * Read the MSS option of a segment.
+         *
+         * @param packet The packet data.
+         * @param start  The start of the TCP options.
+         * @param end    The end of the TCP options.
+         *
+         * @return The maximum segment size of the MSS option, {@value #DEFAULT_MSS} if none.
+         */
+        private static int readMss(final byte[] packet, final int start, final int end) {
+            int offset = start;
+            while (offset < end) {
+                final int kind = packet[offset] & 0xFF;
+                if (kind == 0) break;
+                if (kind == 1) {
+                    offset++;
+                    continue;
+                }
+                if (offset + 1 >= end) break;
+                final int optionLength = packet[offset + 1] & 0xFF;
+                if (optionLength < 2 || offset + optionLength > end) break;
+                if (kind == 2 && optionLength == 4) return Math.max(DEFAULT_MSS, readUnsignedShort(packet, offset + 2));
+                offset += optionLength;
+            }
+            return DEFAULT_MSS;
+        }
+    }
+
+    /**
+     * This class is the state of a TCP connection.
+     */
+    private static final class Connection {
+        /**
+         * The connection key, made of the addresses and ports.
+         */
+        final ByteBuffer key;
+        /**
+         * Whether the connection is over IPv4.
+         */
+        final boolean ipv4;
+        /**
+         * The client address.
+         */
+        final byte[] remoteAddress;
+        /**
+         * The fake DNS server address.
+         */
+        final byte[] localAddress;
+        /**
+         * The client port.
+         */
+        final int remotePort;
+        /**
+         * The maximum segment size of the client.
+         */
+        final int remoteMss;
+        /**
+         * The received data not yet parsed as queries.
+         */
+        private byte[] buffer;
+        /**
+         * The length of the received data not yet parsed as queries.
+         */
+        private int bufferLength;
+        /**
+         * The responses waiting to be sent or acknowledged, from {@link #sendUna}.
+         */
+        byte[] sendBuffer;
+        /**
+         * The length of the responses waiting to be sent or acknowledged.
+         */
+        int sendLength;
+        /**
+         * The oldest sequence number not acknowledged yet.
+         */
+        int sendUna;
+        /**
+         * The receive window of the client.
+         */
+        int remoteWindow;
+        /**
+         * The retransmission timeout (in milliseconds).
+         */
+        long rto;
+        /**
+         * The time of the next retransmission, in {@link DnsTimer#now()} time, {@code 0} if none.
+         */
+        long retransmitAt;
+        /**
+         * The number of retransmissions since the last acknowledgment.
+         */
+        int retransmissions;
+        /**
+         * The next sequence number to send.
+         */
+        int localSeq;
+        /**
+         * The next sequence number expected from the client.
+         */
+        int remoteSeq;
+        /**
+         * The number of queries waiting for response.
+         */
+        int pendingQueries;
+        /**
+         * Whether the client acknowledged the connection.
+         */
+        boolean established;
+        /**
+         * Whether the client closed its side of the connection.
+         */
+        boolean finReceived;
+        /**
+         * Whether the connection was closed.
+         */
+        boolean finSent;
+        /**
+         * The time of the last segment, in {@link DnsTimer#now()} time.
+         */
+        long lastActivity;
+
+        /**
+         * Constructor.
+         *
+         * @param segment  The connection request segment.
+         * @param localSeq The initial sequence number.
+         */
+        Connection(@NonNull final Segment segment, final int localSeq) {
+            this.key = segment.key;
+            this.ipv4 = segment.ipv4;
+            this.remoteAddress = segment.remoteAddress;
+            this.localAddress = segment.localAddress;
+            this.remotePort = segment.remotePort;
+            this.remoteMss = segment.mss;
+            this.buffer = new byte[0];
+            this.bufferLength = 0;
+            this.sendBuffer = new byte[0];
+            this.sendLength = 0;
+            this.remoteWindow = segment.window;
+            this.rto = INITIAL_RTO_MS;
+            this.retransmitAt = 0;
+            this.retransmissions = 0;
+            // The SYN flag counts as one byte
+            this.localSeq = localSeq + 1;
+            this.sendUna = this.localSeq;
+            this.remoteSeq = segment.seq + 1;
+            this.pendingQueries = 0;
+            this.established = false;
+            this.finReceived = false;
+            this.finSent = false;
+            this.lastActivity = DnsTimer.now();
+        }
+
+        /**
+         * Receive in order data and extract the complete queries.
+         *
+         * @param data   The data.
+         * @param offset The data offset.
+         * @param length The data length.
+         *
+         * @return The complete queries, {@code null} if none.
+         */
+        @Nullable
+        byte[][] receive(final byte[] data, final int offset, final int length) {
+            this.remoteSeq += length;
+            if (this.bufferLength + length > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, Math.min(2 + MAX_MESSAGE_LENGTH,
+                        Math.max(2 * this.buffer.length, this.bufferLength + length)));
+            }
+            final int copyLength = Math.min(length, this.buffer.length - this.bufferLength);
+            System.arraycopy(data, offset, this.buffer, this.bufferLength, copyLength);
+            this.bufferLength += copyLength;
+            // Extract the length-prefixed queries
+            byte[][] queries = null;
+            int position = 0;
+            while (this.bufferLength - position >= 2) {
+                final int messageLength = readUnsignedShort(this.buffer, position);
+                if (this.bufferLength - position - 2 < messageLength) break;
+                final byte[] query = Arrays.copyOfRange(this.buffer, position + 2, position + 2 + messageLength);
+                queries = queries == null ? new byte[1][] : Arrays.copyOf(queries, queries.length + 1);
+                queries[queries.length - 1] = query;
+                position += 2 + messageLength;
+            }
+            if (position > 0) {
+                System.arraycopy(this.buffer, position, this.buffer, 0, this.bufferLength - position);
+                this.bufferLength -= position;
+            }
+            if (queries != null) this.pendingQueries += queries.length;
+            return queries;
+        }
+
+        /**
+         * Queue a response to send, prefixed with its length.
+         *
+         * @param data   The response data.
+         * @param offset The response offset.
+         * @param length The response length.
+         */
+        void enqueue(final byte[] data, final int offset, final int length) {
+            if (this.sendLength + 2 + length > this.sendBuffer.length) {
+                this.sendBuffer = Arrays.copyOf(this.sendBuffer, Math.max(2 * this.sendBuffer.length, this.sendLength + 2 + length));
+            }
+            writeShort(this.sendBuffer, this.sendLength, length);
+            System.arraycopy(data, offset, this.sendBuffer, this.sendLength + 2, length);
+            this.sendLength += 2 + length;
+        }
+
+        /**
+         * Drop the acknowledged responses.
+         *
+         * @param length The number of acknowledged bytes, including the FIN flag if acknowledged.
+         */
+        void acknowledge(final int length) {
+            final int dataLength = Math.min(length, this.sendLength);
+            System.arraycopy(this.sendBuffer, dataLength, this.sendBuffer, 0, this.sendLength - dataLength);
+            this.sendLength -= dataLength;
+            this.sendUna += length;
+        }
+
+        /**
+         * Wrap a query into a UDP packet from the client to the fake DNS server.
+         *
+         * @param query The query data.
+         *
+         * @return The UDP packet data.
+         */
+        @NonNull
+        byte[] wrap(@NonNull final byte[] query) {
+            final int ipHeaderLength = this.ipv4 ? IPV4_HEADER_LENGTH : IPV6_HEADER_LENGTH;
+            final int udpLength = UDP_HEADER_LENGTH + query.length;
+            final byte[] packet = new byte[ipHeaderLength + udpLength];
+            writeIpHeader(packet, this.ipv4, this.remoteAddress, this.localAddress, UDP_PROTOCOL, udpLength);
+            writeShort(packet, ipHeaderLength, this.remotePort);
+            writeShort(packet, ipHeaderLength + 2, DNS_PORT);
+            writeShort(packet, ipHeaderLength + 4, udpLength);
+            System.arraycopy(query, 0, packet, ipHeaderLength + UDP_HEADER_LENGTH, query.length);
+            return packet;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.pro.adaway.vpn.dns;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.util.Consumer;
+
+/**
+ * This class is a hashed timing wheel of tasks to expire.
+ * <p>
+ * Tasks are linked into the slot of their deadline tick, so scheduling and cancelling are constant time,
+ * and expiring only walks the slots of the elapsed ticks. Deadlines further than a wheel turn stay in their
+ * slot until their turn comes.
+ *
+ * @param <T> The type of tasks.
+ */
+final class DnsTimer<T extends DnsTimer.Task> {
+    /**
+     * The tick duration, in milliseconds.
+     */
+    private static final long TICK_MILLIS = 100;
+    /**
+     * The number of slots of the wheel, as a power of two.
+     */
+    private static final int SLOT_COUNT = 128;
+    /**
+     * The mask to get a slot index from a tick.
+     */
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+    /**
+     * The head tasks of each slot.
+     */
+    private final Task[] slots;
+    /**
+     * The last expired tick.
+     */
+    private long currentTick;
+    /**
+     * The number of scheduled tasks.
+     */
+    private int size;
+
+    /**
+     * Constructor.
+     */
+    DnsTimer() {
+        this.slots = new Task[SLOT_COUNT];
+        this.currentTick = now() / TICK_MILLIS;
+        this.size = 0;
+    }
+
+    /**
+     * Get the current time of the timer.
+     *
+     * @return The current monotonic time, in milliseconds.
+     */
+    static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param task     The task to schedule, not already scheduled.
+     * @param deadline The task deadline, in {@link #now()} time.
+     */
+    void schedule(@NonNull final T scheduledTask, final long deadline) {
+        final Task task = scheduledTask;
+        final long tick = Math.max((deadline + TICK_MILLIS - 1) / TICK_MILLIS, this.currentTick + 1);
+        final int slot = (int) (tick & SLOT_MASK);
+        task.deadline = deadline;
+        task.slot = slot;
+        task.previous = null;
+        task.next = this.slots[slot];
+        if (task.next != null) task.next.previous = task;
+        this.slots[slot] = task;
+        this.size++;
+    }
+
+    /**
+     * Cancel a task.
+     *
+     * @param task The task to cancel. Nothing is done if the task is not scheduled.
+     */
+    void cancel(@NonNull final T cancelledTask) {
+        final Task task = cancelledTask;
+        if (task.slot == Task.NOT_SCHEDULED) return;
+        if (task.previous == null) this.slots[task.slot] = task.next;
+        else task.previous.next = task.next;
+        if (task.next != null) task.next.previous = task.previous;
+        task.previous = null;
+        task.next = null;
+        task.slot = Task.NOT_SCHEDULED;
+        this.size--;
+    }
+
+    /**
+     * Expire the tasks whose deadline is reached.
+     *
+     * @param now      The current time, in {@link #now()} time.
+     * @param consumer The consumer of the expired tasks, called after the task is removed from the timer.
+     */
+    @SuppressWarnings("unchecked")
+    void expire(final long now, @NonNull final Consumer<T> consumer) {
+        final long nowTick = now / TICK_MILLIS;
+        final long ticks = Math.min(nowTick - this.currentTick, SLOT_COUNT);
+        for (long i = 1; i <= ticks && this.size > 0; i++) {
+            Task task = this.slots[(int) ((this.currentTick + i) & SLOT_MASK)];
+            while (task != null) {
+                final Task next = task.next;
+                if (task.deadline <= now) {
+                    cancel((T) task);
+                    consumer.accept((T) task);
+                }
+                task = next;
+            }
+        }
+        this.currentTick = Math.max(this.currentTick, nowTick);
+    }
+
+    /**
+     * Get the time until the next slot with tasks to expire.
+     *
+     * @param now The current time, in {@link #now()} time.
+     *
+     * @return The time until the next slot to expire, in milliseconds, {@code -1} if there is no task.
+     */
+    int getTimeout(final long now) {
+        if (this.size == 0) return -1;
+        for (long tick = this.currentTick + 1; tick <= this.currentTick + SLOT_COUNT; tick++) {
+            if (this.slots[(int) (tick & SLOT_MASK)] != null) {
+                return (int) Math.max(0, tick * TICK_MILLIS - now);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the task with the earliest deadline.
+     *
+     * @return The task with the earliest deadline, {@code null} if there is no task.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    T getEarliest() {
+        if (this.size == 0) return null;
+        Task earliest = null;
+        for (final Task head : this.slots) {
+            for (Task task = head; task != null; task = task.next) {
+                if (earliest == null || task.deadline < earliest.deadline) earliest = task;
+            }
+        }
+        return (T) earliest;
+    }
+
+    /**
+     * Get the number of scheduled tasks.
+     *
+     * @return The number of scheduled tasks.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Cancel all tasks.
+     */
+    void clear() {
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            Task task = this.slots[slot];
+            while (task != null) {
+                final Task next = task.next;
+                task.previous = null;
+                task.next = null;
+                task.slot = Task.NOT_SCHEDULED;
+                task = next;
+            }
+            this.slots[slot] = null;
+        }
+        this.size = 0;
+    }
+
+    /**
+     * This class is a task of the timer, linked into its slot.
+     */
+    abstract static class Task {
+        /**
+         * The slot value of tasks not scheduled.
+         */
+        private static final int NOT_SCHEDULED = -1;
+        /**
+         * The task deadline, in {@link #now()} time.
+         */
+        private long deadline;
+        /**
+         * The slot of the task, {@link #NOT_SCHEDULED} if not scheduled.
+         */
+        private int slot = NOT_SCHEDULED;
+        /**
+         * The previous task of the slot.
+         */
+        private Task previous;
+        /**
+         * The next task of the slot.
+         */
+        private Task next;
+    }
+}
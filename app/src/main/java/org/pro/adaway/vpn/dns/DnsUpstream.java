@@ -0,0 +1,32 @@
+package org.pro.adaway.vpn.dns;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.util.Consumer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+
+/**
+ * This interface is an upstream DNS transport, forwarding the queries of the VPN clients.
+ */
+public interface DnsUpstream {
+    /**
+     * Send a DNS query upstream.
+     * The callbacks may be called from any thread.
+     *
+     * @param outPacket    The query packet, with the DNS server address.
+     * @param callback     The callback to call with the query response data.
+     * @param slowCallback The callback to run if the response is late or the query could not be sent,
+     *                     {@code null} if none.
+     *
+     * @throws IOException If the query could not be sent.
+     */
+    void forwardQuery(@NonNull DatagramPacket outPacket, @NonNull Consumer<byte[]> callback,
+                      @Nullable Runnable slowCallback) throws IOException;
+
+    /**
+     * Close all connections and drop all pending queries.
+     */
+    void clear();
+}
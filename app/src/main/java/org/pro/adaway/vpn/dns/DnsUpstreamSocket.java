@@ -0,0 +1,221 @@
+package org.pro.adaway.vpn.dns;
+
+import static android.system.OsConstants.POLLIN;
+
+import android.net.VpnService;
+import android.os.ParcelFileDescriptor;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.pro.adaway.BuildConfig;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class is a long-lived socket to a DNS server, shared by many queries.
+ * <p>
+ * The socket is protected from the VPN and connected to the server, so the system drops any datagram
+ * not coming from the server address and port. Pending queries are identified by their upstream identifier.
+ */
+class DnsUpstreamSocket implements AutoCloseable {
+    /**
+     * The socket to the DNS server.
+     */
+    private final DatagramSocket socket;
+    /**
+     * The DNS server address the socket is connected to.
+     */
+    private final InetSocketAddress server;
+    /**
+     * The duplicated file descriptor of the socket, to close with it.
+     */
+    private final ParcelFileDescriptor parcelFileDescriptor;
+    /**
+     * The pollfd related to the socket to poll the OS with.
+     */
+    private final StructPollfd pollfd;
+    /**
+     * The pending queries, by upstream identifier.
+     */
+    private final Map<Integer, DnsQuery> pendingQueries;
+    /**
+     * The number of queries sent with this socket.
+     */
+    private int queryCount;
+    /**
+     * Whether the socket is retired, waiting for its pending queries before being closed.
+     */
+    private boolean retired;
+
+    /**
+     * Constructor.
+     *
+     * @param vpnService The VPN service to protect the socket with.
+     * @param server     The DNS server address to connect the socket to.
+     *
+     * @throws IOException If the socket could not be created.
+     */
+    DnsUpstreamSocket(@NonNull final VpnService vpnService, @NonNull final InetSocketAddress server) throws IOException {
+        // Bind to a random ephemeral port
+        this.socket = new DatagramSocket();
+        try {
+            if (!vpnService.protect(this.socket)) throw new IOException("Failed to protect DNS socket.");
+            this.socket.connect(server);
+            this.parcelFileDescriptor = ParcelFileDescriptor.fromDatagramSocket(this.socket);
+            if (this.parcelFileDescriptor == null) throw new IOException("Failed to get DNS socket descriptor.");
+        } catch (final IOException | RuntimeException e) {
+            this.socket.close();
+            throw e;
+        }
+        this.server = server;
+        this.pollfd = new StructPollfd();
+        this.pollfd.fd = this.parcelFileDescriptor.getFileDescriptor();
+        this.pollfd.events = (short) POLLIN;
+        this.pendingQueries = new HashMap<>();
+        this.queryCount = 0;
+        this.retired = false;
+    }
+
+    /**
+     * Get the address of the DNS server.
+     *
+     * @return The address of the DNS server.
+     */
+    @NonNull
+    InetAddress getServerAddress() {
+        return this.server.getAddress();
+    }
+
+    /**
+     * Get the pollfd related to the socket to poll the OS with.
+     *
+     * @return The pollfd related to the socket to poll the OS with.
+     */
+    @NonNull
+    StructPollfd getPollfd() {
+        return this.pollfd;
+    }
+
+    /**
+     * Check whether the socket has received data to read.
+     *
+     * @return {@code true} if there is data to read from the socket, {@code false} otherwise.
+     */
+    boolean isReadable() {
+        return (this.pollfd.revents & POLLIN) != 0;
+    }
+
+    /**
+     * Check whether an upstream identifier is used by a pending query.
+     *
+     * @param upstreamId The upstream identifier to check.
+     *
+     * @return {@code true} if the identifier is used by a pending query, {@code false} otherwise.
+     */
+    boolean isPending(final int upstreamId) {
+        return this.pendingQueries.containsKey(upstreamId);
+    }
+
+    /**
+     * Send a query.
+     *
+     * @param packet The query packet to send.
+     * @param query  The related query, to match the response with.
+     *
+     * @throws IOException If the query could not be sent.
+     */
+    void send(@NonNull final DatagramPacket packet, @NonNull final DnsQuery query) throws IOException {
+        // Address the packet to the connected server as sending may have set another one before
+        packet.setSocketAddress(this.server);
+        this.socket.send(packet);
+        this.pendingQueries.put(query.getUpstreamId(), query);
+        this.queryCount++;
+    }
+
+    /**
+     * Receive a response.
+     *
+     * @param packet The packet to receive response into.
+     *
+     * @throws IOException If the response could not be received.
+     */
+    void receive(@NonNull final DatagramPacket packet) throws IOException {
+        this.socket.receive(packet);
+    }
+
+    /**
+     * Get the pending query of an upstream identifier.
+     *
+     * @param upstreamId The upstream identifier of the query.
+     *
+     * @return The pending query, {@code null} if no query is pending with this identifier.
+     */
+    @Nullable
+    DnsQuery getPendingQuery(final int upstreamId) {
+        return this.pendingQueries.get(upstreamId);
+    }
+
+    /**
+     * Remove a query from the pending queries.
+     *
+     * @param query The query to remove.
+     */
+    void removePendingQuery(@NonNull final DnsQuery query) {
+        this.pendingQueries.remove(query.getUpstreamId());
+    }
+
+    /**
+     * Check whether the socket has pending queries.
+     *
+     * @return {@code true} if some queries are still waiting for response, {@code false} otherwise.
+     */
+    boolean hasPendingQueries() {
+        return !this.pendingQueries.isEmpty();
+    }
+
+    /**
+     * Get the number of queries sent with this socket.
+     *
+     * @return The number of queries sent with this socket.
+     */
+    int getQueryCount() {
+        return this.queryCount;
+    }
+
+    /**
+     * Check whether the socket is retired.
+     *
+     * @return {@code true} if the socket is retired and no longer sends queries, {@code false} otherwise.
+     */
+    boolean isRetired() {
+        return this.retired;
+    }
+
+    /**
+     * Retire the socket: it will no longer send queries and will be closed once its pending queries are done.
+     */
+    void retire() {
+        this.retired = true;
+    }
+
+    @Override
+    public void close() {
+        this.retired = true;
+        this.pendingQueries.clear();
+        try {
+            this.parcelFileDescriptor.close();
+        } catch (final IOException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to close DNS socket descriptor.", e);
+        }
+        this.socket.close();
+    }
+}
@@ -0,0 +1,261 @@
+package org.pro.adaway.vpn.dns;
+
+import androidx.annotation.NonNull;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * This class tracks the latency and the loss of an upstream DNS server.
+ * <p>
+ * Latency and loss are smoothed with exponentially weighted moving averages, and the 90th percentile of the
+ * latency is computed from the recent response times to decide when to hedge a query to another server.
+ * Servers losing too many queries are demoted for a while, with an exponential back off.
+ * This class is thread safe.
+ */
+public final class DnsUpstreamStats {
+    /**
+     * The weight of a new sample in the moving averages.
+     */
+    private static final double EWMA_WEIGHT = 0.125;
+    /**
+     * The assumed round-trip time of a server without response yet, in milliseconds.
+     */
+    private static final double INITIAL_RTT_MS = 100;
+    /**
+     * The number of recent response times to compute the latency percentile from.
+     */
+    private static final int RECENT_RTT_COUNT = 32;
+    /**
+     * The minimum number of response times to compute the latency percentile from.
+     */
+    private static final int MIN_RTT_COUNT = 8;
+    /**
+     * The hedge delay of servers without enough response times, in milliseconds.
+     */
+    private static final long DEFAULT_HEDGE_DELAY_MS = 300;
+    /**
+     * The minimum hedge delay, in milliseconds.
+     */
+    private static final long MIN_HEDGE_DELAY_MS = 50;
+    /**
+     * The maximum hedge delay, in milliseconds.
+     */
+    private static final long MAX_HEDGE_DELAY_MS = 1000;
+    /**
+     * The weight of the loss rate in the server score.
+     */
+    private static final double LOSS_PENALTY = 4;
+    /**
+     * The number of consecutive losses to demote a server.
+     */
+    private static final int DEMOTION_LOSSES = 3;
+    /**
+     * The loss rate to demote a server.
+     */
+    private static final double DEMOTION_LOSS_RATE = 0.5;
+    /**
+     * The initial demotion duration, in milliseconds.
+     */
+    private static final long MIN_DEMOTION_MS = 30_000;
+    /**
+     * The maximum demotion duration, in milliseconds.
+     */
+    private static final long MAX_DEMOTION_MS = 300_000;
+    /**
+     * The server address.
+     */
+    private final InetAddress address;
+    /**
+     * The recent response times, as a ring buffer, in milliseconds.
+     */
+    private final long[] recentRtts;
+    /**
+     * The smoothed round-trip time, in milliseconds.
+     */
+    private double smoothedRtt;
+    /**
+     * The smoothed loss rate, from {@code 0} to {@code 1}.
+     */
+    private double lossRate;
+    /**
+     * The number of responses.
+     */
+    private long responseCount;
+    /**
+     * The number of lost queries.
+     */
+    private long lossCount;
+    /**
+     * The number of losses since the last response.
+     */
+    private int consecutiveLosses;
+    /**
+     * The 90th percentile of the recent response times, in milliseconds.
+     */
+    private long rttP90;
+    /**
+     * The duration of the next demotion, in milliseconds.
+     */
+    private long demotionDuration;
+    /**
+     * The end of the demotion, in {@link DnsTimer#now()} time.
+     */
+    private long demotedUntil;
+
+    /**
+     * Constructor.
+     *
+     * @param address The server address.
+     */
+    DnsUpstreamStats(@NonNull final InetAddress address) {
+        this.address = address;
+        this.recentRtts = new long[RECENT_RTT_COUNT];
+        this.smoothedRtt = INITIAL_RTT_MS;
+        this.lossRate = 0;
+        this.responseCount = 0;
+        this.lossCount = 0;
+        this.consecutiveLosses = 0;
+        this.rttP90 = DEFAULT_HEDGE_DELAY_MS;
+        this.demotionDuration = MIN_DEMOTION_MS;
+        this.demotedUntil = DnsTimer.now();
+    }
+
+    /**
+     * Record a response of the server.
+     *
+     * @param rtt The response time, in milliseconds.
+     */
+    synchronized void recordResponse(final long rtt) {
+        this.smoothedRtt = this.responseCount == 0 ? rtt : this.smoothedRtt + EWMA_WEIGHT * (rtt - this.smoothedRtt);
+        this.lossRate -= EWMA_WEIGHT * this.lossRate;
+        this.recentRtts[(int) (this.responseCount % RECENT_RTT_COUNT)] = rtt;
+        this.responseCount++;
+        this.consecutiveLosses = 0;
+        this.demotionDuration = MIN_DEMOTION_MS;
+        // Update response time percentile
+        final int count = (int) Math.min(this.responseCount, RECENT_RTT_COUNT);
+        if (count >= MIN_RTT_COUNT) {
+            final long[] sortedRtts = Arrays.copyOf(this.recentRtts, count);
+            Arrays.sort(sortedRtts);
+            this.rttP90 = sortedRtts[(count * 9 - 1) / 10];
+        }
+    }
+
+    /**
+     * Record a query lost by the server.
+     */
+    synchronized void recordLoss() {
+        this.lossRate += EWMA_WEIGHT * (1 - this.lossRate);
+        this.lossCount++;
+        this.consecutiveLosses++;
+        final long now = DnsTimer.now();
+        if (now >= this.demotedUntil && (this.consecutiveLosses >= DEMOTION_LOSSES
+                || this.responseCount + this.lossCount >= MIN_RTT_COUNT && this.lossRate > DEMOTION_LOSS_RATE)) {
+            this.demotedUntil = now + this.demotionDuration;
+            this.demotionDuration = Math.min(2 * this.demotionDuration, MAX_DEMOTION_MS);
+        }
+    }
+
+    /**
+     * Get the delay before hedging a query to another server.
+     *
+     * @return The 90th percentile of the recent response times, in milliseconds.
+     */
+    synchronized long getHedgeDelay() {
+        return Math.max(MIN_HEDGE_DELAY_MS, Math.min(this.rttP90, MAX_HEDGE_DELAY_MS));
+    }
+
+    /**
+     * Get the server score, to compare servers.
+     *
+     * @return The server score, the lower the better.
+     */
+    synchronized double getScore() {
+        return this.smoothedRtt * (1 + LOSS_PENALTY * this.lossRate);
+    }
+
+    /**
+     * Check whether the server is demoted.
+     *
+     * @param now The current time, in {@link DnsTimer#now()} time.
+     *
+     * @return {@code true} if the server is demoted, {@code false} otherwise.
+     */
+    synchronized boolean isDemoted(final long now) {
+        return now < this.demotedUntil;
+    }
+
+    /**
+     * Get the server address.
+     *
+     * @return The server address.
+     */
+    @NonNull
+    public InetAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * Get the smoothed round-trip time.
+     *
+     * @return The smoothed round-trip time, in milliseconds.
+     */
+    public synchronized double getSmoothedRtt() {
+        return this.smoothedRtt;
+    }
+
+    /**
+     * Get the 90th percentile of the recent response times.
+     *
+     * @return The 90th percentile of the recent response times, in milliseconds.
+     */
+    public synchronized long getRttP90() {
+        return this.rttP90;
+    }
+
+    /**
+     * Get the smoothed loss rate.
+     *
+     * @return The smoothed loss rate, from {@code 0} to {@code 1}.
+     */
+    public synchronized double getLossRate() {
+        return this.lossRate;
+    }
+
+    /**
+     * Get the number of responses.
+     *
+     * @return The number of responses.
+     */
+    public synchronized long getResponseCount() {
+        return this.responseCount;
+    }
+
+    /**
+     * Get the number of lost queries.
+     *
+     * @return The number of lost queries.
+     */
+    public synchronized long getLossCount() {
+        return this.lossCount;
+    }
+
+    /**
+     * Check whether the server is demoted.
+     *
+     * @return {@code true} if the server is demoted, {@code false} otherwise.
+     */
+    public boolean isDemoted() {
+        return isDemoted(DnsTimer.now());
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH, "DnsUpstreamStats{address=%s, rtt=%.1fms, p90=%dms, loss=%.1f%%, responses=%d, losses=%d, demoted=%b}",
+                this.address.getHostAddress(), this.smoothedRtt, this.rttP90, 100 * this.lossRate,
+                this.responseCount, this.lossCount, isDemoted(DnsTimer.now()));
+    }
+}
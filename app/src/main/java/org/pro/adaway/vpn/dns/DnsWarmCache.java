@@ -0,0 +1,260 @@
+package org.pro.adaway.vpn.dns;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.pro.adaway.BuildConfig;
+import org.pro.adaway.util.AppExecutors;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * This class persists the most requested names and their cached answers, to warm the VPN caches at start.
+ * <p>
+ * After a boot or a restart, the first requests would otherwise all miss the caches. The hot names are tracked
+ * with a {@link DnsFrequencySketch} and saved periodically with the answers of the hottest ones. At start, the
+ * answers are restored in the {@link DnsAnswerCache} and the names are returned to preload their host entries.
+ * Their decisions are not saved as the lists may have changed since. This class is used from the VPN worker
+ * thread only, files are written from the disk executor.
+ */
+final class DnsWarmCache {
+    /**
+     * The warm cache file name.
+     */
+    private static final String FILE_NAME = "dns_warm_cache.bin";
+    /**
+     * The warm cache file magic number ("AAWC").
+     */
+    private static final int MAGIC = 0x41415743;
+    /**
+     * The warm cache file format version.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The minimum estimated frequency of a name to track it.
+     */
+    private static final int HOT_FREQUENCY = 2;
+    /**
+     * The maximum number of tracked names.
+     */
+    private static final int MAX_TRACKED_NAMES = 1024;
+    /**
+     * The maximum number of saved names.
+     */
+    private static final int MAX_SAVED_NAMES = 256;
+    /**
+     * The maximum number of saved answers.
+     */
+    private static final int MAX_SAVED_ANSWERS = 256;
+    /**
+     * The time between two saves, in milliseconds.
+     */
+    private static final long SAVE_PERIOD_MS = 10 * 60 * 1000L;
+    /**
+     * The number of requests after start to report the cache hit rate of.
+     */
+    private static final int EARLY_REQUEST_COUNT = 100;
+    /**
+     * The number of counters per row of the frequency sketch.
+     */
+    private static final int SKETCH_WIDTH = 1024;
+    /**
+     * The estimated request frequencies, by name hash.
+     */
+    private final DnsFrequencySketch sketch;
+    /**
+     * The tracked hot names, in tracking order.
+     */
+    private final LinkedHashSet<String> names;
+    /**
+     * The warm cache file, {@code null} until loaded.
+     */
+    private File file;
+    /**
+     * The time of the next save, in {@link DnsTimer#now()} time.
+     */
+    private long nextSaveAt;
+    /**
+     * The time the caches were loaded, in {@link DnsTimer#now()} time.
+     */
+    private long startedAt;
+    /**
+     * The number of requests since the caches were loaded.
+     */
+    private int requestCount;
+    /**
+     * Whether the first answer since the caches were loaded is not written yet.
+     */
+    private volatile boolean firstAnswerPending;
+
+    /**
+     * Constructor.
+     */
+    DnsWarmCache() {
+        this.sketch = new DnsFrequencySketch(SKETCH_WIDTH);
+        this.names = new LinkedHashSet<>();
+        this.nextSaveAt = 0;
+        this.startedAt = 0;
+        this.requestCount = 0;
+        this.firstAnswerPending = false;
+    }
+
+    /**
+     * Load the saved answers and names.
+     *
+     * @param context     The application context.
+     * @param answerCache The answer cache to restore the saved answers in.
+     *
+     * @return The saved hot names, most requested first.
+     */
+    @NonNull
+    List<String> load(@NonNull final Context context, @NonNull final DnsAnswerCache answerCache) {
+        final long startTime = DnsTimer.now();
+        this.file = new File(context.getNoBackupFilesDir(), FILE_NAME);
+        this.nextSaveAt = startTime + SAVE_PERIOD_MS;
+        this.startedAt = startTime;
+        this.requestCount = 0;
+        this.firstAnswerPending = true;
+        final List<String> names = new ArrayList<>();
+        if (!this.file.isFile()) return names;
+        int answerCount = 0;
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) throw new IOException("Invalid warm cache file.");
+            final int nameCount = input.readInt();
+            for (int i = 0; i < nameCount; i++) {
+                names.add(input.readUTF());
+            }
+            answerCount = answerCache.readAnswers(input);
+        } catch (final IOException | RuntimeException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to load DNS warm cache.", e);
+        }
+        // Keep tracking the saved names so they stay saved until they get cold
+        for (final String name : names) {
+            this.sketch.increment(name.hashCode());
+            track(name);
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d("AWAISKING_APP", "Loaded DNS warm cache with " + names.size() + " names and " + answerCount
+                    + " answers in " + (DnsTimer.now() - startTime) + "ms");
+        }
+        return names;
+    }
+
+    /**
+     * Record a request, and save the caches if the save period elapsed.
+     *
+     * @param question    The parsed question of the request.
+     * @param answerCache The answer cache to save the answers of.
+     */
+    void recordRequest(@NonNull final DnsQuestion question, @NonNull final DnsAnswerCache answerCache) {
+        // Track names when they get hot, so names are only converted once
+        final int hash = question.getNameHash();
+        this.sketch.increment(hash);
+        if (this.sketch.frequency(hash) == HOT_FREQUENCY) track(question.toString());
+        // Report the early request hit rate
+        this.requestCount++;
+        if (BuildConfig.DEBUG && this.requestCount == EARLY_REQUEST_COUNT) {
+            final long lookupCount = answerCache.getHitCount() + answerCache.getMissCount();
+            Log.d("AWAISKING_APP", "DNS answer cache hit rate of the first " + EARLY_REQUEST_COUNT + " requests: "
+                    + (lookupCount == 0 ? 0 : 100D * answerCache.getHitCount() / lookupCount) + "%");
+        }
+        if (this.file != null && DnsTimer.now() >= this.nextSaveAt) save(answerCache);
+    }
+
+    /**
+     * Notify a response was written to the device.
+     */
+    void onAnswer() {
+        if (!this.firstAnswerPending) return;
+        this.firstAnswerPending = false;
+        if (BuildConfig.DEBUG)
+            Log.d("AWAISKING_APP", "First DNS answer " + (DnsTimer.now() - this.startedAt) + "ms after start");
+    }
+
+    /**
+     * Save the hot names and their answers.<br>
+     * They are collected on the calling thread and written to file from the disk executor.
+     *
+     * @param answerCache The answer cache to save the answers of.
+     */
+    void save(@NonNull final DnsAnswerCache answerCache) {
+        final File file = this.file;
+        if (file == null) return;
+        this.nextSaveAt = DnsTimer.now() + SAVE_PERIOD_MS;
+        final byte[] data;
+        try {
+            data = write(answerCache);
+        } catch (final IOException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to save DNS warm cache.", e);
+            return;
+        }
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            final File temporaryFile = new File(file.getPath() + ".tmp");
+            try (final OutputStream output = new FileOutputStream(temporaryFile)) {
+                output.write(data);
+            } catch (final IOException e) {
+                if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to write DNS warm cache.", e);
+                //noinspection ResultOfMethodCallIgnored
+                temporaryFile.delete();
+                return;
+            }
+            if (!temporaryFile.renameTo(file) && BuildConfig.DEBUG)
+                Log.w("AWAISKING_APP", "Failed to rename " + temporaryFile);
+        });
+    }
+
+    /**
+     * Write the hot names and their answers.
+     *
+     * @param answerCache The answer cache to write the answers of.
+     *
+     * @return The written data.
+     *
+     * @throws IOException If the data could not be written.
+     */
+    @NonNull
+    private byte[] write(@NonNull final DnsAnswerCache answerCache) throws IOException {
+        final List<String> names = new ArrayList<>(this.names);
+        Collections.sort(names, (name1, name2) ->
+                Integer.compare(this.sketch.frequency(name2.hashCode()), this.sketch.frequency(name1.hashCode())));
+        final int nameCount = Math.min(names.size(), MAX_SAVED_NAMES);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+        try (final DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(nameCount);
+            for (int i = 0; i < nameCount; i++) {
+                output.writeUTF(names.get(i));
+            }
+            answerCache.writeHotAnswers(output, MAX_SAVED_ANSWERS);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Track a hot name, forgetting the oldest tracked one if there are too many.
+     *
+     * @param name The name to track.
+     */
+    private void track(@NonNull final String name) {
+        if (!this.names.add(name) || this.names.size() <= MAX_TRACKED_NAMES) return;
+        final Iterator<String> iterator = this.names.iterator();
+        iterator.next();
+        iterator.remove();
+    }
+}
@@ -0,0 +1,247 @@
+package org.pro.adaway.vpn.dns;
+
+import android.net.VpnService;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.util.Consumer;
+
+import org.pro.adaway.BuildConfig;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * This class is a DNS-over-HTTPS upstream (RFC 8484).
+ * <p>
+ * Queries are posted as is in wire format with the {@code application/dns-message} media type, and the
+ * complete responses are returned to the tunnel asynchronously. All queries share a persistent HTTP/2
+ * connection, each one as a concurrent stream. The connection sockets are protected from the VPN, and the
+ * server name is resolved with the bootstrap addresses of the {@link DnsProvider} so resolving it does not loop
+ * through the VPN.
+ */
+public final class DohUpstream implements DnsUpstream {
+    /**
+     * The DNS message media type.
+     */
+    private static final MediaType DNS_MESSAGE = MediaType.get("application/dns-message");
+    /**
+     * The maximum number of concurrent queries.
+     */
+    private static final int MAX_CONCURRENT_QUERIES = 128;
+    /**
+     * The maximum time to wait for the response (in milliseconds).
+     */
+    private static final long DNS_TIMEOUT_MS = 10_000;
+    /**
+     * The HTTP client.
+     */
+    private final OkHttpClient client;
+    /**
+     * The DNS-over-HTTPS server provider.
+     */
+    private volatile DnsProvider provider;
+    /**
+     * The DNS-over-HTTPS server URL.
+     */
+    private volatile HttpUrl url;
+
+    /**
+     * Constructor.
+     *
+     * @param vpnService The VPN service to protect sockets with.
+     */
+    public DohUpstream(@NonNull final VpnService vpnService) {
+        this.provider = DnsProvider.CLOUDFLARE;
+        this.url = HttpUrl.get(this.provider.getDohUrl());
+        this.client = new OkHttpClient.Builder()
+                .socketFactory(new ProtectedSocketFactory(vpnService))
+                .dns(new BootstrapDns())
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectionPool(new ConnectionPool(1, 5, TimeUnit.MINUTES))
+                .callTimeout(DNS_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .build();
+        // Streams are multiplexed on a single connection so do not limit them to the default 5 per host
+        this.client.dispatcher().setMaxRequests(MAX_CONCURRENT_QUERIES);
+        this.client.dispatcher().setMaxRequestsPerHost(MAX_CONCURRENT_QUERIES);
+    }
+
+    /**
+     * Set the DNS-over-HTTPS server provider.
+     *
+     * @param provider The DNS-over-HTTPS server provider.
+     */
+    public void setProvider(@NonNull final DnsProvider provider) {
+        if (this.provider == provider) return;
+        this.provider = provider;
+        this.url = HttpUrl.get(provider.getDohUrl());
+        // Drop the connection to the previous server
+        clear();
+    }
+
+    /**
+     * Send a DNS query to the DNS-over-HTTPS server. The address of the query packet is ignored.
+     *
+     * @param outPacket    The query packet.
+     * @param callback     The callback to call with the query response data.
+     * @param slowCallback The callback to run if the query failed, {@code null} if none.
+     *
+     * @throws IOException If the query is not a valid DNS query.
+     */
+    @Override
+    public void forwardQuery(@NonNull final DatagramPacket outPacket, @NonNull final Consumer<byte[]> callback,
+                             @Nullable final Runnable slowCallback) throws IOException {
+        final int length = outPacket.getLength();
+        if (length < DnsQueryQueue.DNS_HEADER_LENGTH)
+            throw new IOException("Invalid DNS query of " + length + " bytes.");
+        final byte[] query = Arrays.copyOfRange(outPacket.getData(), outPacket.getOffset(), outPacket.getOffset() + length);
+        // Use identifier 0 to make responses cacheable by HTTP caches (RFC 8484)
+        final byte idHigh = query[0];
+        final byte idLow = query[1];
+        query[0] = 0;
+        query[1] = 0;
+        final Request request = new Request.Builder()
+                .url(this.url)
+                .header("Accept", DNS_MESSAGE.toString())
+                .post(RequestBody.create(query, DNS_MESSAGE))
+                .build();
+        this.client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onResponse(@NonNull final Call call, @NonNull final Response response) {
+                final byte[] data;
+                try (final ResponseBody body = response.body()) {
+                    if (!response.isSuccessful() || body == null)
+                        throw new IOException("Unexpected HTTP response " + response.code() + ".");
+                    data = body.bytes();
+                    if (data.length < DnsQueryQueue.DNS_HEADER_LENGTH)
+                        throw new IOException("Invalid DNS response of " + data.length + " bytes.");
+                } catch (final IOException e) {
+                    onFailure(call, e);
+                    return;
+                }
+                data[0] = idHigh;
+                data[1] = idLow;
+                try {
+                    callback.accept(data);
+                } catch (final RuntimeException e) {
+                    if (BuildConfig.DEBUG) Log.e("AWAISKING_APP", "Could not handle DNS response.", e);
+                }
+            }
+
+            @Override
+            public void onFailure(@NonNull final Call call, @NonNull final IOException e) {
+                if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to query DNS-over-HTTPS server.", e);
+                if (slowCallback != null) slowCallback.run();
+            }
+        });
+    }
+
+    @Override
+    public void clear() {
+        // Drop pending queries and connections as they may be related to the previous network
+        this.client.dispatcher().cancelAll();
+        this.client.connectionPool().evictAll();
+    }
+
+    /**
+     * This class resolves the DNS-over-HTTPS server name with its bootstrap addresses.
+     */
+    private final class BootstrapDns implements Dns {
+        @NonNull
+        @Override
+        public List<InetAddress> lookup(@NonNull final String hostname) throws UnknownHostException {
+            final DnsProvider provider = DohUpstream.this.provider;
+            if (!provider.getServerName().equals(hostname)) return Dns.SYSTEM.lookup(hostname);
+            final String[] bootstrapAddresses = provider.getAddresses();
+            final InetAddress[] addresses = new InetAddress[bootstrapAddresses.length];
+            for (int i = 0; i < addresses.length; i++) {
+                addresses[i] = InetAddress.getByName(bootstrapAddresses[i]);
+            }
+            return Arrays.asList(addresses);
+        }
+    }
+
+    /**
+     * This class creates sockets protected from the VPN.
+     */
+    private static final class ProtectedSocketFactory extends SocketFactory {
+        /**
+         * The VPN service to protect sockets with.
+         */
+        private final VpnService vpnService;
+
+        /**
+         * Constructor.
+         *
+         * @param vpnService The VPN service to protect sockets with.
+         */
+        ProtectedSocketFactory(@NonNull final VpnService vpnService) {
+            this.vpnService = vpnService;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            final Socket socket = new Socket();
+            if (!this.vpnService.protect(socket)) {
+                socket.close();
+                throw new IOException("Failed to protect DNS-over-HTTPS socket.");
+            }
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port) throws IOException {
+            final Socket socket = createSocket();
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port, final InetAddress localHost,
+                                   final int localPort) throws IOException {
+            final Socket socket = createSocket();
+            socket.bind(new InetSocketAddress(localHost, localPort));
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress host, final int port) throws IOException {
+            final Socket socket = createSocket();
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress,
+                                   final int localPort) throws IOException {
+            final Socket socket = createSocket();
+            socket.bind(new InetSocketAddress(localAddress, localPort));
+            socket.connect(new InetSocketAddress(address, port));
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package org.pro.adaway.vpn.dns;
+
+import android.net.VpnService;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.util.Consumer;
+
+import org.pro.adaway.BuildConfig;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * This class is a persistent TLS connection to a DNS-over-TLS server (RFC 7858).
+ * <p>
+ * Queries are pipelined on the connection as length-prefixed messages (RFC 7766) and the responses are matched
+ * by their identifier, in any order. The connection is opened and read by its own thread so the VPN worker
+ * never waits for the TLS handshake: queries sent while connecting are written as soon as it is done.
+ */
+final class DotConnection implements Runnable {
+    /**
+     * The maximum time to wait for the connection (in milliseconds).
+     */
+    private static final int CONNECT_TIMEOUT_MS = 5_000;
+    /**
+     * The interval between two checks of the pending queries (in milliseconds).
+     */
+    private static final int CHECK_INTERVAL_MS = 1_000;
+    /**
+     * The maximum time to wait for a response (in milliseconds).
+     */
+    private static final long QUERY_TIMEOUT_MS = 10_000;
+    /**
+     * The idle time after which the connection is closed (in milliseconds).
+     */
+    private static final long IDLE_TIMEOUT_MS = 60_000;
+    /**
+     * The maximum length of a DNS message.
+     */
+    private static final int MAX_MESSAGE_LENGTH = 0xFFFF;
+    /**
+     * The number of upstream identifiers.
+     */
+    private static final int UPSTREAM_ID_COUNT = 0x10000;
+    /**
+     * The DNS-over-TLS upstream owning this connection.
+     */
+    private final DotUpstream upstream;
+    /**
+     * The VPN service to protect the socket with.
+     */
+    private final VpnService vpnService;
+    /**
+     * The server address.
+     */
+    private final InetSocketAddress server;
+    /**
+     * The server name, to check the server certificate.
+     */
+    private final String serverName;
+    /**
+     * The pending queries, by upstream identifier.
+     */
+    private final Map<Integer, Query> pendingQueries;
+    /**
+     * The queries to write once connected.
+     */
+    private final List<Query> unsentQueries;
+    /**
+     * The TLS socket, {@code null} if not connected.
+     */
+    private SSLSocket socket;
+    /**
+     * The socket output stream, {@code null} if not connected.
+     */
+    private OutputStream outputStream;
+    /**
+     * The next upstream identifier to try.
+     */
+    private int nextUpstreamId;
+    /**
+     * The time of the last query or response, in {@link DnsTimer#now()} time.
+     */
+    private long lastActivity;
+    /**
+     * Whether the connection is closed.
+     */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param upstream   The DNS-over-TLS upstream owning this connection.
+     * @param vpnService The VPN service to protect the socket with.
+     * @param server     The server address.
+     * @param serverName The server name, to check the server certificate.
+     */
+    DotConnection(@NonNull final DotUpstream upstream, @NonNull final VpnService vpnService,
+                  @NonNull final InetSocketAddress server, @NonNull final String serverName) {
+        this.upstream = upstream;
+        this.vpnService = vpnService;
+        this.server = server;
+        this.serverName = serverName;
+        this.pendingQueries = new HashMap<>();
+        this.unsentQueries = new ArrayList<>();
+        this.nextUpstreamId = (int) (Math.random() * UPSTREAM_ID_COUNT);
+        this.lastActivity = DnsTimer.now();
+        this.closed = false;
+    }
+
+    /**
+     * Check whether the connection is closed.
+     *
+     * @return {@code true} if the connection is closed and can no longer send queries, {@code false} otherwise.
+     */
+    synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Get the number of queries waiting for response.
+     *
+     * @return The number of queries waiting for response.
+     */
+    synchronized int getPendingQueryCount() {
+        return this.pendingQueries.size();
+    }
+
+    /**
+     * Send a query.
+     *
+     * @param query The query to send.
+     *
+     * @return {@code true} if the query was sent or will be sent once connected, {@code false} if the connection is closed.
+     */
+    synchronized boolean send(@NonNull final Query query) {
+        if (this.closed || this.pendingQueries.size() >= UPSTREAM_ID_COUNT) return false;
+        // Pick an upstream identifier not used by a pending query
+        while (this.pendingQueries.containsKey(this.nextUpstreamId)) {
+            this.nextUpstreamId = (this.nextUpstreamId + 1) % UPSTREAM_ID_COUNT;
+        }
+        query.upstreamId = this.nextUpstreamId;
+        this.nextUpstreamId = (this.nextUpstreamId + 1) % UPSTREAM_ID_COUNT;
+        query.sentAt = DnsTimer.now();
+        this.pendingQueries.put(query.upstreamId, query);
+        this.lastActivity = query.sentAt;
+        if (this.outputStream == null) {
+            this.unsentQueries.add(query);
+            return true;
+        }
+        try {
+            write(query);
+            this.outputStream.flush();
+        } catch (final IOException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to write DNS-over-TLS query.", e);
+            closeSocket();
+        }
+        return true;
+    }
+
+    /**
+     * Close the connection. Its pending queries are dropped.
+     */
+    synchronized void close() {
+        this.pendingQueries.clear();
+        this.unsentQueries.clear();
+        closeSocket();
+    }
+
+    @Override
+    public void run() {
+        boolean connected = false;
+        try {
+            final DataInputStream inputStream = connect();
+            connected = true;
+            this.upstream.onConnected();
+            final byte[] buffer = new byte[MAX_MESSAGE_LENGTH];
+            while (!isClosed()) {
+                // Read the response length, the only place where waiting is expected
+                final int high;
+                try {
+                    high = inputStream.read();
+                } catch (final SocketTimeoutException e) {
+                    if (checkQueries()) continue;
+                    break;
+                }
+                if (high < 0) break;
+                final int length = high << 8 | inputStream.readUnsignedByte();
+                inputStream.readFully(buffer, 0, length);
+                handleResponse(buffer, length);
+            }
+        } catch (final IOException e) {
+            if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "DNS-over-TLS connection to " + this.server + " closed.", e);
+        }
+        // Collect the queries left without response
+        final List<Query> remainingQueries;
+        synchronized (this) {
+            remainingQueries = new ArrayList<>(this.pendingQueries.values());
+            this.pendingQueries.clear();
+            this.unsentQueries.clear();
+            closeSocket();
+        }
+        this.upstream.onClosed(this, connected, remainingQueries);
+    }
+
+    /**
+     * Open the TLS connection and write the queries sent while connecting.
+     *
+     * @return The connection input stream.
+     *
+     * @throws IOException If the connection could not be opened.
+     */
+    @NonNull
+    private DataInputStream connect() throws IOException {
+        final Socket plainSocket = new Socket();
+        SSLSocket sslSocket = null;
+        try {
+            if (!this.vpnService.protect(plainSocket)) throw new IOException("Failed to protect DNS-over-TLS socket.");
+            plainSocket.connect(this.server, CONNECT_TIMEOUT_MS);
+            plainSocket.setTcpNoDelay(true);
+            final SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+            sslSocket = (SSLSocket) factory.createSocket(plainSocket, this.serverName, this.server.getPort(), true);
+            sslSocket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            sslSocket.startHandshake();
+            if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(this.serverName, sslSocket.getSession()))
+                throw new IOException("Invalid DNS-over-TLS server certificate for " + this.serverName + ".");
+            sslSocket.setSoTimeout(CHECK_INTERVAL_MS);
+            final DataInputStream inputStream = new DataInputStream(sslSocket.getInputStream());
+            synchronized (this) {
+                if (this.closed) throw new IOException("DNS-over-TLS connection closed while connecting.");
+                this.socket = sslSocket;
+                this.outputStream = new BufferedOutputStream(sslSocket.getOutputStream());
+                // Pipeline the queries sent while connecting in a single write
+                for (final Query query : this.unsentQueries) {
+                    write(query);
+                }
+                this.unsentQueries.clear();
+                this.outputStream.flush();
+            }
+            return inputStream;
+        } catch (final IOException | RuntimeException e) {
+            try {
+                if (sslSocket != null) sslSocket.close();
+                plainSocket.close();
+            } catch (final IOException ignored) {
+                // Nothing to do
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Write a query as a length-prefixed message.
+     *
+     * @param query The query to write.
+     *
+     * @throws IOException If the query could not be written.
+     */
+    private void write(@NonNull final Query query) throws IOException {
+        final byte[] data = query.data;
+        this.outputStream.write(data.length >> 8);
+        this.outputStream.write(data.length);
+        this.outputStream.write(query.upstreamId >> 8);
+        this.outputStream.write(query.upstreamId);
+        this.outputStream.write(data, 2, data.length - 2);
+    }
+
+    /**
+     * Handle a response.
+     *
+     * @param buffer The buffer holding the response.
+     * @param length The response length.
+     */
+    private void handleResponse(@NonNull final byte[] buffer, final int length) {
+        if (length < DnsQueryQueue.DNS_HEADER_LENGTH) return;
+        final int upstreamId = (buffer[0] & 0xFF) << 8 | buffer[1] & 0xFF;
+        final Query query;
+        synchronized (this) {
+            query = this.pendingQueries.remove(upstreamId);
+            this.lastActivity = DnsTimer.now();
+        }
+        if (query == null) return;
+        final byte[] response = new byte[length];
+        System.arraycopy(buffer, 0, response, 0, length);
+        // Restore the original identifier
+        response[0] = query.data[0];
+        response[1] = query.data[1];
+        try {
+            query.callback.accept(response);
+        } catch (final RuntimeException e) {
+            if (BuildConfig.DEBUG) Log.e("AWAISKING_APP", "Could not handle DNS response.", e);
+        }
+    }
+
+    /**
+     * Drop the queries waiting for too long and check whether the connection is still worth keeping.
+     *
+     * @return {@code true} if the connection is still in use, {@code false} if it is idle and should be closed.
+     */
+    private boolean checkQueries() {
+        final long now = DnsTimer.now();
+        final List<Query> timedOutQueries = new ArrayList<>();
+        final boolean inUse;
+        synchronized (this) {
+            final Iterator<Query> iterator = this.pendingQueries.values().iterator();
+            while (iterator.hasNext()) {
+                final Query query = iterator.next();
+                if (now - query.sentAt >= QUERY_TIMEOUT_MS) {
+                    iterator.remove();
+                    timedOutQueries.add(query);
+                }
+            }
+            inUse = !this.pendingQueries.isEmpty() || now - this.lastActivity < IDLE_TIMEOUT_MS;
+        }
+        for (final Query query : timedOutQueries) {
+            query.fail();
+        }
+        return inUse;
+    }
+
+    /**
+     * Close the socket and mark the connection as closed.
+     */
+    private void closeSocket() {
+        this.closed = true;
+        this.outputStream = null;
+        if (this.socket != null) {
+            try {
+                this.socket.close();
+            } catch (final IOException e) {
+                if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "Failed to close DNS-over-TLS socket.", e);
+            }
+            this.socket = null;
+        }
+    }
+
+    /**
+     * This class is a DNS-over-TLS query.
+     */
+    static final class Query {
+        /**
+         * The query data, with its original identifier.
+         */
+        final byte[] data;
+        /**
+         * The callback to call with the response data.
+         */
+        final Consumer<byte[]> callback;
+        /**
+         * The callback to run if the query failed, {@code null} if none.
+         */
+        @Nullable
+        final Runnable failureCallback;
+        /**
+         * Whether the query was already sent again after its connection was closed.
+         */
+        boolean retried;
+        /**
+         * The upstream identifier of the query on its connection.
+         */
+        int upstreamId;
+        /**
+         * The time the query was sent, in {@link DnsTimer#now()} time.
+         */
+        long sentAt;
+
+        /**
+         * Constructor.
+         *
+         * @param data            The query data, with its original identifier.
+         * @param callback        The callback to call with the response data.
+         * @param failureCallback The callback to run if the query failed, {@code null} if none.
+         */
+        Query(@NonNull final byte[] data, @NonNull final Consumer<byte[]> callback, @Nullable final Runnable failureCallback) {
+            this.data = data;
+            this.callback = callback;
+            this.failureCallback = failureCallback;
+            this.retried = false;
+        }
+
+        /**
+         * Notify the query failure.
+         */
+        void fail() {
+            if (this.failureCallback != null) this.failureCallback.run();
+        }
+    }
+}
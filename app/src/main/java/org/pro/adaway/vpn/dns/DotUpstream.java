@@ -0,0 +1,250 @@
+package org.pro.adaway.vpn.dns;
+
+import android.net.VpnService;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.util.Consumer;
+
+import org.pro.adaway.BuildConfig;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is a DNS-over-TLS upstream (RFC 7858).
+ * <p>
+ * It keeps a few long-lived TLS connections to the servers of the {@link DnsProvider} and pipelines many queries
+ * on each, so there is no TLS handshake per query. A second connection is only opened when the first one has many
+ * queries waiting.
+ * Connections close by themselves when idle, unless kept alive by {@link #keepAlive()}, and failed connections
+ * are retried with an exponential back off.
+ */
+public final class DotUpstream implements DnsUpstream {
+    /**
+     * The DNS-over-TLS port.
+     */
+    private static final int DOT_PORT = 853;
+    /**
+     * The number of queries waiting for response above which another connection is opened.
+     */
+    private static final int PIPELINE_DEPTH = 32;
+    /**
+     * The initial reconnection delay (in milliseconds).
+     */
+    private static final long MIN_RECONNECT_DELAY_MS = 500;
+    /**
+     * The maximum reconnection delay (in milliseconds).
+     */
+    private static final long MAX_RECONNECT_DELAY_MS = 30_000;
+    /**
+     * The keep-alive query, for the root name servers.
+     */
+    private static final byte[] KEEP_ALIVE_QUERY = {
+            0, 0, 1, 0, 0, 1, 0, 0, 0, 0, 0, 0, // Header with recursion desired and one question
+            0, 0, 2, 0, 1 // Root name, NS type, IN class
+    };
+    /**
+     * The VPN service to protect sockets with.
+     */
+    private final VpnService vpnService;
+    /**
+     * The server provider.
+     */
+    private DnsProvider provider;
+    /**
+     * The server addresses, one per connection.
+     */
+    private InetSocketAddress[] servers;
+    /**
+     * The connections to the servers, {@code null} if never opened.
+     */
+    private DotConnection[] connections;
+    /**
+     * The delay before the next reconnection attempt (in milliseconds).
+     */
+    private long reconnectDelay;
+    /**
+     * The time before which no connection is opened, in {@link DnsTimer#now()} time.
+     */
+    private long reconnectAt;
+
+    /**
+     * Constructor.
+     *
+     * @param vpnService The VPN service to protect sockets with.
+     */
+    public DotUpstream(@NonNull final VpnService vpnService) {
+        this.vpnService = vpnService;
+        this.provider = DnsProvider.CLOUDFLARE;
+        this.servers = getServers(this.provider);
+        this.connections = new DotConnection[this.servers.length];
+        this.reconnectDelay = MIN_RECONNECT_DELAY_MS;
+        this.reconnectAt = 0;
+    }
+
+    /**
+     * Set the server provider.
+     *
+     * @param provider The server provider.
+     */
+    public void setProvider(@NonNull final DnsProvider provider) {
+        synchronized (this) {
+            if (this.provider == provider) return;
+            this.provider = provider;
+            this.servers = getServers(provider);
+        }
+        // Close the connections to the previous servers
+        clear();
+    }
+
+    /**
+     * Send a DNS query to the DNS-over-TLS server. The address of the query packet is ignored.
+     *
+     * @param outPacket    The query packet.
+     * @param callback     The callback to call with the query response data.
+     * @param slowCallback The callback to run if the query failed, {@code null} if none.
+     *
+     * @throws IOException If the query is not a valid DNS query.
+     */
+    @Override
+    public void forwardQuery(@NonNull final DatagramPacket outPacket, @NonNull final Consumer<byte[]> callback,
+                             @Nullable final Runnable slowCallback) throws IOException {
+        final int length = outPacket.getLength();
+        if (length < DnsQueryQueue.DNS_HEADER_LENGTH)
+            throw new IOException("Invalid DNS query of " + length + " bytes.");
+        final byte[] data = Arrays.copyOfRange(outPacket.getData(), outPacket.getOffset(), outPacket.getOffset() + length);
+        send(new DotConnection.Query(data, callback, slowCallback));
+    }
+
+    /**
+     * Keep the open connections alive by sending them a query.
+     * Connections are not opened for this, so an unused upstream stays closed.
+     */
+    public void keepAlive() {
+        final DotConnection[] openConnections;
+        synchronized (this) {
+            openConnections = this.connections.clone();
+        }
+        for (final DotConnection connection : openConnections) {
+            if (connection == null || connection.isClosed() || connection.getPendingQueryCount() > 0) continue;
+            connection.send(new DotConnection.Query(KEEP_ALIVE_QUERY.clone(), response -> {
+                // Only the connection activity matters
+            }, null));
+        }
+    }
+
+    @Override
+    public void clear() {
+        final DotConnection[] openConnections;
+        synchronized (this) {
+            openConnections = this.connections;
+            this.connections = new DotConnection[this.servers.length];
+            // The network may have changed, so connect again without waiting
+            this.reconnectDelay = MIN_RECONNECT_DELAY_MS;
+            this.reconnectAt = 0;
+        }
+        for (final DotConnection connection : openConnections) {
+            if (connection != null) connection.close();
+        }
+    }
+
+    /**
+     * Send a query using the least loaded connection.
+     *
+     * @param query The query to send.
+     */
+    private void send(@NonNull final DotConnection.Query query) {
+        final DotConnection connection = getConnection();
+        if (connection == null || !connection.send(query)) {
+            if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "No DNS-over-TLS connection available, dropping query.");
+            query.fail();
+        }
+    }
+
+    /**
+     * Get the connection to send a query with, opening one if needed.
+     *
+     * @return The connection to send a query with, {@code null} if no connection can be opened yet.
+     */
+    @Nullable
+    private synchronized DotConnection getConnection() {
+        DotConnection bestConnection = null;
+        int bestPendingCount = Integer.MAX_VALUE;
+        int closedIndex = -1;
+        for (int i = 0; i < this.connections.length; i++) {
+            final DotConnection connection = this.connections[i];
+            if (connection == null || connection.isClosed()) {
+                if (closedIndex < 0) closedIndex = i;
+                continue;
+            }
+            final int pendingCount = connection.getPendingQueryCount();
+            if (pendingCount < bestPendingCount) {
+                bestConnection = connection;
+                bestPendingCount = pendingCount;
+            }
+        }
+        // Open another connection only if none is open or the open ones are loaded
+        if (closedIndex >= 0 && (bestConnection == null || bestPendingCount >= PIPELINE_DEPTH)
+                && DnsTimer.now() >= this.reconnectAt) {
+            final DotConnection connection = new DotConnection(this, this.vpnService, this.servers[closedIndex],
+                    this.provider.getServerName());
+            this.connections[closedIndex] = connection;
+            final Thread thread = new Thread(connection, "DnsOverTls-" + closedIndex);
+            thread.setDaemon(true);
+            thread.start();
+            bestConnection = connection;
+        }
+        return bestConnection;
+    }
+
+    /**
+     * Notify a connection was opened.
+     */
+    synchronized void onConnected() {
+        this.reconnectDelay = MIN_RECONNECT_DELAY_MS;
+        this.reconnectAt = 0;
+    }
+
+    /**
+     * Notify a connection was closed.
+     *
+     * @param connection       The closed connection.
+     * @param connected        Whether the connection was opened before being closed.
+     * @param remainingQueries The queries left without response.
+     */
+    void onClosed(@NonNull final DotConnection connection, final boolean connected,
+                  @NonNull final List<DotConnection.Query> remainingQueries) {
+        synchronized (this) {
+            final int index = Arrays.asList(this.connections).indexOf(connection);
+            // Connections closed by clear() or already replaced do not count as connection failures
+            if (index >= 0) this.connections[index] = null;
+            if (index >= 0 && !connected) {
+                if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to connect to DNS-over-TLS server, retrying in " + this.reconnectDelay + "ms.");
+                this.reconnectAt = DnsTimer.now() + this.reconnectDelay;
+                this.reconnectDelay = Math.min(2 * this.reconnectDelay, MAX_RECONNECT_DELAY_MS);
+            }
+        }
+        // Servers may close idle connections while queries are in flight, so send them again once
+        for (final DotConnection.Query query : remainingQueries) {
+            if (query.retried) {
+                query.fail();
+            } else {
+                query.retried = true;
+                send(query);
+            }
+        }
+    }
+
+    @NonNull
+    private static InetSocketAddress[] getServers(@NonNull final DnsProvider provider) {
+        final String[] addresses = provider.getAddresses();
+        final InetSocketAddress[] servers = new InetSocketAddress[addresses.length];
+        for (int i = 0; i < servers.length; i++) servers[i] = new InetSocketAddress(addresses[i], DOT_PORT);
+        return servers;
+    }
+}
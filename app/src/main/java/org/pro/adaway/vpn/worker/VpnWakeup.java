@@ -0,0 +1,116 @@
+package org.pro.adaway.vpn.worker;
+
+import static android.system.OsConstants.POLLIN;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.pro.adaway.BuildConfig;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class wakes the VPN worker thread up from its poll when another thread has work for it.
+ * <p>
+ * It relies on a pipe whose read end is part of the poll set. Wake-up signals are coalesced, so at most
+ * one byte is pending in the pipe whatever the number of signalling threads.
+ */
+class VpnWakeup implements AutoCloseable {
+    /**
+     * The byte written to the pipe to signal a wake-up.
+     */
+    private static final byte[] SIGNAL = {1};
+    /**
+     * The pollfd of the pipe read end.
+     */
+    private final StructPollfd pollfd;
+    /**
+     * The pipe write end, {@code null} if closed.
+     */
+    private volatile FileDescriptor writeFd;
+    /**
+     * Whether a wake-up signal is pending.
+     */
+    private final AtomicBoolean pending;
+    /**
+     * The buffer to drain the pipe into.
+     */
+    private final byte[] buffer;
+
+    /**
+     * Constructor.
+     *
+     * @throws IOException If the pipe could not be created.
+     */
+    VpnWakeup() throws IOException {
+        final FileDescriptor[] pipe;
+        try {
+            pipe = Os.pipe();
+        } catch (final ErrnoException e) {
+            throw new IOException("Failed to create wake-up pipe. Error number: " + e.errno, e);
+        }
+        this.pollfd = new StructPollfd();
+        this.pollfd.fd = pipe[0];
+        this.pollfd.events = (short) POLLIN;
+        this.writeFd = pipe[1];
+        this.pending = new AtomicBoolean(false);
+        this.buffer = new byte[16];
+    }
+
+    /**
+     * Get the pollfd to poll wake-up signals with.
+     *
+     * @return The pollfd of the pipe read end.
+     */
+    @NonNull
+    StructPollfd getPollfd() {
+        return this.pollfd;
+    }
+
+    /**
+     * Wake the worker thread up. This method is thread safe.
+     */
+    void signal() {
+        if (!this.pending.compareAndSet(false, true)) return;
+        final FileDescriptor fd = this.writeFd;
+        if (fd == null) return;
+        try {
+            Os.write(fd, SIGNAL, 0, SIGNAL.length);
+        } catch (final ErrnoException | InterruptedIOException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to wake VPN worker up.", e);
+        }
+    }
+
+    /**
+     * Consume the pending wake-up signals, if the poll reported any.
+     */
+    void handle() {
+        if ((this.pollfd.revents & POLLIN) == 0) return;
+        // Clear the flag first so a new signal always writes to the pipe
+        this.pending.set(false);
+        try {
+            Os.read(this.pollfd.fd, this.buffer, 0, this.buffer.length);
+        } catch (final ErrnoException | InterruptedIOException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to read VPN worker wake-up.", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        final FileDescriptor fd = this.writeFd;
+        this.writeFd = null;
+        try {
+            if (fd != null) Os.close(fd);
+            Os.close(this.pollfd.fd);
+        } catch (final ErrnoException e) {
+            if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to close wake-up pipe.", e);
+        }
+    }
+}
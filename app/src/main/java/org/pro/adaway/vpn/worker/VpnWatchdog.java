@@ -17,6 +17,7 @@ package org.pro.adaway.vpn.worker;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.pro.adaway.BuildConfig;
 
@@ -60,6 +61,8 @@ class VpnWatchdog {
 
     private boolean enabled;
     private DatagramPacket checkAlivePacket;
+    // Keep-alive of the upstream connections, run with each check (null if none).
+    private Runnable keepAlive;
 
     VpnWatchdog() {
         // Set default timestamps
@@ -85,6 +88,15 @@ class VpnWatchdog {
         this.checkAlivePacket = new DatagramPacket(new byte[0], 0, 0, target, 53);
     }
 
+    /**
+     * Sets the keep-alive of the upstream connections, run each time the connection is checked.
+     *
+     * @param keepAlive The keep-alive to run, <code>null</code> if none.
+     */
+    void setKeepAlive(@Nullable final Runnable keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
     /**
      * An initialization method. Sleeps the penalty and sends initial packet.
      *
@@ -136,6 +148,7 @@ class VpnWatchdog {
         this.pollTimeout *= POLL_TIMEOUT_GROW;
         if (this.pollTimeout > POLL_TIMEOUT_END) this.pollTimeout = POLL_TIMEOUT_END;
 
+        if (this.keepAlive != null) this.keepAlive.run();
         sendPacket();
     }
 
@@ -143,11 +156,12 @@ class VpnWatchdog {
      * Handles an incoming packet on a device.
      *
      * @param packetData The data of the packet
+     * @param length     The length of the packet data
      */
-    void handlePacket(final byte[] packetData) {
+    void handlePacket(final byte[] packetData, final int length) {
         if (!this.enabled) return;
         if (BuildConfig.DEBUG)
-            Log.d("AWAISKING_APP", "handlePacket: Received packet of length " + packetData.length);
+            Log.d("AWAISKING_APP", "handlePacket: Received packet of length " + length);
         this.lastPacketReceived = System.currentTimeMillis();
     }
 
@@ -32,6 +32,7 @@ import android.system.StructPollfd;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.arch.core.util.Function;
 import androidx.core.util.Consumer;
 
@@ -39,8 +40,12 @@ import org.pro.adaway.BuildConfig;
 import org.pro.adaway.helper.PreferenceHelper;
 import org.pro.adaway.vpn.VpnService;
 import org.pro.adaway.vpn.dns.DnsPacketProxy;
+import org.pro.adaway.vpn.dns.DnsProvider;
 import org.pro.adaway.vpn.dns.DnsQueryQueue;
 import org.pro.adaway.vpn.dns.DnsServerMapper;
+import org.pro.adaway.vpn.dns.DnsUpstream;
+import org.pro.adaway.vpn.dns.DohUpstream;
+import org.pro.adaway.vpn.dns.DotUpstream;
 import org.pcap4j.packet.IpPacket;
 
 import java.io.FileInputStream;
@@ -48,9 +53,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
@@ -65,19 +69,39 @@ public class VpnWorker {
      * Maximum packet size is constrained by the MTU, which is given as a signed short.
      */
     private static final int MAX_PACKET_SIZE = Short.MAX_VALUE;
+    /**
+     * The maximum number of packets read from the device per poll wake-up.
+     */
+    private static final int DEVICE_READ_BATCH = 64;
+    /**
+     * The DNS upstream preference value of the DNS-over-HTTPS upstream.
+     */
+    private static final String DNS_UPSTREAM_DOH = "doh";
+    /**
+     * The DNS upstream preference value of the DNS-over-TLS upstream.
+     */
+    private static final String DNS_UPSTREAM_DOT = "dot";
 
     /**
      * The VPN service, also used as {@link android.content.Context}.
      */
     private final VpnService vpnService;
     /**
-     * The queue of packets to send to the device.
+     * The queue of packets to send to the device, filled from any thread.
      */
     private final Queue<byte[]> deviceWrites;
     /**
      * The queue of DNS queries.
      */
     private final DnsQueryQueue dnsQueryQueue;
+    /**
+     * The DNS-over-HTTPS upstream.
+     */
+    private final DohUpstream dohUpstream;
+    /**
+     * The DNS-over-TLS upstream.
+     */
+    private final DotUpstream dotUpstream;
     // The mapping between fake and real dns addresses
     private final DnsServerMapper dnsServerMapper;
     // The object where we actually handle packets.
@@ -98,6 +122,30 @@ public class VpnWorker {
      * The VPN network interface, (<code>null</code> if not established).
      */
     private final AtomicReference<ParcelFileDescriptor> vpnNetworkInterface;
+    /**
+     * The DNS query socket poll FDs included in {@link #polls}.
+     */
+    private StructPollfd[] queryFds;
+    /**
+     * The poll FDs of the worker thread: tunnel first, then DNS query sockets.
+     */
+    private StructPollfd[] polls;
+    /**
+     * The wake-up of the worker thread for device writes from other threads, {@code null} if not running.
+     */
+    private volatile VpnWakeup wakeup;
+    /**
+     * The worker thread, {@code null} if not running.
+     */
+    private volatile Thread workerThread;
+    /**
+     * The poll FD of the tunnel alone, to check for more packets to read without waiting.
+     */
+    private StructPollfd[] devicePolls;
+    /**
+     * The upstream to forward DNS queries to, selected from the user preferences.
+     */
+    private volatile DnsUpstream dnsUpstream;
 
     /**
      * Constructor.
@@ -106,9 +154,12 @@ public class VpnWorker {
      */
     public VpnWorker(final VpnService vpnService) {
         this.vpnService = vpnService;
-        this.deviceWrites = new LinkedList<>();
-        this.dnsQueryQueue = new DnsQueryQueue();
+        this.deviceWrites = new ConcurrentLinkedQueue<>();
         this.dnsServerMapper = new DnsServerMapper();
+        this.dnsQueryQueue = new DnsQueryQueue(vpnService, this.dnsServerMapper);
+        this.dohUpstream = new DohUpstream(vpnService);
+        this.dotUpstream = new DotUpstream(vpnService);
+        this.dnsUpstream = this.dnsQueryQueue;
         this.dnsPacketProxy = new DnsPacketProxy(this, this.dnsServerMapper);
         this.connectionThrottler = new VpnConnectionThrottler();
         this.connectionMonitor = new VpnConnectionMonitor(this.vpnService);
@@ -176,6 +227,20 @@ public class VpnWorker {
         this.dnsPacketProxy.initialize(this.vpnService);
         // Initialize the watchdog
         this.vpnWatchDog.initialize(PreferenceHelper.getVpnWatchdogEnabled(this.vpnService));
+        // Select the DNS upstream and its provider
+        final DnsProvider dnsProvider = DnsProvider.fromValue(PreferenceHelper.getVpnDnsProvider(this.vpnService));
+        this.dohUpstream.setProvider(dnsProvider);
+        this.dotUpstream.setProvider(dnsProvider);
+        final String dnsUpstream = PreferenceHelper.getVpnDnsUpstream(this.vpnService);
+        if (DNS_UPSTREAM_DOH.equals(dnsUpstream)) {
+            this.dnsUpstream = this.dohUpstream;
+        } else if (DNS_UPSTREAM_DOT.equals(dnsUpstream)) {
+            this.dnsUpstream = this.dotUpstream;
+        } else {
+            this.dnsUpstream = this.dnsQueryQueue;
+        }
+        // Keep DNS-over-TLS connections alive with the watchdog checks
+        this.vpnWatchDog.setKeepAlive(this.dnsUpstream == this.dotUpstream ? this.dotUpstream::keepAlive : null);
         // Try connecting the vpn continuously
         while (true) {
             try {
@@ -184,6 +249,7 @@ public class VpnWorker {
                 runVpn();
                 if (BuildConfig.DEBUG) Log.i("AWAISKING_APP", "Told to stop");
                 this.vpnService.notifyVpnStatus(STOPPING);
+                this.dnsPacketProxy.saveWarmCache();
                 break;
             } catch (final InterruptedException e) {
                 if (BuildConfig.DEBUG) Log.w("AWAISKING_APP", "Failed to wait for connexion throttling.", e);
@@ -200,9 +266,12 @@ public class VpnWorker {
     }
 
     private void runVpn() throws IOException, VpnNetworkException {
-        // Allocate the buffer for a single packet.
+        // Allocate the buffer for a single packet, reused for every packet read from the device.
         final byte[] packet = new byte[MAX_PACKET_SIZE];
 
+        // Create the wake-up of the worker thread, polled with the tunnel
+        final VpnWakeup wakeup = new VpnWakeup();
+
         // Authenticate and configure the virtual network interface.
         try (final ParcelFileDescriptor pfd = establish(this.vpnService, this.dnsServerMapper);
              // Read and write views of the tunnel device
@@ -212,6 +281,14 @@ public class VpnWorker {
             this.vpnNetworkInterface.set(pfd);
             // Initialize connection monitor
             this.connectionMonitor.initialize();
+            // Create poll FD on tunnel
+            final StructPollfd deviceFd = new StructPollfd();
+            deviceFd.fd = inputStream.getFD();
+            this.queryFds = null;
+            this.polls = new StructPollfd[]{deviceFd, wakeup.getPollfd()};
+            this.devicePolls = new StructPollfd[]{deviceFd};
+            this.workerThread = Thread.currentThread();
+            this.wakeup = wakeup;
 
             // Update address to ping with default DNS server
             this.vpnWatchDog.setTarget(this.dnsServerMapper.getDefaultDnsServerAddress());
@@ -222,30 +299,56 @@ public class VpnWorker {
             // We keep forwarding packets till something goes wrong.
             boolean deviceOpened = true;
             while (deviceOpened) deviceOpened = doOne(inputStream, outputStream, packet);
+        } finally {
+            // Stop wake-up signals before closing the pipe
+            this.wakeup = null;
+            this.workerThread = null;
+            wakeup.close();
+            // Close upstream connections as they may be related to the previous network
+            this.dnsQueryQueue.clear();
+            this.dohUpstream.clear();
+            this.dotUpstream.clear();
         }
     }
 
     private boolean doOne(@NonNull final FileInputStream inputStream, final FileOutputStream fileOutputStream, final byte[] packet) throws IOException, VpnNetworkException {
-        // Create poll FD on tunnel
-        final StructPollfd deviceFd = new StructPollfd();
-        deviceFd.fd = inputStream.getFD();
+        // Update poll FD on tunnel
+        final StructPollfd deviceFd = this.polls[0];
         deviceFd.events = (short) POLLIN;
         if (!this.deviceWrites.isEmpty()) deviceFd.events |= (short) POLLOUT;
-        // Create poll FD on each DNS query socket
+        // Rebuild poll FDs only when DNS query sockets changed
         final StructPollfd[] queryFds = this.dnsQueryQueue.getQueryFds();
-        final StructPollfd[] polls = new StructPollfd[1 + queryFds.length];
-        polls[0] = deviceFd;
-        System.arraycopy(queryFds, 0, polls, 1, queryFds.length);
+        if (queryFds != this.queryFds) {
+            this.queryFds = queryFds;
+            final StructPollfd wakeupFd = this.polls[1];
+            this.polls = new StructPollfd[2 + queryFds.length];
+            this.polls[0] = deviceFd;
+            this.polls[1] = wakeupFd;
+            System.arraycopy(queryFds, 0, this.polls, 2, queryFds.length);
+        }
+        final StructPollfd[] polls = this.polls;
         final boolean deviceReadyToWrite;
         final boolean deviceReadyToRead;
         try {
             if (BuildConfig.DEBUG)
                 Log.d("AWAISKING_APP", "doOne: Polling " + polls.length + " file descriptors.");
-            final int numberOfEvents = Os.poll(polls, this.vpnWatchDog.getPollTimeout());
+            // Wake up for the next query timeout check or retransmission if it comes before the watchdog timeout
+            final int watchdogTimeout = this.vpnWatchDog.getPollTimeout();
+            final int dnsQueryTimeout = this.dnsQueryQueue.getTimeout();
+            final int tcpTimeout = this.dnsPacketProxy.getTcpTimeout();
+            final int queryTimeout = dnsQueryTimeout < 0 || tcpTimeout < 0 ? Math.max(dnsQueryTimeout, tcpTimeout)
+                    : Math.min(dnsQueryTimeout, tcpTimeout);
+            final boolean queryTimeoutFirst = queryTimeout >= 0 && (watchdogTimeout < 0 || queryTimeout < watchdogTimeout);
+            final int numberOfEvents = Os.poll(polls, queryTimeoutFirst ? queryTimeout : watchdogTimeout);
+            // Consume wake-up signals, the queued device writes are checked on next round
+            this.wakeup.handle();
+            // Expire timed out queries and retransmit DNS over TCP segments even without network activity
+            this.dnsQueryQueue.clearTimedOutQueries();
+            this.dnsPacketProxy.retransmitTcpSegments();
             // TODO BUG - There is a bug where the watchdog keeps doing timeout if there is no network activity
             // TODO BUG - 0 Might be a valid value if no current DNS query and everything was already sent back to device
             if (numberOfEvents == 0) {
-                this.vpnWatchDog.handleTimeout();
+                if (!queryTimeoutFirst) this.vpnWatchDog.handleTimeout();
                 return true;
             }
             deviceReadyToWrite = (deviceFd.revents & POLLOUT) != 0;
@@ -258,17 +361,19 @@ public class VpnWorker {
         // invalidate one of the sockets we want to read from either due to size or time out
         // constraints
         this.dnsQueryQueue.handleResponses();
+        boolean deviceOpened = true;
+        if (deviceReadyToRead) deviceOpened = readPacketsFromDevice(inputStream, packet);
+        // Only write once the blocking tunnel is writable, responses queued meanwhile make the next poll ask for it
         if (deviceReadyToWrite) writeToDevice(fileOutputStream);
-        if (deviceReadyToRead) return readPacketFromDevice(inputStream, packet) != -1;
-        return true;
+        return deviceOpened;
     }
 
     private void writeToDevice(final FileOutputStream fileOutputStream) throws IOException {
         if (BuildConfig.DEBUG)
             Log.d("AWAISKING_APP", "Write to device " + this.deviceWrites.size() + " packets.");
         try {
-            while (!this.deviceWrites.isEmpty()) {
-                final byte[] ipPacketData = this.deviceWrites.poll();
+            byte[] ipPacketData;
+            while ((ipPacketData = this.deviceWrites.poll()) != null) {
                 fileOutputStream.write(ipPacketData);
             }
         } catch (final IOException e) {
@@ -276,8 +381,41 @@ public class VpnWorker {
         }
     }
 
+    /**
+     * Read the packets available from the device, up to {@link #DEVICE_READ_BATCH} packets.
+     *
+     * @param inputStream The device input stream, known to be readable.
+     * @param packet      The buffer to read packets into, lent to the handlers of each packet.
+     *
+     * @return {@code true} if the device is still opened, {@code false} if its stream was closed.
+     * @throws IOException If the device could not be read or a packet could not be handled.
+     */
+    private boolean readPacketsFromDevice(final FileInputStream inputStream, final byte[] packet) throws IOException {
+        int count = 0;
+        do {
+            if (readPacketFromDevice(inputStream, packet) < 0) return false;
+            count++;
+        } while (count < DEVICE_READ_BATCH && isDeviceReadable());
+        if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "Read " + count + " packets from device.");
+        return true;
+    }
+
+    /**
+     * Check whether the device has another packet to read, without waiting.
+     *
+     * @return {@code true} if a read would not block, {@code false} otherwise.
+     * @throws IOException If the device could not be polled.
+     */
+    private boolean isDeviceReadable() throws IOException {
+        final StructPollfd deviceFd = this.devicePolls[0];
+        try {
+            return Os.poll(this.devicePolls, 0) > 0 && (deviceFd.revents & POLLIN) != 0;
+        } catch (final ErrnoException e) {
+            throw new IOException("Failed to poll tunnel. Error number: " + e.errno, e);
+        }
+    }
+
     private int readPacketFromDevice(final FileInputStream inputStream, final byte[] packet) throws IOException {
-        if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "Read a packet from device.");
         // Read the outgoing packet from the input stream.
         final int length = inputStream.read(packet);
         if (length < 0) {
@@ -286,9 +424,9 @@ public class VpnWorker {
         } else if (length == 0) {
             if (BuildConfig.DEBUG) Log.d("AWAISKING_APP", "Read empty packet from tunnel.");
         } else {
-            final byte[] readPacket = Arrays.copyOf(packet, length);
-            vpnWatchDog.handlePacket(readPacket);
-            dnsPacketProxy.handleDnsRequest(readPacket);
+            // Handle the packet in place, the buffer is reused for the next one
+            vpnWatchDog.handlePacket(packet, length);
+            dnsPacketProxy.handleDnsRequest(packet, length);
         }
         return length;
     }
@@ -318,16 +456,25 @@ public class VpnWorker {
      * @throws IOException If the packet could not be forwarded.
      */
     public void forwardPacket(final DatagramPacket outPacket, final Consumer<byte[]> callback) throws IOException {
-        DatagramSocket dnsSocket = null;
+        forwardPacket(outPacket, callback, null);
+    }
+
+    /**
+     * Forward a packet to the VPN underlying network.
+     *
+     * @param outPacket    The packet to forward.
+     * @param callback     The callback to call with the packet response data.
+     * @param slowCallback The callback to run if the response is late or the packet could not be forwarded,
+     *                     <code>null</code> if none.
+     *
+     * @throws IOException If the packet could not be forwarded.
+     */
+    public void forwardPacket(final DatagramPacket outPacket, final Consumer<byte[]> callback,
+                              @Nullable final Runnable slowCallback) throws IOException {
         try {
-            dnsSocket = new DatagramSocket();
-            // Packets to be sent to the real DNS server will need to be protected from the VPN
-            this.vpnService.protect(dnsSocket);
-            dnsSocket.send(outPacket);
-            // Enqueue DNS query
-            this.dnsQueryQueue.addQuery(dnsSocket, callback);
+            // Send DNS query to the selected upstream, protected from the VPN
+            this.dnsUpstream.forwardQuery(outPacket, callback, slowCallback);
         } catch (final IOException e) {
-            if (dnsSocket != null) dnsSocket.close();
             if (e.getCause() instanceof ErrnoException) {
                 final ErrnoException errnoExc = (ErrnoException) e.getCause();
                 if (errnoExc.errno == ENETUNREACH || errnoExc.errno == EPERM)
@@ -346,6 +493,18 @@ public class VpnWorker {
     public void queueDeviceWrite(@NonNull final IpPacket ipOutPacket) {
         final byte[] rawData = ipOutPacket.getRawData();
         // TODO Check why data could be null
-        if (rawData != null) this.deviceWrites.add(rawData);
+        if (rawData != null) queueDeviceWrite(rawData);
+    }
+
+    /**
+     * Write an IP packet to the local TUN device
+     *
+     * @param ipOutPacketData The packet data to write (a response to a DNS request)
+     */
+    public void queueDeviceWrite(@NonNull final byte[] ipOutPacketData) {
+        this.deviceWrites.add(ipOutPacketData);
+        // Wake the worker thread up if blocked in poll
+        final VpnWakeup wakeup = this.wakeup;
+        if (wakeup != null && Thread.currentThread() != this.workerThread) wakeup.signal();
     }
 }